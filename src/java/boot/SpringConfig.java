@@ -1,18 +1,34 @@
 package boot;
 
+import com.zaxxer.hikari.HikariDataSource;
 import controller.AuthInterceptor;
+import controller.IdentityMapInterceptor;
+import controller.ReadinessInterceptor;
+import entities.*;
 import eventhandler.EventHandler;
 import eventhandler.HandlesEvents;
 import eventhandler.events.AppConfigChangedEvent;
 import eventhandler.events.UserRegisteredEvent;
 import eventhandler.listeners.ConfigNotifier;
 import eventhandler.listeners.WishlistInitializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import persistence.CachingGateway;
+import persistence.IdentityMapGateway;
+import persistence.JdbcPersistenceGateway;
+import persistence.JournalCompactor;
+import persistence.JournalFlusher;
+import persistence.JournalPersistenceGateway;
+import persistence.MappedPersistenceGateway;
 import persistence.PersistenceInterface;
 import persistence.SerPersistenceGateway;
+import persistence.WarmUp;
+import persistence.codec.BinaryCodec;
+import persistence.relations.RelationIndexGateway;
 import persistence.relations.RelationMapper;
 import presenter.*;
 import usecases.SystemFacade;
@@ -45,28 +61,215 @@ import usecases.users.PermissionsManager;
 import usecases.users.UserManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 @Configuration
 public class SpringConfig implements WebMvcConfigurer {
 
+    /**
+     * Which gateway stores the application data, set by persistence.engine in application.properties:
+     * journal (the default), jdbc, mapped or ser
+     */
+    @Value("${persistence.engine:journal}")
+    private String persistenceEngine;
+
+    /**
+     * How often the journal gateway flushes its writes in write-behind mode, set by persistence.journal.flush-millis.
+     * 0 (the default) writes each change before it returns instead
+     */
+    @Value("${persistence.journal.flush-millis:0}")
+    private long journalFlushMillis;
+
+    /**
+     * The types whose journal snapshots, or .ser files for the ser engine, are compressed,
+     * set by persistence.journal.compressed-types as a list like entities.Item,entities.History
+     */
+    @Value("${persistence.journal.compressed-types:}")
+    private String compressedTypes;
+
+    /**
+     * The database of the jdbc gateway, set by persistence.jdbc.url
+     */
+    @Value("${persistence.jdbc.url:" + JdbcPersistenceGateway.DEFAULT_URL + "}")
+    private String jdbcUrl;
+
+    /**
+     * The most connections the jdbc gateway keeps open, set by persistence.jdbc.pool-size
+     */
+    @Value("${persistence.jdbc.pool-size:" + JdbcPersistenceGateway.DEFAULT_POOL_SIZE + "}")
+    private int jdbcPoolSize;
+
+    /**
+     * The most records of each type the jdbc gateway keeps in its cache, set by persistence.cache.capacity.
+     * 0 (the default) when it is not set
+     */
+    @Value("${persistence.cache.capacity:0}")
+    private int cacheCapacity;
+
+    /**
+     * The most records of each type the jdbc gateway caches when persistence.cache.capacity is not set
+     */
+    private static final int DEFAULT_CACHE_CAPACITY = 10000;
+
+    /**
+     * Capacities of single types that replace persistence.cache.capacity, set by persistence.cache.capacities
+     * as a list like entities.History:1000,entities.Item:20000
+     */
+    @Value("${persistence.cache.capacities:}")
+    private String cacheCapacities;
+
+    /**
+     * The most entity types loaded at once when the application starts, set by persistence.warm-up.threads
+     */
+    @Value("${persistence.warm-up.threads:4}")
+    private int warmUpThreads;
+
     /**
      * Adds interceptors to run prior to controller methods.
      * @param registry The registry of all interceptors
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
+        //Before anything else touches the data
+        registry.addInterceptor(new ReadinessInterceptor(this.getWarmUp()));
+        //First, so that the identity map also serves the checks of AuthInterceptor
+        registry.addInterceptor(new IdentityMapInterceptor(this.getPersistence()));
         registry.addInterceptor(new AuthInterceptor(this.getSystemFacade()));
     }
 
     /**
-     * instantiate SerPersistenceInterface
-     * @return  new SerPersistenceGateway
+     * instantiate the gateway, wrapped in an identity map that IdentityMapInterceptor scopes to each request
+     * @return  new IdentityMapGateway
+     */
+    @Bean
+    public IdentityMapGateway getPersistence() {
+        return new IdentityMapGateway(this.getRelationIndex());
+    }
+
+    /**
+     * instantiate RelationIndexGateway, which indexes the reverse relations that RelationMapper registers
+     * as records are written to the gateway chosen by persistence.engine
+     * @return  new RelationIndexGateway
+     */
+    @Bean
+    public RelationIndexGateway getRelationIndex() {
+        return new RelationIndexGateway(this.createEngine());
+    }
+
+    /**
+     * instantiate the gateway chosen by persistence.engine. Each one imports any existing .ser files the first time they are needed.
+     * jdbc: JdbcPersistenceGateway, which stores each type in its own table of an embedded H2 database,
+     * borrowing its connections from a pool of up to jdbcPoolSize. The pool is not a bean, since a DataSource bean
+     * would replace the one spring.datasource configures for the sessions. It is wrapped in a CachingGateway
+     * that keeps up to cacheCapacity of the most used records of each type in memory, and it imports the journals
+     * of the journal engine the first time it uses each type. It is the only engine whose memory use cacheCapacity bounds,
+     * so setting a capacity for another engine only prints a warning
+     * mapped: MappedPersistenceGateway, which reads each record straight from a memory-mapped segment file per type
+     * ser: SerPersistenceGateway in cached mode, which reads each .ser file once, keeps its records in memory and
+     * rewrites the whole file on every write. The files of compressedTypes are compressed
+     * journal: JournalPersistenceGateway, which keeps every record in memory, compacts its journals in the background
+     * every 10 minutes, and groups the writes of every journalFlushMillis into one flush per type when that is set.
+     * The snapshots of compressedTypes are compressed
+     * @return  new PersistenceInterface
      */
-    @Bean
-    public PersistenceInterface getPersistence() {
-        return new SerPersistenceGateway();
+    private PersistenceInterface createEngine() {
+        String engine = this.persistenceEngine.trim();
+        if (engine.equals("jdbc")) {
+            HikariDataSource pool = JdbcPersistenceGateway.pool(this.jdbcUrl, this.jdbcPoolSize);
+            //Close the connections when the application shuts down
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::close));
+            int capacity = this.cacheCapacity > 0 ? this.cacheCapacity : DEFAULT_CACHE_CAPACITY;
+            return new CachingGateway(new JdbcPersistenceGateway(pool, new BinaryCodec()), capacity, this.parseCapacities());
+        }
+        if (this.cacheCapacity > 0 || !this.cacheCapacities.trim().isEmpty()) {
+            System.out.println("persistence.cache.capacity only bounds the memory of the jdbc engine, not of the " + engine + " engine.");
+        }
+        if (engine.equals("mapped")) {
+            return new MappedPersistenceGateway();
+        }
+        if (engine.equals("ser")) {
+            return new SerPersistenceGateway(true, new BinaryCodec(), this.parseCompressedTypes());
+        }
+        if (!engine.equals("journal")) {
+            throw new IllegalArgumentException("persistence.engine must be journal, jdbc, mapped or ser, not " + engine);
+        }
+        JournalPersistenceGateway gateway = new JournalPersistenceGateway(new BinaryCodec(), this.parseCompressedTypes());
+        new JournalCompactor(gateway, 64 * 1024).start(10, TimeUnit.MINUTES);
+        if (this.journalFlushMillis > 0) {
+            JournalFlusher flusher = new JournalFlusher(gateway);
+            flusher.start(this.journalFlushMillis, TimeUnit.MILLISECONDS);
+            //Flush whatever is still queued when the application shuts down
+            Runtime.getRuntime().addShutdownHook(new Thread(flusher::flush));
+        }
+        return gateway;
+    }
+
+    /**
+     * read compressedTypes into a set of class names
+     * @return  the class names of the types whose files are compressed
+     */
+    private Set<String> parseCompressedTypes() {
+        Set<String> compressed = new HashSet<>();
+        for (String typeName : this.compressedTypes.split(",")) {
+            if (!typeName.trim().isEmpty()) compressed.add(typeName.trim());
+        }
+        return compressed;
+    }
+
+    /**
+     * read cacheCapacities into {class name: capacity}
+     * @return  the capacity of each type that has its own
+     * @throws IllegalArgumentException if an entry is not a class name and a positive capacity separated by a colon
+     */
+    private Map<String, Integer> parseCapacities() {
+        Map<String, Integer> capacities = new HashMap<>();
+        for (String entry : this.cacheCapacities.split(",")) {
+            if (entry.trim().isEmpty()) continue;
+            String[] parts = entry.split(":");
+            int capacity = 0;
+            if (parts.length == 2 && !parts[0].trim().isEmpty()) {
+                try {
+                    capacity = Integer.parseInt(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    //Reported below
+                }
+            }
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("persistence.cache.capacities has a bad entry '" + entry.trim()
+                        + "'. Each entry must be a class name and a positive capacity, like entities.History:1000");
+            }
+            capacities.put(parts[0].trim(), capacity);
+        }
+        return capacities;
+    }
+
+    /**
+     * instantiate WarmUp, and start loading every entity type into the gateway in the background
+     * @return  new WarmUp
+     */
+    @Bean
+    public WarmUp getWarmUp() {
+        WarmUp warmUp = new WarmUp(this.getPersistence(), Arrays.asList(Config.class, History.class, Item.class,
+                Meeting.class, Tag.class, Trade.class, Transaction.class, User.class, WishList.class), this.warmUpThreads);
+        warmUp.start();
+        return warmUp;
+    }
+
+    /**
+     * instantiate an ApplicationRunner that waits for warm-up to finish, so that Spring only reports the application
+     * as ready, with ApplicationReadyEvent and ReadinessState.ACCEPTING_TRAFFIC, once every entity type is loaded
+     * @return  new ApplicationRunner
+     */
+    @Bean
+    public ApplicationRunner getWarmUpRunner() {
+        return args -> this.getWarmUp().whenReady().join();
     }
 
     /**
@@ -75,7 +278,7 @@ public class SpringConfig implements WebMvcConfigurer {
      */
     @Bean
     public RelationMapper getRelation() {
-        return new RelationMapper(this.getPersistence());
+        return new RelationMapper(this.getPersistence(), this.getRelationIndex());
     }
 
     /**
@@ -392,7 +595,7 @@ public class SpringConfig implements WebMvcConfigurer {
      */
     @Bean
     public AdminPresenter getAdminPresenter() {
-        return new AdminPresenter(getSystemFacade(), getTradingFacade(), getCommandManager());
+        return new AdminPresenter(getSystemFacade(), getTradingFacade(), getCommandManager(), getPersistence());
     }
 
     /**
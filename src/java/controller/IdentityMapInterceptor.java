@@ -0,0 +1,54 @@
+package controller;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import persistence.IdentityMapGateway;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * Gives every request its own identity map, so that each record is read at most once while the request is handled,
+ * and drops it once the request is complete.
+ */
+public class IdentityMapInterceptor implements HandlerInterceptor {
+
+    private final IdentityMapGateway gateway;
+
+    /**
+     * Instantiates this class
+     *
+     * @param gateway The gateway whose identity map is scoped to each request
+     */
+    public IdentityMapInterceptor(IdentityMapGateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Opens the identity map of the request.
+     *
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @param handler  A handler object
+     * @return true, so that the request is always handled further
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        this.gateway.beginScope();
+        return true;
+    }
+
+    /**
+     * Drops the identity map of the request, whether or not it was handled successfully.
+     *
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @param handler  A handler object
+     * @param ex       The exception thrown while handling the request, if any
+     */
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        this.gateway.endScope();
+    }
+
+}
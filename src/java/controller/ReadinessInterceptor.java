@@ -0,0 +1,51 @@
+package controller;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+import persistence.WarmUp;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+
+/**
+ * Turns requests away with 503 Service Unavailable until the entity types have been warmed up,
+ * so that they are not served while the data they need is still being loaded.
+ */
+public class ReadinessInterceptor implements HandlerInterceptor {
+
+    /**
+     * How many seconds a client that was turned away is asked to wait before trying again.
+     */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private final WarmUp warmUp;
+
+    /**
+     * Instantiates this class
+     *
+     * @param warmUp The warm-up that has to finish before requests are served
+     */
+    public ReadinessInterceptor(WarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Lets the request through only once warm-up is finished.
+     *
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @param handler  A handler object
+     * @return A boolean indicating whether to further handle this request
+     * @throws IOException An IOException
+     */
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws IOException {
+        if (this.warmUp.isReady()) return true;
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The application is starting up.");
+        return false;
+    }
+
+}
@@ -3,4 +3,35 @@ package entities;
 import persistence.Persistable;
 
 abstract public class AbstractBaseEntity implements Persistable {
+
+    /**
+     * Kept at the value this class had before it had any fields, so that records saved before then can still be loaded
+     */
+    private static final long serialVersionUID = -5266846063300606684L;
+
+    /**
+     * The number of times this entity has been updated in storage
+     */
+    private int version;
+
+
+    /**
+     * Get the version of this entity
+     *
+     * @return the number of times this entity has been updated in storage
+     */
+    @Override
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the version of this entity
+     *
+     * @param version the new version
+     */
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
 }
@@ -1,5 +1,6 @@
 package entities;
 
+import persistence.Indexed;
 import persistence.relations.HasRelations;
 
 import java.util.HashMap;
@@ -25,11 +26,13 @@ public class Item extends AbstractBaseEntity implements HasRelations {
     /**
      * Its owner's id
      */
+    @Indexed
     private int ownerId;
 
     /**
      * The id of person who hold it now (do not mean he own this item)
      */
+    @Indexed
     private int holderId;
 
     /**
@@ -63,6 +66,12 @@ public class Item extends AbstractBaseEntity implements HasRelations {
     private boolean forSale;
 
 
+    /**
+     * Creates an item with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private Item() {
+    }
+
     /**
      * Constructor without input id
      * Create an item with input information,
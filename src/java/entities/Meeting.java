@@ -50,6 +50,12 @@ public class Meeting extends AbstractBaseEntity implements HasRelations {
     private boolean hasSecondMeeting;
 
 
+    /**
+     * Creates a meeting with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private Meeting() {
+    }
+
     /**
      * constructor with out input id
      * Create a meeting with input information and set the number of two users's choices to 0,
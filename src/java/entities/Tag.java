@@ -24,6 +24,12 @@ public class Tag extends AbstractBaseEntity implements HasRelations {
      */
     private List<Integer> itemIds = new ArrayList<>();
 
+    /**
+     * Creates a tag with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private Tag() {
+    }
+
     /**
      * Create a new tag.
      *
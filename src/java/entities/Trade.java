@@ -46,6 +46,12 @@ public class Trade extends AbstractBaseEntity implements HasRelations {
     private boolean sell;
 
 
+    /**
+     * Creates a trade with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private Trade() {
+    }
+
     /**
      * Constructor for trade without input trade id
      * Create a trade with input information with duration
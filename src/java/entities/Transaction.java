@@ -37,6 +37,12 @@ public class Transaction extends AbstractBaseEntity implements HasRelations {
     private List<Integer> meetingList;
 
 
+    /**
+     * Creates a transaction with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private Transaction() {
+    }
+
     /**
      * Default constructor without input id
      * Create a new transaction with trade list, user list, and whether it is one way or two way
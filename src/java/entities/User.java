@@ -1,5 +1,6 @@
 package entities;
 
+import persistence.Indexed;
 import persistence.relations.HasRelations;
 
 import java.util.HashMap;
@@ -21,6 +22,7 @@ public class User extends AbstractBaseEntity implements HasRelations {
     /**
      * User's name
      */
+    @Indexed
     private String name;
 
     /**
@@ -45,6 +47,12 @@ public class User extends AbstractBaseEntity implements HasRelations {
     private String homeCity;
 
 
+    /**
+     * Creates a user with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private User() {
+    }
+
     /**
      * Default constructor without input id
      * Create an user with input information, and the status is normal
@@ -1,5 +1,7 @@
 package entities;
 
+import persistence.Indexed;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,9 +28,16 @@ public class WishList extends AbstractBaseEntity {
     /**
      * the id of the owner of this item
      */
+    @Indexed
     private int ownerId;
 
 
+    /**
+     * Creates a wish list with no fields set, for BinaryCodec to read the stored fields into.
+     */
+    private WishList() {
+    }
+
     /**
      * Default constructor with input id
      * Create an user's wish list with an input id
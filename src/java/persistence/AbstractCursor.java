@@ -0,0 +1,86 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Turns a source that hands out one record at a time into a Cursor, so that each gateway only needs to know
+ * how to read its next record.
+ */
+abstract class AbstractCursor<T> implements Cursor<T> {
+
+    /**
+     * Whether iterator has been called.
+     */
+    private boolean iterated = false;
+
+    /**
+     * Whether close has been called.
+     */
+    private boolean closed = false;
+
+
+    @Override
+    public Iterator<T> iterator() {
+
+        if (this.iterated) throw new IllegalStateException("A cursor can only be iterated once.");
+        this.iterated = true;
+
+        return new Iterator<T>() {
+
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                if (this.next == null && !closed) {
+                    try {
+                        this.next = fetch();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return this.next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                T record = this.next;
+                this.next = null;
+                return record;
+            }
+
+        };
+
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) return;
+        this.closed = true;
+        this.release();
+    }
+
+
+    /**
+     * Reads the next record that should be handed out.
+     *
+     * @return The record, or null if there are no more
+     * @throws IOException If the record cannot be read
+     */
+    protected abstract T fetch() throws IOException;
+
+    /**
+     * Releases whatever the cursor holds open. Called once, by close.
+     *
+     * @throws IOException If it cannot be released
+     */
+    protected void release() throws IOException {
+    }
+
+
+}
@@ -1,4 +1,544 @@
 package persistence;
 
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.PersistenceException;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Holds the checks and conversions that every concrete persistence gateway needs,
+ * regardless of where the records end up being stored.
+ */
 abstract public class AbstractPersistenceGateway {
+
+    /**
+     * The sequence that hands out the primary keys of each type, loaded the first time a key is needed.
+     * "Class Name": sequence
+     */
+    private final Map<String, KeySequence> sequences = new ConcurrentHashMap<>();
+
+    /**
+     * Turns records into the bytes that are stored, and back.
+     */
+    private final EntityCodec codec;
+
+    /**
+     * The class names of the types whose files are compressed.
+     */
+    private final Set<String> compressedTypes;
+
+    /**
+     * The snapshots pinned to each thread, by the class name of their type.
+     */
+    private final ThreadLocal<Map<String, EntityTable>> pinned = new ThreadLocal<>();
+
+
+    /**
+     * Initializes a gateway that stores records with BinaryCodec.
+     */
+    protected AbstractPersistenceGateway() {
+        this(new BinaryCodec());
+    }
+
+
+    /**
+     * Initializes a gateway that stores records with the given codec.
+     *
+     * @param codec Turns records into the bytes that are stored, and back
+     */
+    protected AbstractPersistenceGateway(EntityCodec codec) {
+        this(codec, Collections.emptySet());
+    }
+
+
+    /**
+     * Initializes a gateway that stores records with the given codec, and compresses the files of some types.
+     *
+     * @param codec           Turns records into the bytes that are stored, and back
+     * @param compressedTypes The class names of the types whose files are compressed
+     */
+    protected AbstractPersistenceGateway(EntityCodec codec, Set<String> compressedTypes) {
+        this.codec = codec;
+        this.compressedTypes = new HashSet<>(compressedTypes);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Returns the next primary key that is larger than every key in both lists.
+     *
+     * @param existingList The records that are already stored
+     * @param newObjList   The records that are about to be stored
+     * @return The next free primary key
+     */
+    protected <S extends Persistable, T extends Persistable> int getNextPrimaryKey(Collection<S> existingList, List<T> newObjList) {
+
+        int max = 1;
+        for (Persistable p : existingList) {
+            if (p.getKey() >= max) max = p.getKey() + 1;
+        }
+        for (Persistable p : newObjList) {
+            if (p.getKey() >= max) max = p.getKey() + 1;
+        }
+        return max;
+
+    }
+
+
+    /**
+     * Gives every record with a primary key of 0 a new key from the sequence of the type,
+     * and moves the sequence past the keys the other records already have.
+     *
+     * @param newObjList The records that are about to be stored
+     * @param type       The type of the records
+     * @throws IOException If the sequence cannot be loaded or saved
+     */
+    protected <T extends Persistable> void assignKeys(List<T> newObjList, Class<?> type) throws IOException {
+
+        int count = 0;
+        for (Persistable p : newObjList) {
+            if (p.getKey() == 0) count++;
+        }
+        int newKey = this.allocateKeys(type, this.getNextPrimaryKey(Collections.<Persistable>emptyList(), newObjList), count);
+        for (Persistable p : newObjList) {
+            if (p.getKey() == 0) {
+                p.setKey(newKey);
+                newKey++;
+            }
+        }
+
+    }
+
+
+    /**
+     * Hands out a range of primary keys from the sequence of the type. They are never handed out again,
+     * so a unit of work can hold on to them until it is committed. Keys that are never stored are simply not used.
+     *
+     * @param type  The type
+     * @param floor The smallest key that may be handed out
+     * @param count The number of keys, which may be 0
+     * @return The first key of the range
+     * @throws IOException If the sequence cannot be loaded or saved
+     */
+    protected int allocateKeys(Class<?> type, int floor, int count) throws IOException {
+        KeySequence sequence = this.sequenceOf(type);
+        if (floor > 1) sequence.skipPast(floor - 1);
+        return sequence.allocate(count);
+    }
+
+
+    /**
+     * Forgets the sequence of a type, so that its keys start over from what is stored. Used when the type is removed.
+     *
+     * @param type The type
+     */
+    protected void resetKeys(Class<?> type) {
+        this.sequences.remove(type.getName());
+    }
+
+
+    /**
+     * Returns the first primary key the sequence of a type may hand out after a restart:
+     * the persisted high-water mark, or one past the largest stored key if that is larger.
+     * The stored keys cover a mark that was lost, except for keys whose records were deleted,
+     * which is why writeKeyLimit syncs the mark to disk before any key below it is handed out.
+     *
+     * @param type The type
+     * @return The first free primary key
+     * @throws IOException If the mark or the stored records cannot be read
+     */
+    protected abstract int loadNextKey(Class<?> type) throws IOException;
+
+    /**
+     * Persists the high-water mark of the sequence of a type.
+     *
+     * @param type  The type
+     * @param limit Every key that was handed out is below this
+     * @throws IOException If it cannot be saved
+     */
+    protected abstract void saveKeyLimit(Class<?> type, int limit) throws IOException;
+
+
+    /**
+     * Reads a high-water mark written by writeKeyLimit.
+     * A file that is empty or cut short, which a crash can leave behind, is read as no mark,
+     * so that the sequence falls back to the stored keys instead of failing every create of the type.
+     *
+     * @param filePath The file of the mark
+     * @return The mark, or 0 if it has never been written or cannot be read whole
+     * @throws IOException If the file cannot be read
+     */
+    protected static int readKeyLimit(String filePath) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(filePath))) {
+            return input.readInt();
+        } catch (FileNotFoundException | EOFException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Writes a high-water mark to its own small file, replacing it in one move so that it is never half written.
+     * The new file is synced before the move, and the directory after it, so that the mark survives a crash.
+     *
+     * @param filePath The file of the mark
+     * @param limit    The mark
+     * @throws IOException If the file cannot be written
+     */
+    protected static void writeKeyLimit(String filePath, int limit) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(filePath + ".tmp"))) {
+            output.writeInt(limit);
+        }
+        replaceDurably(Paths.get(filePath + ".tmp"), Paths.get(filePath));
+    }
+
+
+    /**
+     * Replaces a file with a new one that has been written and closed. The new file is forced to disk before the move,
+     * and the directory after it, so that after a crash the file is either all of the old one or all of the new one.
+     *
+     * @param source The new file
+     * @param target The file it replaces
+     * @throws IOException If the new file cannot be forced or moved
+     */
+    protected static void replaceDurably(Path source, Path target) throws IOException {
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+        Path path = target.toAbsolutePath();
+        Files.move(source, path, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(path.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            //Some platforms, such as Windows, cannot open a directory. The move is then as durable as the file system makes it.
+        }
+    }
+
+
+    /**
+     * Checks that every object in newList is of the same type as each other, and as the existing records.
+     *
+     * @param newList      The records that are about to be stored
+     * @param existingList The records that are already stored
+     * @return true iff there is only one type
+     */
+    protected <S, T extends Persistable> boolean containsOneType(List<S> newList, List<T> existingList) {
+
+        //We know that all objects in existing lists are the same type, so we only need to match the first of each list.
+        if (newList.size() != 0 && existingList.size() != 0) {
+            if (newList.get(0).getClass() != existingList.get(0).getClass()) {
+                return false;
+            }
+        }
+
+        //Next we check that all objects in newList are identical type.
+        for (int i = 0; i < newList.size(); i++) {
+            for (int j = i; j < newList.size(); j++) {
+                if (newList.get(i).getClass() != newList.get(j).getClass()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Checks that no two records share a primary key, except 0, which means a key has not been assigned yet.
+     *
+     * @param persistableList The records to check
+     * @return false if there are no duplicates
+     * @throws EntryExistsException If there are duplicates
+     */
+    protected <T extends Persistable> boolean hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+
+        List<Integer> newIds = this.getListOfPrimaryKeys(persistableList);
+        HashSet<Integer> s = new HashSet<Integer>();
+        for (Integer i : newIds) {
+            if (i != 0 && !s.add(i)) {
+                throw new EntryExistsException();
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Checks that every record is stored, and that it is being updated from the version that is stored,
+     * so that an update someone else made in between is not silently overwritten.
+     *
+     * @param updateObjList The records that are about to be updated
+     * @param table         The stored records of the type
+     * @throws EntryDoesNotExistException If a record is not stored
+     * @throws VersionConflictException   If a record has been updated since it was read
+     */
+    protected <T extends Persistable> void checkVersions(List<T> updateObjList, EntityTable table) throws PersistenceException {
+
+        for (Persistable p : updateObjList) {
+            Persistable stored = table.get(p.getKey());
+            if (stored == null) throw new EntryDoesNotExistException();
+            if (stored.getVersion() != p.getVersion()) throw new VersionConflictException();
+        }
+
+    }
+
+
+    /**
+     * Returns the records that are different from the stored record with the same primary key,
+     * so that an update of records that did not change writes nothing.
+     * Must be called after checkVersions, so that each record has the version that is stored,
+     * and two records with the same fields encode to the same bytes.
+     *
+     * @param updateObjList The records that are about to be updated
+     * @param table         The stored records of the type
+     * @return The records that changed, in order
+     * @throws IOException If a record cannot be encoded
+     */
+    protected <T extends Persistable> List<T> changedRecords(List<T> updateObjList, EntityTable table) throws IOException {
+
+        List<T> changed = new ArrayList<>();
+        for (T p : updateObjList) {
+            if (!this.isUnchanged(p, this.encode(table.get(p.getKey())))) changed.add(p);
+        }
+        return changed;
+
+    }
+
+
+    /**
+     * Checks whether a record encodes to exactly the stored bytes.
+     * Fields whose encoding depends on more than their contents, such as the order of a HashSet,
+     * may make an unchanged record look changed, which only costs a write.
+     *
+     * @param record The record
+     * @param stored The bytes that are stored for its primary key
+     * @return true iff writing the record would store the same bytes
+     * @throws IOException If the record cannot be encoded
+     */
+    protected boolean isUnchanged(Persistable record, byte[] stored) throws IOException {
+        return Arrays.equals(this.encode(record), stored);
+    }
+
+
+    /**
+     * Moves the version of every record by delta. Used to step the versions forward before an update is written,
+     * and back again if it could not be written.
+     *
+     * @param persistableList The records
+     * @param delta           The number to add to each version
+     */
+    protected <T extends Persistable> void shiftVersions(List<T> persistableList, int delta) {
+        for (Persistable p : persistableList) {
+            p.setVersion(p.getVersion() + delta);
+        }
+    }
+
+
+    /**
+     * Returns the primary keys of the records, in order.
+     *
+     * @param persistableList The records
+     * @return A list of primary keys
+     */
+    protected <T extends Persistable> List<Integer> getListOfPrimaryKeys(List<T> persistableList) {
+
+        List<Integer> keys = new ArrayList<Integer>();
+        //We need to load the existing file, and loop to check that we don't override any entries
+        for (Persistable p : persistableList) {
+            keys.add(p.getKey());
+        }
+        return keys;
+
+    }
+
+
+    /**
+     * Hands out the stored records that match a filter one at a time, copying each only as it is reached.
+     * Records that do not match are never copied, and the copies of records the caller has moved past can be collected.
+     *
+     * @param type   The type of the records
+     * @param stored The stored records, which are never changed or handed out
+     * @param filter Whether a record should be handed out
+     * @return A cursor over copies of the matching records
+     */
+    protected <T> Cursor<T> cursor(Class<T> type, List<Persistable> stored, Predicate<? super T> filter) {
+
+        Iterator<Persistable> records = stored.iterator();
+        return new AbstractCursor<T>() {
+            @Override
+            protected T fetch() throws IOException {
+                while (records.hasNext()) {
+                    T record = type.cast(records.next());
+                    if (filter.test(record)) return type.cast(copy((Persistable) record));
+                }
+                return null;
+            }
+        };
+
+    }
+
+
+    private KeySequence sequenceOf(Class<?> type) throws IOException {
+
+        KeySequence sequence = this.sequences.get(type.getName());
+        if (sequence != null) return sequence;
+
+        //Loaded without holding anything, since loading may take the locks of the type.
+        //No key is handed out before a sequence is in the map, so if two threads load one at once,
+        //both see the same stored records, and whichever is put first is used by both.
+        KeySequence loaded = new KeySequence(this.loadNextKey(type), limit -> this.saveKeyLimit(type, limit));
+        sequence = this.sequences.putIfAbsent(type.getName(), loaded);
+        return sequence == null ? loaded : sequence;
+
+    }
+
+
+    /**
+     * Pins snapshots of some tables to the current thread, until the returned snapshot is closed.
+     * Tables that are already pinned by an earlier snapshot on the thread are pinned again, and restored on close.
+     *
+     * @param tables {class name: snapshot of the table}, which must never change
+     * @return The snapshot to close
+     */
+    protected Snapshot pin(Map<String, EntityTable> tables) {
+
+        Map<String, EntityTable> previous = this.pinned.get();
+        Map<String, EntityTable> current = previous == null ? new HashMap<>() : new HashMap<>(previous);
+        current.putAll(tables);
+        this.pinned.set(current);
+        return () -> {
+            if (previous == null) this.pinned.remove();
+            else this.pinned.set(previous);
+        };
+
+    }
+
+
+    /**
+     * Returns the snapshot of a type that is pinned to the current thread.
+     *
+     * @param type The type
+     * @return The snapshot of its table, or null if none is pinned
+     */
+    protected EntityTable pinned(Class<?> type) {
+        Map<String, EntityTable> tables = this.pinned.get();
+        return tables == null ? null : tables.get(type.getName());
+    }
+
+
+    /**
+     * Encodes one record on its own, with the codec of this gateway.
+     *
+     * @param record The record
+     * @return The bytes of the record
+     * @throws IOException If the record cannot be encoded
+     */
+    protected byte[] encode(Persistable record) throws IOException {
+        return this.codec.encode(record);
+    }
+
+
+    /**
+     * Reads back one record that was encoded by encode.
+     *
+     * @param bytes The bytes of the record
+     * @return The record
+     * @throws IOException If the bytes cannot be read, or the class no longer exists
+     */
+    protected Persistable decode(byte[] bytes) throws IOException {
+        return this.codec.decode(bytes);
+    }
+
+
+    /**
+     * Makes a deep copy of a record, the same way it would be written to and read back from storage.
+     *
+     * @param record The record
+     * @return A copy that shares no state with the original
+     * @throws IOException If the record cannot be serialized
+     */
+    protected Persistable copy(Persistable record) throws IOException {
+        return this.decode(this.encode(record));
+    }
+
+
+    /**
+     * Returns whether the files of a type are written compressed. Files are read the same way either way,
+     * since each one says whether it is compressed, so this can be changed at any time.
+     *
+     * @param typeName The class name of the type
+     * @return true if the files of the type are compressed
+     */
+    protected boolean isCompressed(String typeName) {
+        return this.compressedTypes.contains(typeName);
+    }
+
+
+    /**
+     * Wraps a file in a stream that compresses everything written to it with Deflater. The records are compressed
+     * together in blocks, so repeated field names and text across records are only stored once.
+     * BEST_SPEED is used, since it keeps most of the savings of the stronger levels for a fraction of the CPU time.
+     * Closing the stream finishes the compressed data, and closes the file.
+     *
+     * @param file The file, positioned where the compressed data starts
+     * @return A stream that compresses into the file
+     */
+    protected static DataOutputStream deflating(OutputStream file) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(file, deflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        }));
+    }
+
+
+    /**
+     * Wraps a file in a stream that reads back what deflating wrote. Closing the stream closes the file.
+     *
+     * @param file The file, positioned where the compressed data starts
+     * @return A stream of the data as it was before it was compressed
+     */
+    protected static DataInputStream inflating(InputStream file) {
+        return new DataInputStream(new BufferedInputStream(new InflaterInputStream(file)));
+    }
+
+
 }
@@ -0,0 +1,271 @@
+package persistence;
+
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.PersistenceException;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * Collects the changes of a unit of work, so that each gateway only needs to know how to save them together.
+ * Each primary key has at most one change per type: the state it should have once the unit is committed.
+ * Objects are copied as they are added, so changing them afterwards does not change the unit.
+ * Updates are checked against the version that was read, and the versions of the added objects are only
+ * moved forward once the unit has been saved.
+ */
+abstract class AbstractUnitOfWork implements UnitOfWork {
+
+    /**
+     * The gateway that the unit belongs to.
+     */
+    private final AbstractPersistenceGateway gateway;
+
+    /**
+     * {type: {primary key: change}}, in the order they were added.
+     */
+    private final Map<Class<?>, Map<Integer, Change>> changes = new LinkedHashMap<>();
+
+    /**
+     * Whether commit has been called.
+     */
+    private boolean committed = false;
+
+
+    /**
+     * Initializes an empty unit.
+     *
+     * @param gateway The gateway that the unit belongs to
+     */
+    AbstractUnitOfWork(AbstractPersistenceGateway gateway) {
+        this.gateway = gateway;
+    }
+
+
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException {
+
+        this.checkNotCommitted();
+        if (newObjList.size() == 0) return newObjList;
+
+        //First check if duplicates exist in our provided List, except 0
+        this.gateway.hasDuplicateKeys(newObjList);
+
+        Map<Integer, Change> staged = this.changesOf(type);
+        if (!this.gateway.containsOneType(newObjList, this.sample(staged))) throw new NonUniformObjectsException();
+
+        //New keys must be free in storage, in this unit, and in every other unit
+        int floor = 1;
+        int count = 0;
+        for (Integer key : staged.keySet()) {
+            if (key >= floor) floor = key + 1;
+        }
+        for (Persistable p : newObjList) {
+            if (p.getKey() >= floor) floor = p.getKey() + 1;
+            if (p.getKey() == 0) count++;
+        }
+        int newKey = this.gateway.allocateKeys(type, floor, count);
+        for (Persistable p : newObjList) {
+            if (p.getKey() == 0) {
+                p.setKey(newKey);
+                newKey++;
+            }
+        }
+
+        for (Persistable p : newObjList) {
+            Change change = staged.get(p.getKey());
+            if (change != null && change.record != null) throw new EntryExistsException();
+        }
+        for (Persistable p : newObjList) {
+            Change change = staged.get(p.getKey());
+            if (change == null) staged.put(p.getKey(), new Change(false, true, p.getVersion(), this.gateway.copy(p), p));
+            else change.stage(this.gateway.copy(p), p);
+        }
+        return newObjList;
+
+    }
+
+
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        return this.create(objectList, type).get(0);
+    }
+
+
+    @Override
+    public <T extends Persistable> void update(List<T> updateObjList, Class<T> type) throws IOException {
+
+        this.checkNotCommitted();
+        if (updateObjList.size() == 0) return;
+
+        this.gateway.hasDuplicateKeys(updateObjList);
+
+        Map<Integer, Change> staged = this.changesOf(type);
+        if (!this.gateway.containsOneType(updateObjList, this.sample(staged))) throw new NonUniformObjectsException();
+
+        for (Persistable p : updateObjList) {
+            Change change = staged.get(p.getKey());
+            if (change != null && change.record == null) throw new EntryDoesNotExistException();
+        }
+        for (Persistable p : updateObjList) {
+            Change change = staged.get(p.getKey());
+            if (change == null) staged.put(p.getKey(), new Change(true, false, p.getVersion(), this.gateway.copy(p), p));
+            else change.stage(this.gateway.copy(p), p);
+        }
+
+    }
+
+
+    @Override
+    public <T extends Persistable> void update(T updateObj, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        this.update(objectList, type);
+    }
+
+
+    @Override
+    public <T> void delete(List<Integer> idList, Class<T> type) {
+
+        this.checkNotCommitted();
+        Map<Integer, Change> staged = this.changesOf(type);
+        for (Integer id : idList) {
+            Change change = staged.get(id);
+            if (change == null) staged.put(id, new Change(false, false, 0, null, null));
+            //Created in this unit, so there is nothing left to save
+            else if (change.mustNotExist) staged.remove(id);
+            else change.stage(null, null);
+        }
+
+    }
+
+
+    @Override
+    public void commit() throws IOException {
+        this.checkNotCommitted();
+        this.committed = true;
+        this.changes.values().removeIf(Map::isEmpty);
+        if (this.changes.isEmpty()) return;
+        this.save(this.changes);
+
+        //Only now that the changes are saved do the callers' objects move to the version in storage
+        for (Map<Integer, Change> staged : this.changes.values()) {
+            for (Change change : staged.values()) {
+                if (change.source != null) change.source.setVersion(change.record.getVersion());
+            }
+        }
+    }
+
+
+    /**
+     * Saves every change, or none of them. Implementations should call check for every type before saving anything.
+     *
+     * @param changes {type: {primary key: change}}
+     * @throws IOException If the changes cannot be saved
+     */
+    protected abstract void save(Map<Class<?>, Map<Integer, Change>> changes) throws IOException;
+
+    /**
+     * Checks the changes of one type against its stored records.
+     *
+     * @param changes {primary key: change} of the type
+     * @param table   The stored records of the type
+     * @throws PersistenceException     If any of the changes cannot be saved
+     * @throws VersionConflictException If an updated record has been updated in storage since it was read
+     */
+    protected void check(Map<Integer, Change> changes, EntityTable table) throws PersistenceException {
+
+        List<Persistable> records = new ArrayList<>();
+        for (Map.Entry<Integer, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            if (change.mustExist && !table.contains(entry.getKey())) throw new EntryDoesNotExistException();
+            if (change.mustExist && change.record != null && table.get(entry.getKey()).getVersion() != change.readVersion) {
+                throw new VersionConflictException();
+            }
+            if (change.mustNotExist && table.contains(entry.getKey())) throw new EntryExistsException();
+            if (change.record != null) records.add(change.record);
+        }
+        if (!this.gateway.containsOneType(records, table.sample())) throw new NonUniformObjectsException();
+
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private Map<Integer, Change> changesOf(Class<?> type) {
+        return this.changes.computeIfAbsent(type, t -> new LinkedHashMap<>());
+    }
+
+
+    private List<Persistable> sample(Map<Integer, Change> staged) {
+        for (Change change : staged.values()) {
+            if (change.record != null) return Collections.singletonList(change.record);
+        }
+        return Collections.emptyList();
+    }
+
+
+    private void checkNotCommitted() {
+        if (this.committed) throw new IllegalStateException("This unit of work has already been committed.");
+    }
+
+
+    /**
+     * The state one primary key should have once the unit is committed.
+     */
+    static class Change {
+
+        /**
+         * Whether the key must already be stored, because it was first updated in this unit.
+         */
+        final boolean mustExist;
+
+        /**
+         * Whether the key must not be stored yet, because it was first created in this unit.
+         */
+        final boolean mustNotExist;
+
+        /**
+         * The version the record had when it was first added to this unit.
+         */
+        final int readVersion;
+
+        /**
+         * The record to store, or null if the key should be deleted.
+         */
+        Persistable record;
+
+        /**
+         * The caller's object that the record was copied from, which gets the stored version on commit.
+         */
+        Persistable source;
+
+        Change(boolean mustExist, boolean mustNotExist, int readVersion, Persistable record, Persistable source) {
+            this.mustExist = mustExist;
+            this.mustNotExist = mustNotExist;
+            this.readVersion = readVersion;
+            this.stage(record, source);
+        }
+
+        /**
+         * Replaces the record to store. An update is stored one version after the version it was read at.
+         */
+        void stage(Persistable record, Persistable source) {
+            if (record != null) record.setVersion(this.mustExist ? this.readVersion + 1 : this.readVersion);
+            this.record = record;
+            this.source = source;
+        }
+
+    }
+
+
+}
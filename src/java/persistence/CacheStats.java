@@ -0,0 +1,135 @@
+package persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps running totals of how well a CachingGateway is doing.
+ * All methods are safe to call while the cache is in use on other threads.
+ */
+public class CacheStats {
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Holds the hits, misses and evictions per type.
+     * "Class Name": {hits, misses, evictions}
+     */
+    private final Map<String, long[]> byType = new HashMap<>();
+
+
+    /**
+     * Adds lookups that were answered from the cache.
+     *
+     * @param typeName The class name of the type
+     * @param count    The number of records
+     */
+    synchronized void hit(String typeName, int count) {
+        this.hits += count;
+        this.of(typeName)[0] += count;
+    }
+
+
+    /**
+     * Adds lookups that had to be read from the gateway.
+     *
+     * @param typeName The class name of the type
+     * @param count    The number of records
+     */
+    synchronized void miss(String typeName, int count) {
+        this.misses += count;
+        this.of(typeName)[1] += count;
+    }
+
+
+    /**
+     * Adds a record that was dropped to keep the cache of its type within its capacity.
+     *
+     * @param typeName The class name of the type
+     */
+    synchronized void evict(String typeName) {
+        this.evictions++;
+        this.of(typeName)[2]++;
+    }
+
+
+    /**
+     * Returns the number of lookups that were answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+
+    /**
+     * Returns the number of lookups that had to be read from the gateway.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+
+    /**
+     * Returns the number of records that were dropped to keep the cache within its capacity.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+
+    /**
+     * Returns the share of lookups that were answered from the cache.
+     *
+     * @return a number between 0 and 1, or 0 if there have been no lookups
+     */
+    public synchronized double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+
+    /**
+     * Returns the hits, misses and evictions of each type.
+     *
+     * @return a map of class names to {hits, misses, evictions}
+     */
+    public synchronized Map<String, long[]> getByType() {
+        Map<String, long[]> copy = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : this.byType.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+
+    /**
+     * Prints the string representation of these stats.
+     *
+     * @return a string
+     */
+    @Override
+    public synchronized String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", hitRate=" + this.getHitRate() +
+                '}';
+    }
+
+
+    private long[] of(String typeName) {
+        return this.byType.computeIfAbsent(typeName, name -> new long[3]);
+    }
+
+
+}
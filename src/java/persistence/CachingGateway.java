@@ -0,0 +1,376 @@
+package persistence;
+
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+
+
+/**
+ * Wraps a gateway with a cache of records read by primary key, shared by every thread.
+ * Each type has its own cache, holding at most a set number of records, so that a type with many cold records,
+ * like History, cannot push out the Users and Items that are read all the time. Which records a full cache
+ * keeps is decided by how often they are read, see TinyLfuCache.
+ * <p>
+ * The cache holds the encoded bytes of each record, and every read decodes a new copy, so callers can change
+ * what they get back the same way they can with any other gateway. Only get is served from the cache;
+ * findBy, all and stream go to the wrapped gateway, so that a scan does not fill the cache with records
+ * read once. Records that are saved, deleted or changed by a unit of work are dropped from the cache,
+ * and read again the next time. Reads inside a Snapshot bypass the cache, so that they see the snapshot.
+ */
+public class CachingGateway implements PersistenceInterface {
+
+    /**
+     * The gateway that records are read from and written to.
+     */
+    private final PersistenceInterface gateway;
+
+    /**
+     * Turns cached records into bytes, and back into copies.
+     */
+    private final EntityCodec codec;
+
+    /**
+     * The most records cached of a type that has no capacity of its own.
+     */
+    private final int defaultCapacity;
+
+    /**
+     * {class name: the most records cached of that type}
+     */
+    private final Map<String, Integer> capacities;
+
+    /**
+     * {class name: cache}
+     */
+    private final Map<String, TinyLfuCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * Reads hold the read lock of a type from looking up a record until it is cached, and writes hold the write lock
+     * until the records they changed are dropped, so a record read before a write can never be cached after it.
+     */
+    private final TypeLocks locks = new TypeLocks();
+
+    /**
+     * The number of snapshots pinned on each thread, during which the cache is bypassed.
+     */
+    private final ThreadLocal<Integer> pinned = ThreadLocal.withInitial(() -> 0);
+
+    private final CacheStats stats = new CacheStats();
+
+
+    /**
+     * Initializes this gateway, caching records with BinaryCodec.
+     *
+     * @param gateway         The gateway that records are read from and written to
+     * @param defaultCapacity The most records cached of a type that is not in capacities
+     * @param capacities      {class name: the most records cached of that type}
+     */
+    public CachingGateway(PersistenceInterface gateway, int defaultCapacity, Map<String, Integer> capacities) {
+        this(gateway, new BinaryCodec(), defaultCapacity, capacities);
+    }
+
+
+    /**
+     * Initializes this gateway.
+     *
+     * @param gateway         The gateway that records are read from and written to
+     * @param codec           Turns cached records into bytes, and back into copies
+     * @param defaultCapacity The most records cached of a type that is not in capacities
+     * @param capacities      {class name: the most records cached of that type}
+     */
+    public CachingGateway(PersistenceInterface gateway, EntityCodec codec, int defaultCapacity, Map<String, Integer> capacities) {
+        this.gateway = gateway;
+        this.codec = codec;
+        this.defaultCapacity = defaultCapacity;
+        this.capacities = new HashMap<>(capacities);
+    }
+
+
+    /**
+     * Returns how often reads were served from the cache, and how many records were evicted.
+     *
+     * @return The stats of this cache
+     */
+    public CacheStats getCacheStats() {
+        return this.stats;
+    }
+
+
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        if (this.pinned.get() > 0) return this.gateway.get(id, type);
+
+        TinyLfuCache cache = this.cacheOf(type);
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            byte[] cached = cache.get(id);
+            if (cached != null) return type.cast(this.codec.decode(cached));
+            T record = this.gateway.get(id, type);
+            if (record != null) cache.put(id, this.codec.encode((Persistable) record));
+            return record;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        if (this.pinned.get() > 0) return this.gateway.get(idList, type);
+
+        TinyLfuCache cache = this.cacheOf(type);
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            //Only the records that are not cached are read, all in one call
+            Map<Integer, T> found = new HashMap<>();
+            List<Integer> missing = new ArrayList<>();
+            for (Integer id : new LinkedHashSet<>(idList)) {
+                byte[] cached = cache.get(id);
+                if (cached != null) found.put(id, type.cast(this.codec.decode(cached)));
+                else missing.add(id);
+            }
+            if (missing.size() != 0) {
+                for (T record : this.gateway.get(missing, type)) {
+                    int key = ((Persistable) record).getKey();
+                    cache.put(key, this.codec.encode((Persistable) record));
+                    found.put(key, record);
+                }
+            }
+
+            List<T> result = new ArrayList<>();
+            for (Integer id : new LinkedHashSet<>(idList)) {
+                T record = found.get(id);
+                if (record != null) result.add(record);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+        return this.gateway.findBy(field, value, type);
+    }
+
+
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+        return this.gateway.all(type);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.gateway.stream(type);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+        return this.gateway.stream(type, filter);
+    }
+
+
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+        Snapshot snapshot = this.gateway.snapshot(types);
+        this.pinned.set(this.pinned.get() + 1);
+        return () -> {
+            snapshot.close();
+            this.pinned.set(this.pinned.get() - 1);
+        };
+    }
+
+
+    /**
+     * Creates records in the wrapped gateway. Nothing is cached yet: new records are cached when they are first read.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+        return this.gateway.create(newObjList, type);
+    }
+
+
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        return this.gateway.create(newObject, type);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        List<Integer> keys = new ArrayList<>();
+        for (T record : updateObjList) {
+            keys.add(record.getKey());
+        }
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            return this.gateway.update(updateObjList, type);
+        } finally {
+            //Dropped whether or not the update succeeded, since part of it may have been saved
+            this.invalidate(type, keys);
+            lock.unlock();
+        }
+
+    }
+
+
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            return this.gateway.delete(idList, type);
+        } finally {
+            this.invalidate(type, idList);
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public <T> boolean remove(Class<T> type) {
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            return this.gateway.remove(type);
+        } finally {
+            this.cacheOf(type).clear();
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Starts a unit of work on the wrapped gateway. While it commits, the records it changes cannot be cached,
+     * and once it is committed, or fails to commit, they are dropped from the cache.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        //{type: the keys that were updated or deleted}
+        Map<Class<?>, List<Integer>> touched = new HashMap<>();
+        return new UnitOfWork() {
+            @Override
+            public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException {
+                return unit.create(newObjList, type);
+            }
+
+            @Override
+            public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+                return unit.create(newObject, type);
+            }
+
+            @Override
+            public <T extends Persistable> void update(List<T> updateObjList, Class<T> type) throws IOException {
+                unit.update(updateObjList, type);
+                List<Integer> keys = touched.computeIfAbsent(type, t -> new ArrayList<>());
+                for (T record : updateObjList) {
+                    keys.add(record.getKey());
+                }
+            }
+
+            @Override
+            public <T extends Persistable> void update(T updateObj, Class<T> type) throws IOException {
+                unit.update(updateObj, type);
+                touched.computeIfAbsent(type, t -> new ArrayList<>()).add(updateObj.getKey());
+            }
+
+            @Override
+            public <T> void delete(List<Integer> idList, Class<T> type) {
+                unit.delete(idList, type);
+                touched.computeIfAbsent(type, t -> new ArrayList<>()).addAll(idList);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                Set<String> typeNames = new HashSet<>();
+                for (Class<?> type : touched.keySet()) {
+                    typeNames.add(type.getName());
+                }
+                List<Lock> taken = locks.writeAll(typeNames);
+                try {
+                    unit.commit();
+                } finally {
+                    for (Map.Entry<Class<?>, List<Integer>> entry : touched.entrySet()) {
+                        invalidate(entry.getKey(), entry.getValue());
+                    }
+                    locks.unlock(taken);
+                }
+            }
+        };
+
+    }
+
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return this.gateway.whenDurable();
+    }
+
+
+    /**
+     * Warms up the wrapped gateway. The cache itself is filled by the reads that follow,
+     * since which records are worth keeping is only known once they are read.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.gateway.warmUp(type);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private TinyLfuCache cacheOf(Class<?> type) {
+        return this.caches.computeIfAbsent(type.getName(), typeName ->
+                new TinyLfuCache(typeName, this.capacities.getOrDefault(typeName, this.defaultCapacity), this.stats));
+    }
+
+
+    private void invalidate(Class<?> type, Collection<Integer> keys) {
+        TinyLfuCache cache = this.cacheOf(type);
+        for (Integer key : keys) {
+            cache.invalidate(key);
+        }
+    }
+
+
+}
@@ -0,0 +1,109 @@
+package persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps running totals of what journal compaction has achieved.
+ * All methods are safe to call while a compaction is running on another thread.
+ */
+public class CompactionStats {
+
+    private int compactions;
+    private long bytesReclaimed;
+    private long recordsDropped;
+    private long replayNanosSaved;
+
+    /**
+     * Holds the bytes reclaimed per type.
+     * "Class Name": bytes
+     */
+    private final Map<String, Long> bytesReclaimedByType = new HashMap<>();
+
+
+    /**
+     * Adds one compaction to the totals.
+     *
+     * @param typeName         The class name of the type that was compacted
+     * @param bytesReclaimed   The number of bytes no longer on disk
+     * @param recordsDropped   The number of records that no longer need to be replayed
+     * @param replayNanosSaved The estimated time no longer spent replaying those records on startup
+     */
+    synchronized void record(String typeName, long bytesReclaimed, long recordsDropped, long replayNanosSaved) {
+        this.compactions++;
+        this.bytesReclaimed += bytesReclaimed;
+        this.recordsDropped += recordsDropped;
+        this.replayNanosSaved += replayNanosSaved;
+        this.bytesReclaimedByType.merge(typeName, bytesReclaimed, Long::sum);
+    }
+
+
+    /**
+     * Returns the number of compactions that have run.
+     *
+     * @return the number of compactions
+     */
+    public synchronized int getCompactions() {
+        return this.compactions;
+    }
+
+
+    /**
+     * Returns the total number of bytes that compaction has removed from disk.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getBytesReclaimed() {
+        return this.bytesReclaimed;
+    }
+
+
+    /**
+     * Returns the number of bytes that compaction has removed from disk for each type.
+     *
+     * @return a map of class names to bytes
+     */
+    public synchronized Map<String, Long> getBytesReclaimedByType() {
+        return new HashMap<>(this.bytesReclaimedByType);
+    }
+
+
+    /**
+     * Returns the total number of records that no longer need to be replayed on startup.
+     *
+     * @return the number of records
+     */
+    public synchronized long getRecordsDropped() {
+        return this.recordsDropped;
+    }
+
+
+    /**
+     * Returns an estimate of the time no longer spent replaying records on startup.
+     * This is based on how fast each type was replayed when it was loaded.
+     *
+     * @return the time in milliseconds
+     */
+    public synchronized long getReplayTimeSavedMillis() {
+        return this.replayNanosSaved / 1000000;
+    }
+
+
+    /**
+     * Prints the string representation of these stats.
+     *
+     * @return a string
+     */
+    @Override
+    public synchronized String toString() {
+        return "CompactionStats{" +
+                "compactions=" + compactions +
+                ", bytesReclaimed=" + bytesReclaimed +
+                ", recordsDropped=" + recordsDropped +
+                ", replayTimeSavedMillis=" + this.getReplayTimeSavedMillis() +
+                '}';
+    }
+
+
+}
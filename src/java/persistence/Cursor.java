@@ -0,0 +1,22 @@
+package persistence;
+
+import java.io.Closeable;
+
+
+/**
+ * The records of one type, read lazily from storage one at a time as the cursor is iterated.
+ * A cursor can only be iterated once, and must be closed when the caller is done with it,
+ * even if it stops early, since it may hold an open file or database connection:
+ * <p>
+ * try (Cursor<Item> items = gateway.stream(Item.class, item -> item.isVisible())) {
+ * for (Item item : items) {
+ * ...
+ * }
+ * }
+ * <p>
+ * If a record cannot be read while iterating, the iterator throws an UncheckedIOException.
+ *
+ * @param <T> the class type of the records
+ */
+public interface Cursor<T> extends Iterable<T>, Closeable {
+}
@@ -0,0 +1,372 @@
+package persistence;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+
+/**
+ * Holds the stored records of one entity type in memory, indexed by their primary key,
+ * so that looking up a record by its key does not need to go through the whole table.
+ * Records are kept in the order they were first stored.
+ * Fields of the type that are marked as Indexed are indexed as well, and are kept up to date on every put and remove.
+ * <p>
+ * The records held here belong to the gateway. They must never be handed out to callers, only copies of them.
+ * <p>
+ * Every put and remove also publishes a new Version of the table, which never changes, so that a snapshot only has to
+ * pin a reference. A version is an earlier table plus the changes made since, and is only turned into a table of its own
+ * by the first reader that needs one, after it has let go of the lock of the type. Once the changes since the earlier
+ * table outnumber its records, the next write turns the latest version into a table first, so that versions stay short,
+ * at a cost that works out to a copy of one record per write.
+ */
+class EntityTable {
+
+    /**
+     * {primary key: record}
+     */
+    private final Map<Integer, Persistable> records = new LinkedHashMap<>();
+
+    /**
+     * {field name: field}
+     */
+    private final Map<String, Field> indexedFields = new HashMap<>();
+
+    /**
+     * {field name: {field value: primary keys}}
+     */
+    private final Map<String, Map<Object, Set<Integer>>> indexes = new HashMap<>();
+
+    /**
+     * The table as of the last put or remove. Null for the tables that versions are turned into, which never change.
+     */
+    private volatile Version published;
+
+    /**
+     * The fewest changes a version holds before the next write turns it into a table.
+     */
+    private static final int MIN_VERSION_CHANGES = 64;
+
+
+    /**
+     * Initializes an empty table, with an index for every Indexed field of the type and its superclasses.
+     *
+     * @param type The type of the records
+     */
+    EntityTable(Class<?> type) {
+        this.indexedFields.putAll(indexedFieldsOf(type));
+        for (String name : this.indexedFields.keySet()) {
+            this.indexes.put(name, new HashMap<>());
+        }
+        this.published = new Version(new EntityTable(this), null, 0);
+    }
+
+
+    /**
+     * Initializes a table that holds the same records and indexes as another, without sharing any of its maps.
+     * It publishes no versions, since it is only used for the tables that versions are turned into.
+     *
+     * @param other The table to copy
+     */
+    private EntityTable(EntityTable other) {
+        this.records.putAll(other.records);
+        this.indexedFields.putAll(other.indexedFields);
+        for (Map.Entry<String, Map<Object, Set<Integer>>> entry : other.indexes.entrySet()) {
+            Map<Object, Set<Integer>> index = new HashMap<>();
+            for (Map.Entry<Object, Set<Integer>> keys : entry.getValue().entrySet()) {
+                index.put(keys.getKey(), new TreeSet<>(keys.getValue()));
+            }
+            this.indexes.put(entry.getKey(), index);
+        }
+    }
+
+
+    /**
+     * Returns the Indexed fields of a type and its superclasses, made accessible.
+     *
+     * @param type The type of the records
+     * @return {field name: field}, in the order they are declared
+     */
+    static Map<String, Field> indexedFieldsOf(Class<?> type) {
+        Map<String, Field> fields = new LinkedHashMap<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Indexed.class)) {
+                    field.setAccessible(true);
+                    fields.put(field.getName(), field);
+                }
+            }
+        }
+        return fields;
+    }
+
+
+    /**
+     * Returns the value of an Indexed field of a record.
+     *
+     * @param field  The field, as returned by indexedFieldsOf
+     * @param record The record
+     * @return The value of the field
+     */
+    static Object valueOf(Field field, Persistable record) {
+        try {
+            return field.get(record);
+        } catch (IllegalAccessException e) {
+            //The field was made accessible by indexedFieldsOf
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Returns the record with this primary key.
+     *
+     * @param key The primary key
+     * @return The record, or null if there is none
+     */
+    Persistable get(int key) {
+        return this.records.get(key);
+    }
+
+
+    /**
+     * Returns the records with these primary keys, in the order of the keys.
+     * Keys that do not exist, or that appear more than once, are skipped.
+     *
+     * @param keys The primary keys
+     * @return The records
+     */
+    List<Persistable> get(Collection<Integer> keys) {
+        List<Persistable> result = new ArrayList<>();
+        for (Integer key : new LinkedHashSet<>(keys)) {
+            Persistable record = this.records.get(key);
+            if (record != null) result.add(record);
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the records whose indexed field has this value, in the order of their primary keys.
+     *
+     * @param field The name of the field
+     * @param value The value of the field
+     * @return The records
+     * @throws IllegalArgumentException If the field is not indexed
+     */
+    List<Persistable> findBy(String field, Object value) {
+        Map<Object, Set<Integer>> index = this.indexes.get(field);
+        if (index == null) throw new IllegalArgumentException(field + " is not an indexed field.");
+        Set<Integer> keys = index.get(value);
+        if (keys == null) return new ArrayList<>();
+        return this.get(keys);
+    }
+
+
+    /**
+     * Checks whether there is a record with this primary key.
+     *
+     * @param key The primary key
+     * @return true iff there is a record
+     */
+    boolean contains(int key) {
+        return this.records.containsKey(key);
+    }
+
+
+    /**
+     * Returns every record, in the order they were first stored.
+     *
+     * @return An unmodifiable view of the records
+     */
+    Collection<Persistable> all() {
+        return Collections.unmodifiableCollection(this.records.values());
+    }
+
+
+    /**
+     * Stores a record, replacing the record with the same primary key if there is one.
+     *
+     * @param record The record
+     */
+    void put(Persistable record) {
+        this.publish(record.getKey(), record);
+        Persistable replaced = this.records.put(record.getKey(), record);
+        if (replaced != null) this.unindex(replaced);
+        this.index(record);
+    }
+
+
+    /**
+     * Removes the record with this primary key.
+     *
+     * @param key The primary key
+     * @return The removed record, or null if there was none
+     */
+    Persistable remove(int key) {
+        this.publish(key, null);
+        Persistable removed = this.records.remove(key);
+        if (removed != null) this.unindex(removed);
+        return removed;
+    }
+
+
+    /**
+     * Returns a list holding one record of the table, or no records if the table is empty.
+     * Every record in a table is of the same type, so this is all that is needed to check the type of new records.
+     *
+     * @return A list of at most one record
+     */
+    List<Persistable> sample() {
+        if (this.records.isEmpty()) return Collections.emptyList();
+        return Collections.singletonList(this.records.values().iterator().next());
+    }
+
+
+    /**
+     * Returns the table as it is now, as a version that never changes. Only pins a reference, so it costs the same
+     * however large the table is. Must be called while the table cannot change, for example under the read lock of
+     * its type, and the version turned into a table with Version.table after the lock is released.
+     *
+     * @return The latest version
+     */
+    Version version() {
+        return this.published;
+    }
+
+
+    /**
+     * Returns the number of records.
+     *
+     * @return The number of records
+     */
+    int size() {
+        return this.records.size();
+    }
+
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Publishes the version of the table that has one more change than the latest.
+     *
+     * @param key    The primary key of the changed record
+     * @param record The record that is stored from now on, or null if it is removed
+     */
+    private void publish(int key, Persistable record) {
+        Version latest = this.published;
+        if (latest == null) return;
+        EntityTable base = latest.table;
+        if (base == null && latest.changeCount >= Math.max(MIN_VERSION_CHANGES, latest.base.size())) {
+            base = latest.table();
+        }
+        if (base != null) this.published = new Version(base, new Change(key, record, null), 1);
+        else this.published = new Version(latest.base, new Change(key, record, latest.changes), latest.changeCount + 1);
+    }
+
+
+    private void index(Persistable record) {
+        for (Map.Entry<String, Field> entry : this.indexedFields.entrySet()) {
+            Object value = valueOf(entry.getValue(), record);
+            this.indexes.get(entry.getKey()).computeIfAbsent(value, v -> new TreeSet<>()).add(record.getKey());
+        }
+    }
+
+
+    private void unindex(Persistable record) {
+        for (Map.Entry<String, Field> entry : this.indexedFields.entrySet()) {
+            Map<Object, Set<Integer>> index = this.indexes.get(entry.getKey());
+            Object value = valueOf(entry.getValue(), record);
+            Set<Integer> keys = index.get(value);
+            if (keys == null) continue;
+            keys.remove(record.getKey());
+            if (keys.isEmpty()) index.remove(value);
+        }
+    }
+
+
+    /**
+     * The table as it was at one point, which never changes: an earlier table, plus the changes made to it since.
+     */
+    static final class Version {
+
+        /**
+         * The earlier table, which never changes.
+         */
+        private final EntityTable base;
+
+        /**
+         * The changes made since base, newest first, or null if there are none.
+         */
+        private final Change changes;
+
+        private final int changeCount;
+
+        /**
+         * The changes applied to a copy of base, once a reader or writer has needed them.
+         */
+        private volatile EntityTable table;
+
+        private Version(EntityTable base, Change changes, int changeCount) {
+            this.base = base;
+            this.changes = changes;
+            this.changeCount = changeCount;
+            if (changes == null) this.table = base;
+        }
+
+        /**
+         * Returns the table as it was at this version, which must never be changed.
+         * The first call copies the earlier table and applies the changes, without holding any lock of the type,
+         * and every later call returns the same table.
+         *
+         * @return The table
+         */
+        EntityTable table() {
+            EntityTable built = this.table;
+            if (built != null) return built;
+            synchronized (this) {
+                if (this.table != null) return this.table;
+                Deque<Change> oldestFirst = new ArrayDeque<>();
+                for (Change change = this.changes; change != null; change = change.previous) {
+                    oldestFirst.push(change);
+                }
+                built = new EntityTable(this.base);
+                for (Change change : oldestFirst) {
+                    if (change.record == null) built.remove(change.key);
+                    else built.put(change.record);
+                }
+                this.table = built;
+                return built;
+            }
+        }
+
+    }
+
+
+    /**
+     * One put or remove, linked to the change before it.
+     */
+    private static final class Change {
+
+        private final int key;
+
+        /**
+         * The record stored from this change on, or null if it was removed.
+         */
+        private final Persistable record;
+
+        private final Change previous;
+
+        private Change(int key, Persistable record, Change previous) {
+            this.key = key;
+            this.record = record;
+            this.previous = previous;
+        }
+
+    }
+
+
+}
@@ -0,0 +1,351 @@
+package persistence;
+
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+
+/**
+ * Wraps a gateway with an identity map per scope, where a scope is usually one HTTP request.
+ * Within a scope, each record is read from the wrapped gateway at most once, and every read of it
+ * returns the same instance, so code that looks up the same user many times while handling one request
+ * only pays for it once. Outside of a scope, every call goes straight to the wrapped gateway.
+ * <p>
+ * Since the instance is shared for the rest of the scope, changes made to it are seen by every later read
+ * in the scope, whether they have been saved or not. Saved records replace the instance in the map,
+ * and records whose save failed, or that were saved through a unit of work, are read again the next time.
+ * Reads inside a Snapshot bypass the map, so that they see the snapshot.
+ */
+public class IdentityMapGateway implements PersistenceInterface {
+
+    /**
+     * The gateway that records are read from and written to.
+     */
+    private final PersistenceInterface gateway;
+
+    /**
+     * The identity map of the scope open on each thread. {type: {primary key: record}}
+     */
+    private final ThreadLocal<Map<Class<?>, Map<Integer, Object>>> scope = new ThreadLocal<>();
+
+    /**
+     * The number of snapshots pinned on each thread, during which the map is bypassed.
+     */
+    private final ThreadLocal<Integer> pinned = ThreadLocal.withInitial(() -> 0);
+
+
+    /**
+     * Initializes this gateway.
+     *
+     * @param gateway The gateway that records are read from and written to
+     */
+    public IdentityMapGateway(PersistenceInterface gateway) {
+        this.gateway = gateway;
+    }
+
+
+    /**
+     * Opens a scope on the current thread, with an empty identity map. A scope that is already open is cleared.
+     */
+    public void beginScope() {
+        this.scope.set(new HashMap<>());
+    }
+
+
+    /**
+     * Closes the scope of the current thread, dropping its identity map.
+     */
+    public void endScope() {
+        this.scope.remove();
+    }
+
+
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        Map<Integer, Object> records = this.recordsOf(type);
+        if (records == null) return this.gateway.get(id, type);
+
+        Object cached = records.get(id);
+        if (cached != null) return type.cast(cached);
+        T record = this.gateway.get(id, type);
+        if (record != null) records.put(id, record);
+        return record;
+
+    }
+
+
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        Map<Integer, Object> records = this.recordsOf(type);
+        if (records == null) return this.gateway.get(idList, type);
+
+        //Only the records that are not mapped yet are read, all in one call
+        List<Integer> missing = new ArrayList<>();
+        for (Integer id : idList) {
+            if (!records.containsKey(id)) missing.add(id);
+        }
+        if (missing.size() != 0) {
+            for (T record : this.gateway.get(missing, type)) {
+                records.put(((Persistable) record).getKey(), record);
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (Integer id : new LinkedHashSet<>(idList)) {
+            Object record = records.get(id);
+            if (record != null) result.add(type.cast(record));
+        }
+        return result;
+
+    }
+
+
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+        return this.canonical(this.gateway.findBy(field, value, type), type);
+    }
+
+
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+        return this.canonical(this.gateway.all(type), type);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.stream(type, record -> true);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+
+        Cursor<T> cursor = this.gateway.stream(type, filter);
+        if (this.recordsOf(type) == null) return cursor;
+
+        Iterator<T> records = cursor.iterator();
+        return new AbstractCursor<T>() {
+            @Override
+            protected T fetch() {
+                return records.hasNext() ? canonical(records.next(), type) : null;
+            }
+
+            @Override
+            protected void release() throws IOException {
+                cursor.close();
+            }
+        };
+
+    }
+
+
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+        Snapshot snapshot = this.gateway.snapshot(types);
+        this.pinned.set(this.pinned.get() + 1);
+        return () -> {
+            snapshot.close();
+            this.pinned.set(this.pinned.get() - 1);
+        };
+    }
+
+
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+        List<T> created = this.gateway.create(newObjList, type);
+        this.remember(created, type);
+        return created;
+    }
+
+
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        return this.create(objectList, type).get(0);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        boolean updated;
+        try {
+            updated = this.gateway.update(updateObjList, type);
+        } catch (IOException | RuntimeException e) {
+            //The mapped records may be out of date, for example after a VersionConflictException, so they are read again
+            this.forget(this.keysOf(updateObjList), type);
+            throw e;
+        }
+        this.remember(updateObjList, type);
+        return updated;
+
+    }
+
+
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+        this.forget(idList, type);
+        return this.gateway.delete(idList, type);
+    }
+
+
+    @Override
+    public <T> boolean remove(Class<T> type) {
+        Map<Class<?>, Map<Integer, Object>> records = this.scope.get();
+        if (records != null) records.remove(type);
+        return this.gateway.remove(type);
+    }
+
+
+    /**
+     * Starts a unit of work on the wrapped gateway. Once it is committed, or fails to commit,
+     * every type it touched is read again the next time.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        Set<Class<?>> touched = new HashSet<>();
+        return new UnitOfWork() {
+            @Override
+            public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException {
+                touched.add(type);
+                return unit.create(newObjList, type);
+            }
+
+            @Override
+            public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+                touched.add(type);
+                return unit.create(newObject, type);
+            }
+
+            @Override
+            public <T extends Persistable> void update(List<T> updateObjList, Class<T> type) throws IOException {
+                touched.add(type);
+                unit.update(updateObjList, type);
+            }
+
+            @Override
+            public <T extends Persistable> void update(T updateObj, Class<T> type) throws IOException {
+                touched.add(type);
+                unit.update(updateObj, type);
+            }
+
+            @Override
+            public <T> void delete(List<Integer> idList, Class<T> type) {
+                touched.add(type);
+                unit.delete(idList, type);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                try {
+                    unit.commit();
+                } finally {
+                    Map<Class<?>, Map<Integer, Object>> records = scope.get();
+                    if (records != null) records.keySet().removeAll(touched);
+                }
+            }
+        };
+
+    }
+
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return this.gateway.whenDurable();
+    }
+
+
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.gateway.warmUp(type);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Returns the identity map of a type in the scope of this thread, or null if there is no scope,
+     * or a snapshot is pinned.
+     */
+    private Map<Integer, Object> recordsOf(Class<?> type) {
+        Map<Class<?>, Map<Integer, Object>> records = this.scope.get();
+        if (records == null || this.pinned.get() > 0) return null;
+        return records.computeIfAbsent(type, t -> new HashMap<>());
+    }
+
+
+    /**
+     * Replaces records that were just read with the instances already mapped for their keys, and maps the rest.
+     */
+    private <T> List<T> canonical(List<T> read, Class<T> type) {
+        if (this.recordsOf(type) == null) return read;
+        List<T> result = new ArrayList<>(read.size());
+        for (T record : read) {
+            result.add(this.canonical(record, type));
+        }
+        return result;
+    }
+
+
+    private <T> T canonical(T record, Class<T> type) {
+        Map<Integer, Object> records = this.recordsOf(type);
+        if (records == null) return record;
+        Object mapped = records.putIfAbsent(((Persistable) record).getKey(), record);
+        return mapped == null ? record : type.cast(mapped);
+    }
+
+
+    /**
+     * Maps records that were just saved, replacing whatever was mapped for their keys.
+     */
+    private <T extends Persistable> void remember(List<T> saved, Class<T> type) {
+        Map<Integer, Object> records = this.recordsOf(type);
+        if (records == null) return;
+        for (T record : saved) {
+            records.put(record.getKey(), record);
+        }
+    }
+
+
+    private void forget(Collection<Integer> keys, Class<?> type) {
+        Map<Integer, Object> records = this.recordsOf(type);
+        if (records == null) return;
+        records.keySet().removeAll(keys);
+    }
+
+
+    private <T extends Persistable> List<Integer> keysOf(List<T> records) {
+        List<Integer> keys = new ArrayList<>();
+        for (T record : records) {
+            keys.add(record.getKey());
+        }
+        return keys;
+    }
+
+
+}
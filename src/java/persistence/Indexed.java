@@ -0,0 +1,19 @@
+package persistence;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/**
+ * Marks a field of a Persistable class as a secondary index.
+ * The persistence gateways keep an index of the stored records by the value of this field,
+ * so that they can be looked up through PersistenceInterface.findBy without going through the whole table.
+ * For example, to look up the items of a user:
+ * gateway.findBy("ownerId", userId, Item.class);
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+}
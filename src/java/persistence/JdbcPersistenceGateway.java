@@ -0,0 +1,1096 @@
+package persistence;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import javax.sql.DataSource;
+
+
+/**
+ * Persists each entity type to its own table in an embedded database, by default H2 in file mode.
+ * <p>
+ * Each table has a column for the primary key, one for the version, one for the serialized entity,
+ * and one for each Indexed field of the type, with a database index on it so that findBy does not scan the table.
+ * Tables are created the first time a type is used. If a type has a journal written by JournalPersistenceGateway,
+ * its records and key sequence are imported into the new table, or else its .ser file written by SerPersistenceGateway.
+ * <p>
+ * Every statement is prepared. The list variants of create and update send all of their rows in one JDBC batch,
+ * and get of a list of id's looks them up with one IN (...) query, instead of one query per record.
+ * Connections are borrowed from a pool instead of opened for each call, so each one stays open and keeps
+ * the statements it has already prepared in the database's statement cache for the next call that borrows it.
+ * <p>
+ * Reads run in parallel and rely on the database for isolation. Writes to a type run one at a time,
+ * so that primary keys and versions are checked and assigned without racing other writes.
+ * Each write, and each unit of work, runs in a single database transaction.
+ */
+public class JdbcPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
+
+    /**
+     * The database used when no other is given. DB_CLOSE_DELAY keeps it open between connections,
+     * and QUERY_CACHE_SIZE lets each connection keep the prepared statements of every type.
+     */
+    public static final String DEFAULT_URL = "jdbc:h2:file:./database/trading;DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=64";
+
+    /**
+     * The most connections a pool made from a url keeps open.
+     */
+    public static final int DEFAULT_POOL_SIZE = 10;
+
+    /**
+     * The most id's that are put into one IN (...) list.
+     */
+    private static final int MAX_IN_PARAMETERS = 500;
+
+    /**
+     * The number of rows a cursor asks the database for at a time.
+     */
+    private static final int STREAM_FETCH_SIZE = 100;
+
+    /**
+     * The pool that connections to the database are borrowed from.
+     */
+    private final DataSource dataSource;
+
+    /**
+     * The Indexed fields of each type whose table is known to exist.
+     * "Class Name": {field name: field}
+     */
+    private final Map<String, Map<String, Field>> tables = new ConcurrentHashMap<>();
+
+    /**
+     * The read/write lock of each type. Only writes and table creation take them.
+     */
+    private final TypeLocks locks = new TypeLocks();
+
+    /**
+     * Used to import the .ser files of types that were saved before a database was used.
+     */
+    private final SerPersistenceGateway legacy;
+
+    /**
+     * Used to read the journals of types that were saved before a database was used.
+     */
+    private final EntityCodec codec;
+
+
+    /**
+     * Initializes a gateway to the default H2 database, ./database/trading.mv.db
+     */
+    public JdbcPersistenceGateway() {
+        this(DEFAULT_URL);
+    }
+
+
+    /**
+     * Initializes a gateway to any database with a JDBC driver on the classpath, through a new pool of connections.
+     *
+     * @param url The JDBC url of the database
+     */
+    public JdbcPersistenceGateway(String url) {
+        this(url, new BinaryCodec());
+    }
+
+
+    /**
+     * Initializes a gateway that stores records with the given codec, through a new pool of connections.
+     *
+     * @param url   The JDBC url of the database
+     * @param codec Turns records into the bytes that are stored, and back
+     */
+    public JdbcPersistenceGateway(String url, EntityCodec codec) {
+        this(pool(url, DEFAULT_POOL_SIZE), codec);
+    }
+
+
+    /**
+     * Initializes a gateway that borrows its connections from a pool.
+     * Cursors hold on to a connection until they are closed, so the pool should have room for them.
+     *
+     * @param dataSource The pool of connections to the database
+     * @param codec      Turns records into the bytes that are stored, and back
+     */
+    public JdbcPersistenceGateway(DataSource dataSource, EntityCodec codec) {
+        super(codec);
+        this.dataSource = dataSource;
+        this.legacy = new SerPersistenceGateway(false, codec);
+        this.codec = codec;
+    }
+
+
+    /**
+     * Creates a pool of connections to a database.
+     *
+     * @param url  The JDBC url of the database
+     * @param size The most connections the pool keeps open
+     * @return A new pool, which should be closed when it is no longer used
+     */
+    public static HikariDataSource pool(String url, int size) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setMaximumPoolSize(size);
+        config.setPoolName("persistence");
+        return new HikariDataSource(config);
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) {
+            Persistable p = pinned.get(id);
+            return p == null ? null : type.cast(this.copy(p));
+        }
+
+        this.ensureTable(type);
+        try (Connection connection = this.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT \"record\" FROM " + this.tableOf(type) + " WHERE \"id\" = ?")) {
+            statement.setInt(1, id);
+            try (ResultSet rows = statement.executeQuery()) {
+                if (!rows.next()) return null;
+                return type.cast(this.decode(rows.getBytes(1)));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of idList. Id's that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.get(idList), type);
+
+        this.ensureTable(type);
+        try (Connection connection = this.connect()) {
+            Map<Integer, Persistable> found = this.select(connection, type, idList);
+            List<T> result = new ArrayList<>();
+            for (Integer id : new LinkedHashSet<>(idList)) {
+                Persistable p = found.get(id);
+                if (p != null) result.add(type.cast(p));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Gets the records whose field has the given value, through the index on that field.
+     *
+     * @param field the name of the indexed field
+     * @param value the value that the field must have
+     * @param type  .class information about class T
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException              throws this exception if there is a IO error.
+     * @throws IllegalArgumentException throws this exception if the field is not indexed.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        if (!this.ensureTable(type).containsKey(field)) {
+            throw new IllegalArgumentException(field + " is not an indexed field.");
+        }
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.findBy(field, value), type);
+
+        try (Connection connection = this.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT \"record\" FROM " + this.tableOf(type) + " WHERE " + quote(field) + " = ? ORDER BY \"id\"")) {
+            statement.setObject(1, value);
+            return this.records(statement, type);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Gets all records that exist in a file/table with the given key.
+     * If a type has never been persisted before, we return an empty List since there are no entries to be found.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.all(), type);
+
+        this.ensureTable(type);
+        try (Connection connection = this.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT \"record\" FROM " + this.tableOf(type) + " ORDER BY \"id\"")) {
+            return this.records(statement, type);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Reads all records of a type lazily, one at a time, instead of reading them all into a List first.
+     * The cursor must be closed once the caller is done with it. See Cursor.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each record
+     * @return A cursor over all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.stream(type, record -> true);
+    }
+
+
+    /**
+     * Reads the records of a type that match a filter lazily, one at a time, from an open result set.
+     * The filter is a Java predicate, so it cannot become part of the query, but it is run as each row is decoded,
+     * so rows that do not match are dropped before they reach the caller.
+     * The connection stays open until the cursor is closed.
+     *
+     * @param type   .class information about class T.
+     * @param filter Whether a record should be handed out
+     * @param <T>    the class type of each record
+     * @return A cursor over the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.cursor(type, new ArrayList<>(pinned.all()), filter);
+
+        this.ensureTable(type);
+        Connection connection = null;
+        try {
+            connection = this.connect();
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT \"record\" FROM " + this.tableOf(type) + " ORDER BY \"id\"");
+            statement.setFetchSize(STREAM_FETCH_SIZE);
+            ResultSet rows = statement.executeQuery();
+            Connection open = connection;
+            return new AbstractCursor<T>() {
+
+                @Override
+                protected T fetch() throws IOException {
+                    try {
+                        while (rows.next()) {
+                            T record = type.cast(decode(rows.getBytes(1)));
+                            if (filter.test(record)) return record;
+                        }
+                        return null;
+                    } catch (SQLException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                protected void release() throws IOException {
+                    //Closing the connection closes its statement and result set as well
+                    try {
+                        open.close();
+                    } catch (SQLException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+            };
+        } catch (SQLException e) {
+            try {
+                if (connection != null) connection.close();
+            } catch (SQLException ignored) {
+                //The query already failed
+            }
+            throw new IOException(e);
+        }
+
+    }
+
+
+    /**
+     * Takes a consistent snapshot of the records of some types and pins it to the current thread. See Snapshot.
+     * The tables are read in one serializable, read-only transaction, which the database answers from its own
+     * multi-version storage, so no lock of this gateway is taken and writers are never held up.
+     * Each record is decoded once, and copied whenever it is read from the snapshot.
+     *
+     * @param types .class information about the types
+     * @return The snapshot, which must be closed on this thread
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+
+        for (Class<?> type : types) {
+            this.ensureTable(type);
+        }
+
+        Map<String, EntityTable> tables = new HashMap<>();
+        try (Connection connection = this.connect()) {
+            connection.setReadOnly(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            connection.setAutoCommit(false);
+            try {
+                for (Class<?> type : types) {
+                    EntityTable table = new EntityTable(type);
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT \"record\" FROM " + this.tableOf(type) + " ORDER BY \"id\"")) {
+                        for (Persistable p : this.records(statement, Persistable.class)) {
+                            table.put(p);
+                        }
+                    }
+                    tables.put(type.getName(), table);
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return this.pin(tables);
+
+    }
+
+
+    /**
+     * Saves new objects into persistence. Will not modify existing objects.
+     * These objects must be of the same type and implement the Persistable interface.
+     * If any one of the objects fail to be saved (due to, for example, a conflicting primary key), then none of them will be saved.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key,
+     * and save the object(s) with that primary key, and return an List of these objects
+     * with the primary key of that object updated.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        //First check if duplicates exist in our provided List, except 0
+        this.hasDuplicateKeys(newObjList);
+
+        this.ensureTable(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try (Connection connection = this.connect()) {
+            connection.setAutoCommit(false);
+            try {
+                //Keys come from the sequence of the type, so the table does not need to be queried for them
+                this.assignKeys(newObjList, type);
+
+                //We need to check if everything passed in is of the same type (not including subclasses).
+                if (!this.containsOneType(newObjList, this.sample(connection, type))) {
+                    throw new NonUniformObjectsException();
+                }
+
+                if (!this.select(connection, type, this.getListOfPrimaryKeys(newObjList)).isEmpty()) {
+                    throw new EntryExistsException();
+                }
+
+                this.insertRows(connection, type, newObjList);
+                connection.commit();
+            } catch (IOException | SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException IOException
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        return this.create(objectList, type).get(0);
+
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+
+    }
+
+
+    /**
+     * Updates the records with the same primary key in the current storage.
+     * Will keep records for primary keys which are not updated.
+     * If the ArrayList provided consists of objects of different types, a NonUniformObjectsException will be thrown.
+     * If a record is provided for which the primary key does not currently exist in storage, an EntryDoesNotExistException will be thrown.
+     * If any two records in updateObjList has the same primary key, an EntryExistsException will be thrown.
+     * If a record has been updated in storage since it was read, a VersionConflictException will be thrown.
+     * Otherwise every record that differs from what is stored is saved, and its version is increased by one.
+     * Records that are the same as what is stored are not written again, and keep their version.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        //First check if duplicates exist in our provided List
+        this.hasDuplicateKeys(updateObjList);
+
+        this.ensureTable(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try (Connection connection = this.connect()) {
+            connection.setAutoCommit(false);
+            try {
+                //Check we have only passed in one type of object.
+                if (!this.containsOneType(updateObjList, this.sample(connection, type))) {
+                    throw new NonUniformObjectsException();
+                }
+
+                //Check every object exists and was read at its stored version
+                Map<Integer, Integer> versions = this.versions(connection, type, this.getListOfPrimaryKeys(updateObjList));
+                for (Persistable p : updateObjList) {
+                    Integer version = versions.get(p.getKey());
+                    if (version == null) throw new EntryDoesNotExistException();
+                    if (version != p.getVersion()) throw new VersionConflictException();
+                }
+
+                //Objects that are the same as what is stored keep their version, and are not written
+                Map<Integer, byte[]> stored = this.storedBytes(connection, type, versions.keySet());
+                List<T> changed = new ArrayList<>();
+                for (T p : updateObjList) {
+                    if (!this.isUnchanged(p, stored.get(p.getKey()))) changed.add(p);
+                }
+                if (changed.isEmpty()) {
+                    connection.rollback();
+                    return true;
+                }
+
+                this.shiftVersions(changed, 1);
+                try {
+                    this.updateRows(connection, type, changed);
+                    connection.commit();
+                } catch (IOException | SQLException e) {
+                    this.shiftVersions(changed, -1);
+                    throw e;
+                }
+            } catch (IOException | SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        if (idList.isEmpty()) return false;
+
+        this.ensureTable(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try (Connection connection = this.connect()) {
+            return this.deleteRows(connection, type, idList) > 0;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Removes all records relating to this key.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the table exists and was successfully dropped, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try (Connection connection = this.connect()) {
+            boolean exists = this.tableExists(connection, type);
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DROP TABLE IF EXISTS " + this.tableOf(type));
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM " + this.sequenceTable(connection) + " WHERE \"type\" = ?")) {
+                statement.setString(1, type.getName());
+                statement.executeUpdate();
+            }
+            this.resetKeys(type);
+            this.tables.remove(type.getName());
+            boolean legacyRemoved = this.legacy.remove(type);
+            return exists || legacyRemoved;
+        } catch (SQLException e) {
+            System.out.println("Could not drop the table of " + type.getName() + ": " + e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work, which saves creates, updates and deletes across entity types together when committed.
+     * The unit is saved in one database transaction.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        return new JdbcUnitOfWork();
+    }
+
+
+    /**
+     * Each create, update and delete is committed before it returns, so they are already durable.
+     *
+     * @return A future that is already complete
+     */
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+
+    /**
+     * Creates the table of a type if it does not exist yet, importing its .ser file if it has one.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.ensureTable(type);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    private Connection connect() throws SQLException {
+        return this.dataSource.getConnection();
+    }
+
+
+    private static String quote(String identifier) {
+        return "\"" + identifier + "\"";
+    }
+
+
+    private String tableOf(Class<?> type) {
+        return quote(type.getName());
+    }
+
+
+    /**
+     * Creates the table of a type and its indexes if they do not exist yet, and imports its .ser file if there is one.
+     *
+     * @return The Indexed fields of the type
+     */
+    private Map<String, Field> ensureTable(Class<?> type) throws IOException {
+
+        Map<String, Field> indexedFields = this.tables.get(type.getName());
+        if (indexedFields != null) return indexedFields;
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try (Connection connection = this.connect()) {
+            //Another thread may have created it while we waited
+            indexedFields = this.tables.get(type.getName());
+            if (indexedFields != null) return indexedFields;
+
+            indexedFields = EntityTable.indexedFieldsOf(type);
+            if (!this.tableExists(connection, type)) {
+                StringBuilder columns = new StringBuilder("\"id\" INT PRIMARY KEY, \"version\" INT NOT NULL, \"record\" BLOB NOT NULL");
+                for (Field field : indexedFields.values()) {
+                    columns.append(", ").append(quote(field.getName())).append(" ").append(this.columnType(field));
+                }
+                connection.setAutoCommit(false);
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("CREATE TABLE " + this.tableOf(type) + " (" + columns + ")");
+                    for (String name : indexedFields.keySet()) {
+                        statement.executeUpdate("CREATE INDEX " + quote(type.getName() + "." + name)
+                                + " ON " + this.tableOf(type) + " (" + quote(name) + ")");
+                    }
+                    List<Persistable> imported = new ArrayList<>();
+                    //A gateway of its own, so that the journal is let go of once it is imported
+                    JournalPersistenceGateway journals = new JournalPersistenceGateway(this.codec);
+                    boolean journaled = journals.hasFiles(type);
+                    for (Object record : journaled ? journals.all(type) : this.legacy.all(type)) {
+                        imported.add((Persistable) record);
+                    }
+                    if (!imported.isEmpty()) this.insertRows(connection, type, imported);
+                    connection.commit();
+                    //So that the keys of records deleted from the journal are not handed out again
+                    if (journaled) this.saveKeyLimit(type, journals.loadNextKey(type));
+                } catch (IOException | SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            }
+            this.tables.put(type.getName(), indexedFields);
+            return indexedFields;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    private boolean tableExists(Connection connection, Class<?> type) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, type.getName(), null)) {
+            return tables.next();
+        }
+    }
+
+
+    private String columnType(Field field) {
+        Class<?> c = field.getType();
+        if (c == int.class || c == Integer.class) return "INT";
+        if (c == long.class || c == Long.class) return "BIGINT";
+        if (c == boolean.class || c == Boolean.class) return "BOOLEAN";
+        if (c == String.class) return "VARCHAR";
+        throw new IllegalArgumentException(field.getName() + " cannot be indexed in a database column.");
+    }
+
+
+    private <T> List<T> records(PreparedStatement statement, Class<T> type) throws SQLException, IOException {
+        List<T> result = new ArrayList<>();
+        try (ResultSet rows = statement.executeQuery()) {
+            while (rows.next()) {
+                result.add(type.cast(this.decode(rows.getBytes(1))));
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Looks up the stored records with these primary keys, with one IN (...) query per MAX_IN_PARAMETERS keys.
+     *
+     * @return {primary key: record}, without the keys that are not stored
+     */
+    private Map<Integer, Persistable> select(Connection connection, Class<?> type, Collection<Integer> ids) throws SQLException, IOException {
+        Map<Integer, Persistable> found = new HashMap<>();
+        for (List<Integer> chunk : this.chunks(ids)) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT \"id\", \"record\" FROM " + this.tableOf(type) + " WHERE \"id\" IN (" + this.placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        found.put(rows.getInt(1), this.decode(rows.getBytes(2)));
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Looks up the stored versions of the records with these primary keys.
+     *
+     * @return {primary key: version}, without the keys that are not stored
+     */
+    private Map<Integer, Integer> versions(Connection connection, Class<?> type, Collection<Integer> ids) throws SQLException {
+        Map<Integer, Integer> found = new HashMap<>();
+        for (List<Integer> chunk : this.chunks(ids)) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT \"id\", \"version\" FROM " + this.tableOf(type) + " WHERE \"id\" IN (" + this.placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        found.put(rows.getInt(1), rows.getInt(2));
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Looks up the stored bytes of the records with these primary keys, without decoding them.
+     *
+     * @return {primary key: record bytes}, without the keys that are not stored
+     */
+    private Map<Integer, byte[]> storedBytes(Connection connection, Class<?> type, Collection<Integer> ids) throws SQLException {
+        Map<Integer, byte[]> found = new HashMap<>();
+        for (List<Integer> chunk : this.chunks(ids)) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT \"id\", \"record\" FROM " + this.tableOf(type) + " WHERE \"id\" IN (" + this.placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        found.put(rows.getInt(1), rows.getBytes(2));
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Returns one stored record of the type, if there is one, to check new records against.
+     */
+    private List<Persistable> sample(Connection connection, Class<?> type) throws SQLException, IOException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT \"record\" FROM " + this.tableOf(type) + " LIMIT 1")) {
+            return this.records(statement, Persistable.class);
+        }
+    }
+
+
+    /**
+     * Copies records of a pinned snapshot, so that callers never get the records of the snapshot itself.
+     */
+    private <T> List<T> copies(Collection<Persistable> records, Class<T> type) throws IOException {
+        List<T> result = new ArrayList<>();
+        for (Persistable p : records) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+    }
+
+
+    private int nextStoredKey(Connection connection, Class<?> type) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT MAX(\"id\") FROM " + this.tableOf(type));
+             ResultSet rows = statement.executeQuery()) {
+            //MAX of an empty table is NULL, which getInt reads as 0
+            return rows.next() ? rows.getInt(1) + 1 : 1;
+        }
+    }
+
+
+    /**
+     * The table that holds the high-water mark of the key sequence of every type, one row per type.
+     */
+    private String sequenceTable(Connection connection) throws SQLException {
+        String table = quote(KeySequence.class.getName());
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + table
+                    + " (\"type\" VARCHAR(255) PRIMARY KEY, \"limit\" INT NOT NULL)");
+        }
+        return table;
+    }
+
+
+    @Override
+    protected int loadNextKey(Class<?> type) throws IOException {
+        this.ensureTable(type);
+        try (Connection connection = this.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT \"limit\" FROM " + this.sequenceTable(connection) + " WHERE \"type\" = ?")) {
+            statement.setString(1, type.getName());
+            try (ResultSet rows = statement.executeQuery()) {
+                int limit = rows.next() ? rows.getInt(1) : 0;
+                return Math.max(limit, this.nextStoredKey(connection, type));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    @Override
+    protected void saveKeyLimit(Class<?> type, int limit) throws IOException {
+        try (Connection connection = this.connect();
+             PreparedStatement statement = connection.prepareStatement(
+                     "MERGE INTO " + this.sequenceTable(connection) + " (\"type\", \"limit\") KEY (\"type\") VALUES (?, ?)")) {
+            statement.setString(1, type.getName());
+            statement.setInt(2, limit);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    /**
+     * Inserts the records in one batch.
+     */
+    private void insertRows(Connection connection, Class<?> type, List<? extends Persistable> records) throws SQLException, IOException {
+
+        Collection<Field> indexedFields = EntityTable.indexedFieldsOf(type).values();
+        StringBuilder columns = new StringBuilder("\"id\", \"version\", \"record\"");
+        for (Field field : indexedFields) {
+            columns.append(", ").append(quote(field.getName()));
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO " + this.tableOf(type) + " (" + columns + ") VALUES (" + this.placeholders(3 + indexedFields.size()) + ")")) {
+            for (Persistable p : records) {
+                int i = 1;
+                statement.setInt(i++, p.getKey());
+                statement.setInt(i++, p.getVersion());
+                statement.setBytes(i++, this.encode(p));
+                for (Field field : indexedFields) {
+                    statement.setObject(i++, EntityTable.valueOf(field, p));
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+    }
+
+
+    /**
+     * Overwrites the stored rows of the records in one batch.
+     */
+    private void updateRows(Connection connection, Class<?> type, List<? extends Persistable> records) throws SQLException, IOException {
+
+        Collection<Field> indexedFields = EntityTable.indexedFieldsOf(type).values();
+        StringBuilder columns = new StringBuilder("\"version\" = ?, \"record\" = ?");
+        for (Field field : indexedFields) {
+            columns.append(", ").append(quote(field.getName())).append(" = ?");
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE " + this.tableOf(type) + " SET " + columns + " WHERE \"id\" = ?")) {
+            for (Persistable p : records) {
+                int i = 1;
+                statement.setInt(i++, p.getVersion());
+                statement.setBytes(i++, this.encode(p));
+                for (Field field : indexedFields) {
+                    statement.setObject(i++, EntityTable.valueOf(field, p));
+                }
+                statement.setInt(i, p.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+    }
+
+
+    /**
+     * Deletes the rows with these primary keys.
+     *
+     * @return The number of rows deleted
+     */
+    private int deleteRows(Connection connection, Class<?> type, Collection<Integer> ids) throws SQLException {
+        int deleted = 0;
+        for (List<Integer> chunk : this.chunks(ids)) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM " + this.tableOf(type) + " WHERE \"id\" IN (" + this.placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    statement.setInt(i + 1, chunk.get(i));
+                }
+                deleted += statement.executeUpdate();
+            }
+        }
+        return deleted;
+    }
+
+
+    private List<List<Integer>> chunks(Collection<Integer> ids) {
+        List<Integer> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i += MAX_IN_PARAMETERS) {
+            chunks.add(distinct.subList(i, Math.min(i + MAX_IN_PARAMETERS, distinct.size())));
+        }
+        return chunks;
+    }
+
+
+    private String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+
+    /**
+     * Saves a unit of work in one database transaction, holding the write locks of all of its types.
+     */
+    private class JdbcUnitOfWork extends AbstractUnitOfWork {
+
+        private JdbcUnitOfWork() {
+            super(JdbcPersistenceGateway.this);
+        }
+
+        @Override
+        protected void save(Map<Class<?>, Map<Integer, Change>> changes) throws IOException {
+            List<String> typeNames = new ArrayList<>();
+            for (Class<?> type : changes.keySet()) {
+                ensureTable(type);
+                typeNames.add(type.getName());
+            }
+            List<Lock> taken = locks.writeAll(typeNames);
+            try (Connection connection = connect()) {
+                connection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<Class<?>, Map<Integer, Change>> entry : changes.entrySet()) {
+                        this.save(connection, entry.getKey(), entry.getValue());
+                    }
+                    connection.commit();
+                } catch (IOException | SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            } finally {
+                locks.unlock(taken);
+            }
+        }
+
+        private void save(Connection connection, Class<?> type, Map<Integer, Change> changes) throws SQLException, IOException {
+
+            //Only the records this unit touches are needed for the checks, plus one to check the type against
+            EntityTable stored = new EntityTable(type);
+            for (Persistable p : select(connection, type, changes.keySet()).values()) {
+                stored.put(p);
+            }
+            if (stored.size() == 0) {
+                for (Persistable p : sample(connection, type)) {
+                    stored.put(p);
+                }
+            }
+            this.check(changes, stored);
+
+            List<Integer> deletes = new ArrayList<>();
+            List<Persistable> updates = new ArrayList<>();
+            List<Persistable> inserts = new ArrayList<>();
+            for (Map.Entry<Integer, Change> entry : changes.entrySet()) {
+                Persistable record = entry.getValue().record;
+                if (record == null) deletes.add(entry.getKey());
+                else if (stored.contains(entry.getKey())) updates.add(record);
+                else inserts.add(record);
+            }
+            if (!deletes.isEmpty()) deleteRows(connection, type, deletes);
+            if (!updates.isEmpty()) updateRows(connection, type, updates);
+            if (!inserts.isEmpty()) insertRows(connection, type, inserts);
+
+        }
+
+    }
+
+
+}
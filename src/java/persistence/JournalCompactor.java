@@ -0,0 +1,85 @@
+package persistence;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Periodically compacts the journals of a JournalPersistenceGateway on a background thread,
+ * so that journals stay small and startup replay stays fast.
+ * Only types that have been loaded are compacted, since only they can have grown since the last snapshot.
+ */
+public class JournalCompactor {
+
+    /**
+     * Class dependencies
+     */
+    private final JournalPersistenceGateway gateway;
+
+    /**
+     * The smallest journal, in bytes, that is worth compacting.
+     */
+    private final long minJournalLength;
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param gateway          The gateway whose journals are compacted
+     * @param minJournalLength The smallest journal, in bytes, that is worth compacting
+     */
+    public JournalCompactor(JournalPersistenceGateway gateway, long minJournalLength) {
+        this.gateway = gateway;
+        this.minJournalLength = minJournalLength;
+    }
+
+
+    /**
+     * Starts compacting in the background. The thread will not keep the application running on its own.
+     *
+     * @param period How long to wait between each run
+     * @param unit   The unit of period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (this.executor != null) return;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::compactAll, period, period, unit);
+    }
+
+
+    /**
+     * Stops compacting in the background. A compaction that is already running is allowed to finish.
+     */
+    public synchronized void stop() {
+        if (this.executor == null) return;
+        this.executor.shutdown();
+        this.executor = null;
+    }
+
+
+    /**
+     * Compacts every loaded type whose journal is large enough to be worth it.
+     */
+    public void compactAll() {
+        for (String typeName : this.gateway.getLoadedTypes()) {
+            if (this.gateway.needsCompaction(typeName, this.minJournalLength)) {
+                try {
+                    this.gateway.compact(typeName);
+                } catch (IOException e) {
+                    //The journal is still intact, so we can simply try again on the next run
+                    System.out.println("Could not compact " + typeName + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+}
@@ -0,0 +1,93 @@
+package persistence;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Puts a JournalPersistenceGateway in write-behind mode, and flushes its queued journal records on a background thread.
+ * Creates, updates and deletes then return as soon as they are applied in memory, and all of the writes made
+ * during one period share a single append and sync to disk per type. Callers that must know their writes are on disk
+ * can wait on JournalPersistenceGateway.whenDurable.
+ * <p>
+ * Writes made in the last period before the application stops without calling stop are lost.
+ * Units of work are not affected, since they are always written through.
+ */
+public class JournalFlusher {
+
+    /**
+     * Class dependencies
+     */
+    private final JournalPersistenceGateway gateway;
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param gateway The gateway whose journal records are flushed
+     */
+    public JournalFlusher(JournalPersistenceGateway gateway) {
+        this.gateway = gateway;
+    }
+
+
+    /**
+     * Turns on write-behind mode, and starts flushing in the background. The thread will not keep the application running on its own.
+     *
+     * @param period How long to wait between each flush
+     * @param unit   The unit of period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (this.executor != null) return;
+        try {
+            this.gateway.setWriteBehind(true);
+        } catch (IOException e) {
+            //Turning write-behind on never flushes
+            throw new IllegalStateException(e);
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, period, period, unit);
+    }
+
+
+    /**
+     * Stops flushing in the background, waits for a flush that is already running, then turns off write-behind mode,
+     * which flushes whatever is still queued.
+     *
+     * @throws IOException If the queued records could not be flushed
+     */
+    public synchronized void stop() throws IOException {
+        if (this.executor == null) return;
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.executor = null;
+        this.gateway.setWriteBehind(false);
+    }
+
+
+    /**
+     * Flushes everything queued so far.
+     */
+    public void flush() {
+        try {
+            this.gateway.flush();
+        } catch (IOException e) {
+            //The records stay queued, so we can simply try again on the next run
+            System.out.println("Could not flush the journals: " + e.getMessage());
+        }
+    }
+
+
+}
@@ -0,0 +1,1377 @@
+package persistence;
+
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+
+/**
+ * Persists each entity type to an append-only journal file, journal(Class Name).log.
+ * Every create, update and delete appends one record per changed entity, instead of rewriting the whole file,
+ * so the cost of a write depends on the size of the changed entities, not on the size of the table.
+ * <p>
+ * The state of a type is rebuilt by replaying its journal the first time the type is used, and kept in memory afterwards.
+ * If a type has no journal yet, but has a .ser file written by SerPersistenceGateway, that file is imported into a new journal.
+ * <p>
+ * Each type has its own read/write lock. Reads of a type run in parallel, writes to a type run one at a time,
+ * and different types never block each other.
+ * <p>
+ * Each record in a journal is laid out as: operation (1 byte), primary key (4 bytes),
+ * length of the serialized entity (4 bytes), checksum of the serialized entity (8 bytes), then the serialized entity.
+ * A delete record has a length of 0 and no entity.
+ * <p>
+ * So that journals do not grow forever, compact writes the current state of a type to snapshot(Class Name).snap,
+ * in the same record format, and cuts the journal down to the records written after the snapshot was taken.
+ * A type is then rebuilt by replaying its snapshot, followed by its journal. See JournalCompactor.
+ * The snapshots of the types given as compressed types start with one DEFLATED byte, and their records are compressed
+ * with Deflater after it. Journals are never compressed, since each append is too small to compress well.
+ * <p>
+ * A unit of work is first written to unitofwork.log, in the same record format with the class name in front of each record,
+ * and flushed to disk once. Its records are then appended to the journals of their types and forced to disk, and the log is deleted.
+ * If the application stops while the log is being written, the unit is dropped. If it stops after, the records in the log
+ * are appended to the journals the next time the gateway is used. If its records cannot be appended to every journal,
+ * the journals are cut back and the log is deleted, so a unit that failed is never finished on the next start.
+ * <p>
+ * Every create, update and delete is forced to disk before it returns, unless write-behind mode is on.
+ * In write-behind mode, see JournalFlusher, creates, updates and deletes are applied in memory right away,
+ * but their journal records are only queued. Each flush then writes everything queued for a type with one append
+ * and one sync to disk, however many calls queued it. whenDurable tells callers when their writes have been flushed.
+ */
+public class JournalPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
+
+    /**
+     * The operations a journal record can hold.
+     */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * The first byte of a compressed snapshot, in place of an operation.
+     */
+    private static final byte DEFLATED = 3;
+
+    /**
+     * The number of bytes a record takes up on disk, besides the serialized entity.
+     */
+    private static final int RECORD_HEADER_LENGTH = 17;
+
+    /**
+     * The directory that holds the journals, snapshots and sequences of every type.
+     */
+    private final File directory;
+
+    /**
+     * Where a unit of work is written before its records are appended to the journals.
+     */
+    private final File unitLog;
+
+    /**
+     * Holds the current state of each type that has been replayed.
+     * "Class Name": Table
+     */
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+    /**
+     * The read/write lock of each type.
+     */
+    private final TypeLocks locks = new TypeLocks();
+
+    /**
+     * Holds the totals of every compaction so far.
+     */
+    private final CompactionStats compactionStats = new CompactionStats();
+
+    /**
+     * Used to import and remove the .ser files of types that were saved before journals were used.
+     */
+    private final SerPersistenceGateway legacy;
+
+    /**
+     * Held while the unit of work log is written, appended to the journals and deleted.
+     */
+    private final Object unitLogLock = new Object();
+
+    /**
+     * Whether a unit of work left behind by the last run has been looked for.
+     */
+    private volatile boolean recovered = false;
+
+    /**
+     * Whether journal records are queued for the next flush, instead of written right away.
+     */
+    private volatile boolean writeBehind = false;
+
+    /**
+     * Completes once everything queued so far has been flushed. Replaced at the start of every flush.
+     * Guarded by durabilityLock.
+     */
+    private CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+
+    private final Object durabilityLock = new Object();
+
+
+    /**
+     * Creates a gateway that stores records with BinaryCodec.
+     */
+    public JournalPersistenceGateway() {
+        this(new BinaryCodec());
+    }
+
+
+    /**
+     * Creates a gateway that stores records with the given codec.
+     *
+     * @param codec Turns records into the bytes that are stored, and back
+     */
+    public JournalPersistenceGateway(EntityCodec codec) {
+        this(codec, Collections.emptySet());
+    }
+
+
+    /**
+     * Creates a gateway that stores records with the given codec, and compresses the snapshots of some types.
+     *
+     * @param codec           Turns records into the bytes that are stored, and back
+     * @param compressedTypes The class names of the types whose snapshots are compressed
+     */
+    public JournalPersistenceGateway(EntityCodec codec, Set<String> compressedTypes) {
+        this(codec, compressedTypes, new File("").getAbsoluteFile());
+    }
+
+
+    /**
+     * Creates a gateway that keeps its files in the given directory, instead of the working directory.
+     *
+     * @param codec           Turns records into the bytes that are stored, and back
+     * @param compressedTypes The class names of the types whose snapshots are compressed
+     * @param directory       The directory of the journals, snapshots and .ser files
+     */
+    public JournalPersistenceGateway(EntityCodec codec, Set<String> compressedTypes, File directory) {
+        super(codec, compressedTypes);
+        this.directory = directory;
+        this.unitLog = new File(directory, "unitofwork.log");
+        this.legacy = new SerPersistenceGateway(false, codec, compressedTypes, directory);
+    }
+
+
+    /**
+     * Returns one instance of records based on the id.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+        Persistable p = this.read(type, records -> records.get(id));
+        if (p == null) return null;
+        return type.cast(this.copy(p));
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of idList. Id's that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        List<T> result = new ArrayList<>();
+        for (Persistable p : this.read(type, records -> records.get(idList))) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Gets the records whose field has the given value, through the index on that field.
+     *
+     * @param field the name of the indexed field
+     * @param value the value that the field must have
+     * @param type  .class information about class T
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException              throws this exception if there is a IO error.
+     * @throws IllegalArgumentException throws this exception if the field is not indexed.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        List<T> result = new ArrayList<>();
+        for (Persistable p : this.read(type, records -> records.findBy(field, value))) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Gets all records that exist in a file/table with the given key.
+     * If a type has never been persisted before, we return an empty List since there are no entries to be found.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        List<T> result = new ArrayList<>();
+        for (Persistable p : this.read(type, records -> new ArrayList<>(records.all()))) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Reads all records of a type lazily, one at a time, instead of reading them all into a List first.
+     * The cursor must be closed once the caller is done with it. See Cursor.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each record
+     * @return A cursor over all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.stream(type, record -> true);
+    }
+
+
+    /**
+     * Reads the records of a type that match a filter lazily, one at a time.
+     * The filter is run on the stored records, before they are copied, so it must not change them.
+     *
+     * @param type   .class information about class T.
+     * @param filter Whether a record should be handed out
+     * @param <T>    the class type of each record
+     * @return A cursor over the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+        return this.cursor(type, this.read(type, records -> new ArrayList<>(records.all())), filter);
+    }
+
+
+    /**
+     * Takes a consistent snapshot of the records of some types and pins it to the current thread. See Snapshot.
+     * Only the latest version of each table is taken under the read locks, which takes the same time however large
+     * the tables are. Each version is turned into a table after the locks are released, and shared by every snapshot
+     * until the table next changes. See EntityTable.Version.
+     *
+     * @param types .class information about the types
+     * @return The snapshot, which must be closed on this thread
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+
+        //Loaded before any lock is taken, since replaying a journal takes the write lock of its type
+        Map<String, EntityTable> live = new HashMap<>();
+        for (Class<?> type : types) {
+            live.put(type.getName(), this.load(type).records);
+        }
+
+        Map<String, EntityTable.Version> versions = new HashMap<>();
+        List<Lock> taken = this.locks.readAll(live.keySet());
+        try {
+            for (Map.Entry<String, EntityTable> entry : live.entrySet()) {
+                versions.put(entry.getKey(), entry.getValue().version());
+            }
+        } finally {
+            this.locks.unlock(taken);
+        }
+
+        Map<String, EntityTable> tables = new HashMap<>();
+        for (Map.Entry<String, EntityTable.Version> entry : versions.entrySet()) {
+            tables.put(entry.getKey(), entry.getValue().table());
+        }
+        return this.pin(tables);
+
+    }
+
+
+    /**
+     * Saves new objects into persistence. Will not modify existing objects.
+     * These objects must be of the same type and implement the Persistable interface.
+     * If any one of the objects fail to be saved (due to, for example, a conflicting primary key), then none of them will be saved.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key,
+     * and save the object(s) with that primary key, and return an List of these objects
+     * with the primary key of that object updated.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        //First check if duplicates exist in our provided List, except 0
+        this.hasDuplicateKeys(newObjList);
+
+        EntityTable table = this.load(type).records;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Keys come from the sequence of the type, so the stored records do not need to be scanned
+            this.assignKeys(newObjList, type);
+
+            //We need to check if everything passed in is of the same type (not including subclasses).
+            if (!this.containsOneType(newObjList, table.sample())) {
+                throw new NonUniformObjectsException();
+            }
+
+            for (Persistable p : newObjList) {
+                if (table.contains(p.getKey())) {
+                    throw new EntryExistsException();
+                }
+            }
+
+            this.put(type, newObjList);
+        } finally {
+            lock.unlock();
+        }
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        List<T> resultList = this.create(objectList, type);
+        return resultList.get(0);
+
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+
+    }
+
+
+    /**
+     * Updates the records with the same primary key in the current storage.
+     * Will keep records for primary keys which are not updated.
+     * If the ArrayList provided consists of objects of different types, a NonUniformObjectsException will be thrown.
+     * If a record is provided for which the primary key does not currently exist in storage, an EntryDoesNotExistException will be thrown.
+     * If any two records in updateObjList has the same primary key, an EntryExistsException will be thrown.
+     * If a record has been updated in storage since it was read, a VersionConflictException will be thrown.
+     * Otherwise every record that differs from what is stored is saved, and its version is increased by one.
+     * Records that are the same as what is stored are not written again, and keep their version.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        //First check if duplicates exist in our provided List
+        this.hasDuplicateKeys(updateObjList);
+
+        EntityTable table = this.load(type).records;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Check we have only passed in one type of object.
+            if (!this.containsOneType(updateObjList, table.sample())) throw new NonUniformObjectsException();
+
+            //Check every object exists and was read at its stored version
+            this.checkVersions(updateObjList, table);
+
+            //Objects that are the same as what is stored keep their version, and are not written
+            List<T> changed = this.changedRecords(updateObjList, table);
+            if (changed.isEmpty()) return true;
+
+            this.shiftVersions(changed, 1);
+            try {
+                this.put(type, changed);
+            } catch (IOException e) {
+                this.shiftVersions(changed, -1);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        Table table = this.load(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            Set<Integer> existingIds = new LinkedHashSet<>();
+            for (Integer id : idList) {
+                if (table.records.contains(id)) existingIds.add(id);
+            }
+            if (existingIds.isEmpty()) return false;
+
+            ByteArrayOutputStream journal = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(journal);
+            for (Integer id : existingIds) {
+                this.writeRecord(output, DELETE, id, new byte[0]);
+            }
+            this.append(table, journal, existingIds.size(), false);
+            for (Integer id : existingIds) {
+                table.records.remove(id);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+
+    }
+
+
+    /**
+     * Removes all records relating to this key.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        try {
+            this.recover();
+        } catch (IOException e) {
+            System.out.println("Could not finish the unit of work left in " + this.unitLog);
+        }
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            Table table = this.tables.remove(type.getName());
+            if (table != null) {
+                //Whatever is still queued belongs to the journal that is about to be deleted
+                synchronized (table) {
+                    table.pending.reset();
+                    table.pendingRecords = 0;
+                }
+            }
+            this.resetKeys(type);
+            new File(this.getSequencePath(type.getName())).delete();
+            boolean legacyRemoved = this.legacy.remove(type);
+            boolean snapshotRemoved = new File(this.getSnapshotPath(type.getName())).delete();
+            File file = new File(this.getFilePath(type.getName()));
+            return file.delete() || snapshotRemoved || legacyRemoved;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work, which saves creates, updates and deletes across entity types together when committed.
+     * The unit is flushed to disk once, however many types and records it holds.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        return new JournalUnitOfWork();
+    }
+
+
+    /**
+     * Returns a future that completes once every create, update and delete that has returned so far is on disk.
+     * Outside of write-behind mode, they are forced to disk before they return, so the future is already complete.
+     *
+     * @return A future that completes when the writes are durable, or completes exceptionally if they could not be flushed
+     */
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        if (!this.writeBehind) return CompletableFuture.completedFuture(null);
+        synchronized (this.durabilityLock) {
+            return this.nextFlush;
+        }
+    }
+
+
+    /**
+     * Replays the snapshot and journal of a type, which also builds its indexes, if it has not been used yet.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.load(type);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+
+    /**
+     * Returns the totals of every compaction that has run on this gateway.
+     *
+     * @return The compaction stats
+     */
+    public CompactionStats getCompactionStats() {
+        return this.compactionStats;
+    }
+
+
+    /**
+     * Turns write-behind mode on or off. Turning it off flushes whatever is still queued.
+     *
+     * @param writeBehind Whether journal records should be queued for the next flush
+     * @throws IOException If the queued records could not be flushed
+     */
+    void setWriteBehind(boolean writeBehind) throws IOException {
+        this.writeBehind = writeBehind;
+        if (!writeBehind) this.flush();
+    }
+
+
+    /**
+     * Writes everything queued for each type with one append and one sync to disk per type,
+     * then completes the future that whenDurable handed out for those writes.
+     *
+     * @throws IOException If the records of a type could not be written. They stay queued for the next flush.
+     */
+    void flush() throws IOException {
+
+        CompletableFuture<Void> flushed;
+        synchronized (this.durabilityLock) {
+            flushed = this.nextFlush;
+            this.nextFlush = new CompletableFuture<>();
+        }
+
+        try {
+            for (Table table : this.tables.values()) {
+                synchronized (table) {
+                    this.writePending(table, true);
+                }
+            }
+        } catch (IOException e) {
+            flushed.completeExceptionally(e);
+            throw e;
+        }
+        flushed.complete(null);
+
+    }
+
+
+    /**
+     * Checks whether a type has been saved by a journal gateway, without loading it.
+     *
+     * @param type .class information about the type
+     * @return true iff the type has a snapshot or journal file
+     */
+    boolean hasFiles(Class<?> type) {
+        return new File(this.getSnapshotPath(type.getName())).exists() || new File(this.getFilePath(type.getName())).exists();
+    }
+
+
+    /**
+     * Returns the names of the types that have been loaded into memory, and can therefore be compacted.
+     */
+    Set<String> getLoadedTypes() {
+        return new HashSet<>(this.tables.keySet());
+    }
+
+
+    /**
+     * Checks whether a type has enough in its journal to be worth compacting. This is the case once its journal is
+     * at least minJournalLength bytes, and at least as long as its snapshot, so that at least half of what
+     * would be replayed on startup is journal.
+     *
+     * @param typeName         The class name of the type
+     * @param minJournalLength The smallest journal, in bytes, that is worth compacting
+     * @return true iff the type should be compacted
+     */
+    boolean needsCompaction(String typeName, long minJournalLength) {
+        Table table = this.tables.get(typeName);
+        if (table == null) return false;
+        synchronized (table) {
+            return table.journalLength >= minJournalLength && table.journalLength >= table.snapshotLength;
+        }
+    }
+
+
+    /**
+     * Writes a snapshot of the current state of a type, then cuts its journal down to the records written since.
+     * Readers of this type are only blocked while the new snapshot and journal are swapped in. Writers of this type
+     * are also blocked while the snapshot is started, but not while the snapshot is being written.
+     * <p>
+     * If the application stops halfway through, replaying is still correct: the old snapshot and full journal,
+     * or the new snapshot and full journal, or the new snapshot and cut journal, all end in the same state,
+     * because replaying a record that is already reflected in a snapshot changes nothing.
+     * The new snapshot and journal are each forced to disk before they replace the old ones, so those are the only states a crash can leave.
+     *
+     * @param typeName The class name of the type
+     * @return The number of bytes reclaimed
+     * @throws IOException If the snapshot or journal could not be written
+     */
+    long compact(String typeName) throws IOException {
+
+        Table table = this.tables.get(typeName);
+        if (table == null) return 0;
+
+        List<Persistable> records;
+        long journalBase;
+        int journalRecordsBase;
+        long oldSnapshotLength;
+        int oldSnapshotRecords;
+        Lock readLock = this.locks.read(typeName);
+        readLock.lock();
+        try {
+            records = new ArrayList<>(table.records.all());
+            //Records still queued are in the snapshot, and will also be written to the journal after journalBase
+            synchronized (table) {
+                journalBase = table.journalLength;
+                journalRecordsBase = table.journalRecords;
+                oldSnapshotLength = table.snapshotLength;
+                oldSnapshotRecords = table.snapshotRecords;
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        //Stored records are never changed once they are in the table, only replaced, so we can write them unlocked
+        File snapshot = new File(this.getSnapshotPath(typeName));
+        File newSnapshot = new File(this.getSnapshotPath(typeName) + ".tmp");
+        long snapshotLength = 0;
+        boolean compressed = this.isCompressed(typeName);
+        try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newSnapshot)))) {
+            if (compressed) file.writeByte(DEFLATED);
+            DataOutputStream output = compressed ? deflating(file) : file;
+            for (Persistable p : records) {
+                snapshotLength += this.writeRecord(output, PUT, p.getKey(), this.encode(p));
+            }
+            //Finishes the compressed data
+            output.close();
+        }
+        if (compressed) snapshotLength = newSnapshot.length();
+
+        Lock writeLock = this.locks.write(typeName);
+        writeLock.lock();
+        try {
+            //The type was removed while the snapshot was being written
+            if (this.tables.get(typeName) != table) {
+                newSnapshot.delete();
+                return 0;
+            }
+
+            //The snapshot must be whole on disk before the journal loses the records it holds
+            replaceDurably(newSnapshot.toPath(), snapshot.toPath());
+
+            //Holding the table keeps a flush from appending to the journal while it is being cut
+            synchronized (table) {
+                this.writePending(table, false);
+                File journal = new File(this.getFilePath(typeName));
+                File newJournal = new File(this.getFilePath(typeName) + ".tmp");
+                try (FileChannel from = new FileInputStream(journal).getChannel();
+                     FileChannel to = new FileOutputStream(newJournal).getChannel()) {
+                    long position = journalBase;
+                    while (position < table.journalLength) {
+                        position += from.transferTo(position, table.journalLength - position, to);
+                    }
+                }
+                replaceDurably(newJournal.toPath(), journal.toPath());
+
+                table.snapshotLength = snapshotLength;
+                table.snapshotRecords = records.size();
+                table.journalLength -= journalBase;
+                table.journalRecords -= journalRecordsBase;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        long bytesReclaimed = oldSnapshotLength + journalBase - snapshotLength;
+        int recordsDropped = oldSnapshotRecords + journalRecordsBase - records.size();
+        this.compactionStats.record(typeName, bytesReclaimed, recordsDropped, recordsDropped * table.replayNanosPerRecord);
+        return bytesReclaimed;
+
+    }
+
+
+    /**
+     * Reads the stored records of a type under its read lock, or from the snapshot of the type pinned to this thread.
+     * Stored records are never changed once they are in the table, only replaced,
+     * so whatever the reader returns can be copied after the lock is released.
+     */
+    private <R> R read(Class<?> type, Function<EntityTable, R> reader) throws IOException {
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return reader.apply(pinned);
+        return this.readLatest(type, reader);
+    }
+
+
+    /**
+     * Reads the stored records of a type under its read lock, even if a snapshot of it is pinned to this thread.
+     */
+    private <R> R readLatest(Class<?> type, Function<EntityTable, R> reader) throws IOException {
+
+        EntityTable records = this.load(type).records;
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            return reader.apply(records);
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Returns the current state of a type, replaying its snapshot and journal if it has not been used yet.
+     * The records in this table must never be handed out to callers.
+     * Must not be called while holding the read lock of the type, since replaying takes its write lock.
+     */
+    private Table load(Class<?> type) throws IOException {
+
+        this.recover();
+
+        Table table = this.tables.get(type.getName());
+        if (table != null) return table;
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Another thread may have replayed the type while we were waiting
+            table = this.tables.get(type.getName());
+            if (table != null) return table;
+            table = this.replay(type);
+        } finally {
+            lock.unlock();
+        }
+        return table;
+
+    }
+
+
+    /**
+     * Replays the snapshot and journal of a type, or imports its .ser file, and registers its table.
+     * The write lock of the type must be held.
+     */
+    private Table replay(Class<?> type) throws IOException {
+
+        Table table = new Table(type);
+        File snapshot = new File(this.getSnapshotPath(type.getName()));
+        File journal = new File(this.getFilePath(type.getName()));
+        if (snapshot.exists() || journal.exists()) {
+            long start = System.nanoTime();
+            if (snapshot.exists()) this.replay(snapshot, table, true);
+            if (journal.exists()) this.replay(journal, table, false);
+            int replayed = table.snapshotRecords + table.journalRecords;
+            if (replayed > 0) table.replayNanosPerRecord = (System.nanoTime() - start) / replayed;
+            this.tables.put(type.getName(), table);
+        } else {
+            this.tables.put(type.getName(), table);
+            //Import the records saved by SerPersistenceGateway, if there are any
+            List<Persistable> imported = new ArrayList<>();
+            try {
+                for (Object o : this.legacy.all(type)) {
+                    imported.add((Persistable) o);
+                }
+                if (!imported.isEmpty()) this.put(type, imported);
+            } catch (IOException e) {
+                this.tables.remove(type.getName());
+                throw e;
+            }
+        }
+
+        return table;
+
+    }
+
+
+    /**
+     * Appends the records to the journal, then stores copies of them in memory.
+     * The write lock of the type must be held.
+     */
+    private void put(Class<?> type, List<? extends Persistable> records) throws IOException {
+
+        Map<Integer, byte[]> encoded = new LinkedHashMap<>();
+        for (Persistable p : records) {
+            encoded.put(p.getKey(), this.encode(p));
+        }
+
+        Table table = this.tables.get(type.getName());
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(journal);
+        for (Map.Entry<Integer, byte[]> entry : encoded.entrySet()) {
+            this.writeRecord(output, PUT, entry.getKey(), entry.getValue());
+        }
+        this.append(table, journal, encoded.size(), false);
+
+        //The callers still hold the objects they passed in, so we keep our own copies
+        for (Map.Entry<Integer, byte[]> entry : encoded.entrySet()) {
+            table.records.put(this.decode(entry.getValue()));
+        }
+
+    }
+
+
+    /**
+     * Writes the records of a unit of work to the unit log and flushes it to disk, then appends them to the journals,
+     * and stores them in memory. The write locks of every type in the unit must be held, and the changes checked.
+     */
+    private void write(Map<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> changes) throws IOException {
+
+        //Deleting a key that is not stored does nothing
+        int count = 0;
+        for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+            EntityTable records = this.tables.get(type.getKey().getName()).records;
+            type.getValue().entrySet().removeIf(e -> e.getValue().record == null && !records.contains(e.getKey()));
+            count += type.getValue().size();
+        }
+
+        ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        DataOutputStream unitOutput = new DataOutputStream(unit);
+        unitOutput.writeInt(count);
+        Map<String, ByteArrayOutputStream> journals = new LinkedHashMap<>();
+        for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+            String typeName = type.getKey().getName();
+            ByteArrayOutputStream journal = new ByteArrayOutputStream();
+            DataOutputStream journalOutput = new DataOutputStream(journal);
+            for (Map.Entry<Integer, AbstractUnitOfWork.Change> change : type.getValue().entrySet()) {
+                Persistable record = change.getValue().record;
+                byte operation = record == null ? DELETE : PUT;
+                byte[] bytes = record == null ? new byte[0] : this.encode(record);
+                unitOutput.writeUTF(typeName);
+                this.writeRecord(unitOutput, operation, change.getKey(), bytes);
+                this.writeRecord(journalOutput, operation, change.getKey(), bytes);
+            }
+            journals.put(typeName, journal);
+        }
+
+        synchronized (this.unitLogLock) {
+            File log = this.unitLog;
+            try (FileOutputStream output = new FileOutputStream(log)) {
+                unit.writeTo(output);
+                output.getFD().sync();
+            } catch (IOException e) {
+                //A log that was written whole, but not synced, would otherwise be recovered on the next start
+                log.delete();
+                throw e;
+            }
+            //The unit is saved from here on. If the application stops now, recover appends it to the journals.
+            //The log is deleted right after, so the records are written through and forced to disk even in write-behind mode.
+            Map<Table, Long> lengths = new LinkedHashMap<>();
+            Map<Table, Integer> counts = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+                    Table table = this.tables.get(type.getKey().getName());
+                    synchronized (table) {
+                        this.writePending(table, false);
+                        lengths.put(table, table.journalLength);
+                        counts.put(table, table.journalRecords);
+                        this.writeJournal(table, journals.get(type.getKey().getName()), type.getValue().size(), true);
+                    }
+                }
+            } catch (IOException e) {
+                this.rollBack(log, lengths, counts, e);
+                throw e;
+            }
+            Files.delete(log.toPath());
+        }
+
+        //Nobody else holds the unit's copies, so we can store them as they are
+        for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+            Table table = this.tables.get(type.getKey().getName());
+            for (Map.Entry<Integer, AbstractUnitOfWork.Change> change : type.getValue().entrySet()) {
+                if (change.getValue().record == null) table.records.remove(change.getKey());
+                else table.records.put(change.getValue().record);
+            }
+        }
+
+    }
+
+
+    /**
+     * Undoes a unit of work that could not be appended to every journal, since the caller is told it failed.
+     * The journals it was appended to are cut back to their lengths before it, then the unit log is deleted.
+     * A journal that cannot be cut back now is cut back before the next append to it, see writeJournal.
+     * No other write can reach these journals meanwhile, since the write locks of their types are held.
+     *
+     * @param lengths The length of each journal before the unit was appended
+     * @param counts  The number of records in each journal before the unit was appended
+     * @param failure What the append failed with, which any further failure is added to
+     */
+    private void rollBack(File log, Map<Table, Long> lengths, Map<Table, Integer> counts, IOException failure) {
+        for (Map.Entry<Table, Long> entry : lengths.entrySet()) {
+            Table table = entry.getKey();
+            synchronized (table) {
+                try {
+                    this.truncateJournal(table, entry.getValue(), counts.get(table));
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (!log.delete()) {
+            System.out.println("Could not delete " + this.unitLog + " of a failed unit of work. It will be finished on the next start.");
+        }
+    }
+
+
+    /**
+     * Appends the records of a unit of work that was saved, but not yet appended to the journals, when the application stopped.
+     * Only looks for the unit log the first time the gateway is used.
+     * A unit log that is incomplete was never saved, and is dropped.
+     */
+    private void recover() throws IOException {
+
+        if (this.recovered) return;
+        synchronized (this.unitLogLock) {
+            if (this.recovered) return;
+            File log = this.unitLog;
+            if (log.exists()) {
+                Map<String, ByteArrayOutputStream> journals = this.readUnitLog(log);
+                if (journals != null) {
+                    for (Map.Entry<String, ByteArrayOutputStream> journal : journals.entrySet()) {
+                        File file = new File(this.getFilePath(journal.getKey()));
+                        if (file.exists()) this.truncateTornTail(file);
+                        try (FileOutputStream output = new FileOutputStream(file, true)) {
+                            journal.getValue().writeTo(output);
+                            //The log is the only other copy of these records, and it is deleted next
+                            output.getFD().sync();
+                        }
+                    }
+                }
+                Files.delete(log.toPath());
+            }
+            this.recovered = true;
+        }
+
+    }
+
+
+    /**
+     * Reads a unit log into the records to append to each journal.
+     *
+     * @return "Class Name": records, or null if the log is incomplete
+     */
+    private Map<String, ByteArrayOutputStream> readUnitLog(File log) throws IOException {
+
+        Map<String, ByteArrayOutputStream> journals = new LinkedHashMap<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String typeName = input.readUTF();
+                byte operation = input.readByte();
+                int key = input.readInt();
+                byte[] bytes = new byte[input.readInt()];
+                long checksum = input.readLong();
+                input.readFully(bytes);
+                if (checksum != this.checksum(bytes)) return null;
+                ByteArrayOutputStream journal = journals.computeIfAbsent(typeName, t -> new ByteArrayOutputStream());
+                this.writeRecord(new DataOutputStream(journal), operation, key, bytes);
+            }
+        } catch (EOFException | UTFDataFormatException | NegativeArraySizeException e) {
+            return null;
+        }
+        return journals;
+
+    }
+
+
+    /**
+     * Cuts a journal back to its last complete record, without replaying it.
+     */
+    private void truncateTornTail(File file) throws IOException {
+
+        long validLength = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    input.readByte();
+                    input.readInt();
+                    byte[] bytes = new byte[input.readInt()];
+                    long checksum = input.readLong();
+                    input.readFully(bytes);
+                    if (checksum != this.checksum(bytes)) break;
+                    validLength += RECORD_HEADER_LENGTH + bytes.length;
+                } catch (EOFException | NegativeArraySizeException e) {
+                    break;
+                }
+            }
+        }
+
+        if (validLength < file.length()) {
+            try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+                journal.setLength(validLength);
+            }
+        }
+
+    }
+
+
+    /**
+     * Replays the records of a snapshot or journal file into the table, and records the file's length and number
+     * of records in the table.
+     * If the application stopped in the middle of writing a record, that record is dropped and the file is cut
+     * back to the last complete record, so that the next append starts cleanly.
+     */
+    private void replay(File file, Table table, boolean isSnapshot) throws IOException {
+
+        long validLength = 0;
+        int count = 0;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        boolean compressed = false;
+        if (isSnapshot) {
+            input.mark(1);
+            compressed = input.read() == DEFLATED;
+            if (compressed) input = inflating(input);
+            else input.reset();
+        }
+
+        try {
+            while (true) {
+                byte operation;
+                try {
+                    operation = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int key;
+                byte[] bytes;
+                try {
+                    key = input.readInt();
+                    bytes = new byte[input.readInt()];
+                    long checksum = input.readLong();
+                    input.readFully(bytes);
+                    if (checksum != this.checksum(bytes)) break;
+                } catch (EOFException | NegativeArraySizeException e) {
+                    break;
+                }
+
+                if (operation == PUT) table.records.put(this.decode(bytes));
+                else if (operation == DELETE) table.records.remove(key);
+                else break;
+
+                validLength += RECORD_HEADER_LENGTH + bytes.length;
+                count++;
+            }
+        } finally {
+            input.close();
+        }
+
+        //A compressed snapshot is written whole before it is moved into place, so it is never cut back
+        if (compressed) validLength = file.length();
+        if (validLength < file.length()) {
+            try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+                journal.setLength(validLength);
+            }
+        }
+
+        if (isSnapshot) {
+            table.snapshotLength = validLength;
+            table.snapshotRecords = count;
+        } else {
+            table.journalLength = validLength;
+            table.journalRecords = count;
+        }
+
+    }
+
+
+    /**
+     * Adds journal records to the end of the journal of a type, and forces them to disk before returning.
+     * In write-behind mode they are only queued for the next flush, unless writeThrough is set. Anything still queued
+     * is always written first, so records reach the journal in the order they were appended.
+     * If the records cannot be written, they are not queued either, so a write the caller was told failed never reaches the journal.
+     *
+     * @param records The records, laid out as in the journal
+     * @param count   The number of records
+     */
+    private void append(Table table, ByteArrayOutputStream records, int count, boolean writeThrough) throws IOException {
+        synchronized (table) {
+            if (writeThrough || !this.writeBehind) {
+                this.writePending(table, false);
+                //Forcing the journal also forces the pending records written just before
+                this.writeJournal(table, records, count, true);
+            } else {
+                records.writeTo(table.pending);
+                table.pendingRecords += count;
+            }
+        }
+    }
+
+
+    /**
+     * Writes the queued journal records of a type with one append. The table must be held.
+     * If they cannot be written, they stay queued.
+     *
+     * @param sync Whether to wait until the records are on disk
+     */
+    private void writePending(Table table, boolean sync) throws IOException {
+        this.writeJournal(table, table.pending, table.pendingRecords, sync);
+        table.pending.reset();
+        table.pendingRecords = 0;
+    }
+
+
+    /**
+     * Appends records to the journal file of a type with one write. The table must be held.
+     * If the write fails part of the way, the journal is cut back to where it ended before, since replaying stops at
+     * the first torn record, and would drop every record appended after it.
+     *
+     * @param records The records, laid out as in the journal
+     * @param count   The number of records
+     * @param sync    Whether to wait until the records are on disk
+     */
+    private void writeJournal(Table table, ByteArrayOutputStream records, int count, boolean sync) throws IOException {
+
+        if (count == 0) return;
+        try (FileChannel journal = FileChannel.open(Paths.get(this.getFilePath(table.typeName)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            try {
+                //Left behind by an earlier write that could not be cut back at the time
+                if (journal.size() > table.journalLength) journal.truncate(table.journalLength);
+                journal.position(table.journalLength);
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                while (buffer.hasRemaining()) journal.write(buffer);
+                if (sync) journal.force(false);
+            } catch (IOException e) {
+                try {
+                    journal.truncate(table.journalLength);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw e;
+            }
+        }
+        table.journalLength += records.size();
+        table.journalRecords += count;
+
+    }
+
+
+    /**
+     * Cuts the journal file of a type back to an earlier length. The table must be held.
+     * The table forgets the records after that length even if the file cannot be cut, so the next append cuts it instead.
+     */
+    private void truncateJournal(Table table, long length, int records) throws IOException {
+        table.journalLength = length;
+        table.journalRecords = records;
+        try (FileChannel journal = FileChannel.open(Paths.get(this.getFilePath(table.typeName)), StandardOpenOption.WRITE)) {
+            journal.truncate(length);
+        }
+    }
+
+
+    /**
+     * Writes one record.
+     *
+     * @return The number of bytes written
+     */
+    private int writeRecord(DataOutput output, byte operation, int key, byte[] bytes) throws IOException {
+        output.writeByte(operation);
+        output.writeInt(key);
+        output.writeInt(bytes.length);
+        output.writeLong(this.checksum(bytes));
+        output.write(bytes);
+        return RECORD_HEADER_LENGTH + bytes.length;
+    }
+
+
+    private long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+
+    private String getFilePath(String fileName) {
+        return new File(this.directory, "journal" + fileName + ".log").getPath();
+    }
+
+
+    private String getSnapshotPath(String fileName) {
+        return new File(this.directory, "snapshot" + fileName + ".snap").getPath();
+    }
+
+
+    private String getSequencePath(String fileName) {
+        return new File(this.directory, "journal" + fileName + ".seq").getPath();
+    }
+
+
+    @Override
+    protected int loadNextKey(Class<?> type) throws IOException {
+        int stored = this.readLatest(type, records -> this.getNextPrimaryKey(records.all(), Collections.<Persistable>emptyList()));
+        return Math.max(stored, readKeyLimit(this.getSequencePath(type.getName())));
+    }
+
+
+    @Override
+    protected void saveKeyLimit(Class<?> type, int limit) throws IOException {
+        writeKeyLimit(this.getSequencePath(type.getName()), limit);
+    }
+
+
+    /**
+     * Holds the current state of one type, and what we know about its files.
+     * Anything that reads the table takes the read lock of its type, and anything that writes to it or its files
+     * takes the write lock.
+     */
+    private static class Table {
+
+        private final String typeName;
+
+        private final EntityTable records;
+
+        private long snapshotLength;
+        private int snapshotRecords;
+        private long journalLength;
+        private int journalRecords;
+
+        /**
+         * How long it took to replay one record when this type was loaded.
+         */
+        private long replayNanosPerRecord;
+
+        /**
+         * Journal records that have been appended, but not yet written to the journal file.
+         * The table itself must be held to change these, and whenever its journal file is written.
+         */
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private int pendingRecords;
+
+        private Table(Class<?> type) {
+            this.typeName = type.getName();
+            this.records = new EntityTable(type);
+        }
+
+    }
+
+
+    /**
+     * A unit of work that takes the write locks of every type it holds, then writes all of its records with one flush.
+     */
+    private class JournalUnitOfWork extends AbstractUnitOfWork {
+
+        private JournalUnitOfWork() {
+            super(JournalPersistenceGateway.this);
+        }
+
+        @Override
+        protected void save(Map<Class<?>, Map<Integer, Change>> changes) throws IOException {
+            List<String> typeNames = new ArrayList<>();
+            for (Class<?> type : changes.keySet()) {
+                load(type);
+                typeNames.add(type.getName());
+            }
+            List<Lock> taken = locks.writeAll(typeNames);
+            try {
+                for (Class<?> type : changes.keySet()) {
+                    this.check(changes.get(type), tables.get(type.getName()).records);
+                }
+                write(changes);
+            } finally {
+                locks.unlock(taken);
+            }
+        }
+
+    }
+
+
+}
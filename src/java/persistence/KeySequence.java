@@ -0,0 +1,114 @@
+package persistence;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Hands out the primary keys of one type, without looking at the stored records.
+ * <p>
+ * Keys come from an AtomicInteger, so handing one out is a single atomic add. Only a high-water mark is persisted:
+ * every key below it may have been handed out, so after a restart the sequence continues from it.
+ * The mark is moved forward a block of BLOCK_SIZE keys at a time, so it is only written once per block.
+ * Keys of a block that were not used before a restart are skipped, never handed out twice.
+ */
+class KeySequence {
+
+    /**
+     * The number of keys the high-water mark is moved forward by at a time.
+     */
+    static final int BLOCK_SIZE = 100;
+
+    /**
+     * The next key to hand out.
+     */
+    private final AtomicInteger next;
+
+    /**
+     * The persisted high-water mark. Keys below it may be handed out without writing anything.
+     */
+    private volatile int limit;
+
+    /**
+     * Persists the high-water mark.
+     */
+    private final Store store;
+
+
+    /**
+     * Initializes a sequence.
+     *
+     * @param first The first key that may be handed out: larger than every stored key, and at least the persisted mark
+     * @param store Persists the high-water mark
+     */
+    KeySequence(int first, Store store) {
+        this.next = new AtomicInteger(Math.max(first, 1));
+        this.limit = this.next.get();
+        this.store = store;
+    }
+
+
+    /**
+     * Hands out a range of keys.
+     *
+     * @param count The number of keys, which may be 0
+     * @return The first key of the range
+     * @throws IOException If the high-water mark had to be moved, and could not be written
+     */
+    int allocate(int count) throws IOException {
+        int first = this.next.getAndAdd(count);
+        this.reach(first + count);
+        return first;
+    }
+
+
+    /**
+     * Moves the sequence past a key that was chosen by the caller, so that it is never handed out.
+     *
+     * @param key The key
+     * @throws IOException If the high-water mark had to be moved, and could not be written
+     */
+    void skipPast(int key) throws IOException {
+        this.next.accumulateAndGet(key + 1, Math::max);
+        this.reach(key + 1);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Makes sure every key below end is covered by the persisted high-water mark.
+     */
+    private void reach(int end) throws IOException {
+        if (end <= this.limit) return;
+        synchronized (this) {
+            //Another thread may have moved it while we waited
+            if (end <= this.limit) return;
+            int newLimit = end + BLOCK_SIZE;
+            this.store.save(newLimit);
+            this.limit = newLimit;
+        }
+    }
+
+
+    /**
+     * Persists the high-water mark of one sequence.
+     */
+    interface Store {
+
+        /**
+         * Saves the high-water mark.
+         *
+         * @param limit Every key that was handed out is below this
+         * @throws IOException If it cannot be saved
+         */
+        void save(int limit) throws IOException;
+
+    }
+
+
+}
@@ -0,0 +1,1318 @@
+package persistence;
+
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+
+/**
+ * Persists each entity type to a segment file, segment(Class Name).dat, that is read and written through a memory mapping.
+ * Records are appended to the segment, and an offset table in memory maps each primary key to where its latest record starts,
+ * so get decodes only the records it asks for, straight out of the page cache, instead of every record before them.
+ * Unlike JournalPersistenceGateway, records are not kept in memory, so a type can be much larger than the heap.
+ * <p>
+ * Each record in a segment is laid out as: operation (1 byte), primary key (4 bytes),
+ * length of the serialized entity (4 bytes), checksum of the serialized entity (8 bytes), then the serialized entity.
+ * A delete record has a length of 0 and no entity. The operation is written last, so a record is only seen once it is whole.
+ * The mapping is larger than the records in it, and the rest is zeros, so the records end at the first byte that is not an operation.
+ * <p>
+ * The offset table is rebuilt the first time a type is used, by checking the header and checksum of every record,
+ * without decoding any of them. A record that replaces or deletes an older one leaves the older one in the segment.
+ * When a segment runs out of room, it is rewritten with only its latest records if more than half of it is taken up
+ * by older ones, and mapped again at twice its size otherwise. A segment can hold up to 2 GB.
+ * <p>
+ * findBy needs the values of every record, so the indexes of a type are built by decoding all of its records
+ * the first time findBy is used on it, and kept up to date from then on.
+ * If a type has no segment yet, but has a .ser file written by SerPersistenceGateway, that file is imported into a new segment.
+ * <p>
+ * Each type has its own read/write lock. Reads of a type run in parallel, writes to a type run one at a time,
+ * and different types never block each other. Every write is forced to disk before it returns,
+ * and the offset table only points at its records once all of them are, so a write that fails leaves nothing behind.
+ * A unit of work is first written to segmentunitofwork.log, the same way JournalPersistenceGateway does.
+ */
+public class MappedPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
+
+    /**
+     * The operations a segment record can hold.
+     */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * The number of bytes a record takes up in a segment, besides the serialized entity.
+     */
+    private static final int RECORD_HEADER_LENGTH = 17;
+
+    /**
+     * The size a segment is first mapped at.
+     */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * The directory that holds the segments and sequences of every type.
+     */
+    private final File directory;
+
+    /**
+     * Where a unit of work is written before its records are appended to the segments.
+     */
+    private final File unitLog;
+
+    /**
+     * Holds the open segment of each type that has been used.
+     * "Class Name": Segment
+     */
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * The read/write lock of each type.
+     */
+    private final TypeLocks locks = new TypeLocks();
+
+    /**
+     * Used to import and remove the .ser files of types that were saved before segments were used.
+     */
+    private final SerPersistenceGateway legacy;
+
+    /**
+     * Held while the unit of work log is written, appended to the segments and deleted.
+     */
+    private final Object unitLogLock = new Object();
+
+    /**
+     * Whether a unit of work left behind by the last run has been looked for.
+     */
+    private volatile boolean recovered = false;
+
+
+    /**
+     * Creates a gateway that stores records with BinaryCodec.
+     */
+    public MappedPersistenceGateway() {
+        this(new BinaryCodec());
+    }
+
+
+    /**
+     * Creates a gateway that stores records with the given codec.
+     *
+     * @param codec Turns records into the bytes that are stored, and back
+     */
+    public MappedPersistenceGateway(EntityCodec codec) {
+        this(codec, new File("").getAbsoluteFile());
+    }
+
+
+    /**
+     * Creates a gateway that keeps its files in the given directory, instead of the working directory.
+     *
+     * @param codec     Turns records into the bytes that are stored, and back
+     * @param directory The directory of the segments and .ser files
+     */
+    public MappedPersistenceGateway(EntityCodec codec, File directory) {
+        super(codec);
+        this.directory = directory;
+        this.unitLog = new File(directory, "segmentunitofwork.log");
+        this.legacy = new SerPersistenceGateway(false, codec, Collections.emptySet(), directory);
+    }
+
+
+    /**
+     * Returns one instance of records based on the id. Only that record is decoded.
+     *
+     * @param id   the unique key of the record
+     * @param type .class information about class T
+     * @param <T>  the class type that we are querying
+     * @return An object of class T
+     * @throws IOException
+     */
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) {
+            Persistable p = pinned.get(id);
+            return p == null ? null : type.cast(this.copy(p));
+        }
+
+        Segment segment = this.load(type);
+        byte[] bytes;
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            Integer offset = segment.offsets.get(id);
+            if (offset == null) return null;
+            bytes = this.readEntity(segment.map, offset);
+        } finally {
+            lock.unlock();
+        }
+        //The bytes are our own, so they can be decoded after the lock is released
+        return type.cast(this.decode(bytes));
+
+    }
+
+
+    /**
+     * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of idList. Id's that do not exist are skipped.
+     *
+     * @param idList a list of id's to be retrieved
+     * @param type   .class information about class T
+     * @param <T>    the class type of each element in List
+     * @return An List of the records requested
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.get(idList), type);
+
+        Segment segment = this.load(type);
+        List<byte[]> found = new ArrayList<>();
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            for (Integer id : new LinkedHashSet<>(idList)) {
+                Integer offset = segment.offsets.get(id);
+                if (offset != null) found.add(this.readEntity(segment.map, offset));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this.decodeAll(found, type);
+
+    }
+
+
+    /**
+     * Gets the records whose field has the given value, through the index on that field.
+     * The first call for a type decodes every record of the type to build its indexes.
+     *
+     * @param field the name of the indexed field
+     * @param value the value that the field must have
+     * @param type  .class information about class T
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException              throws this exception if there is a IO error.
+     * @throws IllegalArgumentException throws this exception if the field is not indexed.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.findBy(field, value), type);
+
+        Segment segment = this.load(type);
+        if (!segment.indexedFields.containsKey(field)) throw new IllegalArgumentException(field + " is not an indexed field.");
+        if (segment.indexes == null) this.buildIndexes(segment);
+
+        List<byte[]> found = new ArrayList<>();
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            Set<Integer> keys = segment.indexes.get(field).get(value);
+            if (keys != null) {
+                for (Integer key : keys) {
+                    found.add(this.readEntity(segment.map, segment.offsets.get(key)));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this.decodeAll(found, type);
+
+    }
+
+
+    /**
+     * Gets all records that exist in a file/table with the given key.
+     * If a type has never been persisted before, we return an empty List since there are no entries to be found.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each element in List
+     * @return An List of all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.copies(pinned.all(), type);
+
+        Segment segment = this.load(type);
+        List<byte[]> found = new ArrayList<>();
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            for (Integer offset : segment.offsets.values()) {
+                found.add(this.readEntity(segment.map, offset));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this.decodeAll(found, type);
+
+    }
+
+
+    /**
+     * Reads all records of a type lazily, one at a time, instead of reading them all into a List first.
+     * The cursor must be closed once the caller is done with it. See Cursor.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each record
+     * @return A cursor over all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.stream(type, record -> true);
+    }
+
+
+    /**
+     * Reads the records of a type that match a filter lazily, one at a time, decoding each only when it is reached.
+     * Records are never changed where they are in a segment, and a mapping stays valid after its segment is
+     * rewritten or mapped again, so the cursor reads the records as they were when it was opened, without holding a lock.
+     *
+     * @param type   .class information about class T.
+     * @param filter Whether a record should be handed out
+     * @param <T>    the class type of each record
+     * @return A cursor over the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return this.cursor(type, new ArrayList<>(pinned.all()), filter);
+
+        Segment segment = this.load(type);
+        ByteBuffer map;
+        List<Integer> offsets;
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            map = segment.map;
+            offsets = new ArrayList<>(segment.offsets.values());
+        } finally {
+            lock.unlock();
+        }
+
+        return new AbstractCursor<T>() {
+
+            private int next = 0;
+
+            @Override
+            protected T fetch() throws IOException {
+                while (this.next < offsets.size()) {
+                    T record = type.cast(decode(readEntity(map, offsets.get(this.next++))));
+                    if (filter.test(record)) return record;
+                }
+                return null;
+            }
+
+        };
+
+    }
+
+
+    /**
+     * Takes a consistent snapshot of the records of some types and pins it to the current thread. See Snapshot.
+     * The records are not in memory, so every record of the types is decoded, under their read locks.
+     *
+     * @param types .class information about the types
+     * @return The snapshot, which must be closed on this thread
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+
+        //Loaded before any lock is taken, since opening a segment takes the write lock of its type
+        Map<String, Segment> open = new HashMap<>();
+        for (Class<?> type : types) {
+            open.put(type.getName(), this.load(type));
+        }
+
+        Map<String, EntityTable> tables = new HashMap<>();
+        List<Lock> taken = this.locks.readAll(open.keySet());
+        try {
+            for (Class<?> type : types) {
+                Segment segment = open.get(type.getName());
+                EntityTable table = new EntityTable(type);
+                for (Integer offset : segment.offsets.values()) {
+                    table.put(this.decode(this.readEntity(segment.map, offset)));
+                }
+                tables.put(type.getName(), table);
+            }
+        } finally {
+            this.locks.unlock(taken);
+        }
+        return this.pin(tables);
+
+    }
+
+
+    /**
+     * Saves new objects into persistence. Will not modify existing objects.
+     * These objects must be of the same type and implement the Persistable interface.
+     * If any one of the objects fail to be saved (due to, for example, a conflicting primary key), then none of them will be saved.
+     * If any one of the objects have a primary key of 0, the gateway will automatically generate a primary key,
+     * and save the object(s) with that primary key, and return an List of these objects
+     * with the primary key of that object updated.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+
+        if (newObjList.size() == 0) return newObjList;
+
+        //First check if duplicates exist in our provided List, except 0
+        this.hasDuplicateKeys(newObjList);
+
+        Segment segment = this.load(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Keys come from the sequence of the type, so the stored records do not need to be scanned
+            this.assignKeys(newObjList, type);
+
+            //We need to check if everything passed in is of the same type (not including subclasses).
+            if (!this.containsOneType(newObjList, this.storedTable(type, segment, Collections.<Integer>emptyList()).sample())) {
+                throw new NonUniformObjectsException();
+            }
+
+            for (Persistable p : newObjList) {
+                if (segment.offsets.containsKey(p.getKey())) {
+                    throw new EntryExistsException();
+                }
+            }
+
+            this.put(segment, newObjList);
+        } finally {
+            lock.unlock();
+        }
+
+        return newObjList;
+
+    }
+
+
+    /**
+     * Saves one object into persistence.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key.
+     */
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        List<T> resultList = this.create(objectList, type);
+        return resultList.get(0);
+
+    }
+
+
+    /**
+     * Updates one record with the same primary key in the current storage.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return true if the update was successful
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+
+    }
+
+
+    /**
+     * Updates the records with the same primary key in the current storage.
+     * Will keep records for primary keys which are not updated.
+     * If the ArrayList provided consists of objects of different types, a NonUniformObjectsException will be thrown.
+     * If a record is provided for which the primary key does not currently exist in storage, an EntryDoesNotExistException will be thrown.
+     * If any two records in updateObjList has the same primary key, an EntryExistsException will be thrown.
+     * If a record has been updated in storage since it was read, a VersionConflictException will be thrown.
+     * Otherwise every record that differs from what is stored is saved, and its version is increased by one.
+     * Records that are the same as what is stored are not written again, and keep their version.
+     *
+     * @param updateObjList an ArrayList of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @return true if the update was successful
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
+     * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
+     */
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+
+        if (updateObjList.size() == 0) return false;
+
+        //First check if duplicates exist in our provided List
+        this.hasDuplicateKeys(updateObjList);
+
+        Segment segment = this.load(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Only the records being updated are decoded
+            EntityTable stored = this.storedTable(type, segment, this.getListOfPrimaryKeys(updateObjList));
+
+            //Check we have only passed in one type of object.
+            if (!this.containsOneType(updateObjList, stored.sample())) throw new NonUniformObjectsException();
+
+            //Check every object exists and was read at its stored version
+            this.checkVersions(updateObjList, stored);
+
+            //Objects that are the same as what is stored keep their version, and are not written
+            List<T> changed = this.changedRecords(updateObjList, stored);
+            if (changed.isEmpty()) return true;
+
+            this.shiftVersions(changed, 1);
+            try {
+                this.put(segment, changed);
+            } catch (IOException e) {
+                this.shiftVersions(changed, -1);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+
+    }
+
+
+    /**
+     * Deletes a certain number of objects from persistence.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     * @return true if the delete was successful
+     * @throws IOException
+     */
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+
+        Segment segment = this.load(type);
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            Set<Integer> existingIds = new LinkedHashSet<>();
+            for (Integer id : idList) {
+                if (segment.offsets.containsKey(id)) existingIds.add(id);
+            }
+            if (existingIds.isEmpty()) return false;
+
+            List<Append> appends = new ArrayList<>(existingIds.size());
+            for (Integer id : existingIds) {
+                appends.add(new Append(DELETE, id, new byte[0], null));
+            }
+            this.append(segment, appends);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+
+    }
+
+
+    /**
+     * Removes all records relating to this key.
+     *
+     * @param type .class information about class T
+     * @param <T>  the class type
+     * @return true if the file exists and was successfully deleted, returns false otherwise
+     */
+    @Override
+    public <T> boolean remove(Class<T> type) {
+
+        try {
+            this.recover();
+        } catch (IOException e) {
+            System.out.println("Could not finish the unit of work left in " + this.unitLog);
+        }
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            Segment segment = this.segments.remove(type.getName());
+            if (segment != null) segment.close();
+            this.resetKeys(type);
+            new File(this.getSequencePath(type.getName())).delete();
+            boolean legacyRemoved = this.legacy.remove(type);
+            File file = new File(this.getFilePath(type.getName()));
+            return file.delete() || legacyRemoved;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work, which saves creates, updates and deletes across entity types together when committed.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        return new MappedUnitOfWork();
+    }
+
+
+    /**
+     * Returns a future that completes once every create, update and delete that has returned so far is on disk.
+     * They are forced to disk before they return, so the future is already complete.
+     *
+     * @return A completed future
+     */
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+
+    /**
+     * Opens the segment of a type and builds its offset table, then decodes its records once to build its indexes,
+     * if it has any Indexed fields.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        Segment segment = this.load(type);
+        if (!segment.indexedFields.isEmpty() && segment.indexes == null) this.buildIndexes(segment);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Returns the open segment of a type, opening it and building its offset table if it has not been used yet.
+     * Must not be called while holding the read lock of the type, since opening takes its write lock.
+     */
+    private Segment load(Class<?> type) throws IOException {
+
+        this.recover();
+
+        Segment segment = this.segments.get(type.getName());
+        if (segment != null) return segment;
+
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Another thread may have opened the type while we were waiting
+            segment = this.segments.get(type.getName());
+            if (segment != null) return segment;
+
+            segment = this.open(type.getName(), EntityTable.indexedFieldsOf(type));
+            this.segments.put(type.getName(), segment);
+            if (segment.channel == null) {
+                //Import the records saved by SerPersistenceGateway, if there are any
+                List<Persistable> imported = new ArrayList<>();
+                try {
+                    for (Object o : this.legacy.all(type)) {
+                        imported.add((Persistable) o);
+                    }
+                    if (!imported.isEmpty()) this.put(segment, imported);
+                } catch (IOException e) {
+                    this.segments.remove(type.getName());
+                    segment.close();
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return segment;
+
+    }
+
+
+    /**
+     * Maps a segment file and builds its offset table. A file that does not exist is only created by the first append.
+     * A record that is not whole, or does not match its checksum, ends the segment, and is overwritten by the next append.
+     */
+    private Segment open(String typeName, Map<String, Field> indexedFields) throws IOException {
+
+        Segment segment = new Segment(typeName, new File(this.getFilePath(typeName)), indexedFields);
+        if (!segment.file.exists()) return segment;
+
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        segment.channel = raf.getChannel();
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) throw new IOException(segment.file + " is larger than a segment can be.");
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(length, INITIAL_CAPACITY));
+
+            int position = 0;
+            while (position + RECORD_HEADER_LENGTH <= segment.map.capacity()) {
+                byte operation = segment.map.get(position);
+                if (operation != PUT && operation != DELETE) break;
+                int key = segment.map.getInt(position + 1);
+                int entityLength = segment.map.getInt(position + 5);
+                if (entityLength < 0 || entityLength > segment.map.capacity() - position - RECORD_HEADER_LENGTH) break;
+                if (segment.map.getLong(position + 9) != this.checksum(this.readEntity(segment.map, position))) break;
+
+                this.index(segment, operation, key, position, null);
+                position += RECORD_HEADER_LENGTH + entityLength;
+            }
+            segment.end = position;
+        } catch (IOException | RuntimeException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+
+    }
+
+
+    /**
+     * Appends the records to the segment, and forces them to disk. The write lock of the type must be held.
+     */
+    private void put(Segment segment, List<? extends Persistable> records) throws IOException {
+        List<Append> appends = new ArrayList<>(records.size());
+        for (Persistable p : records) {
+            appends.add(new Append(PUT, p.getKey(), this.encode(p), p));
+        }
+        this.append(segment, appends);
+    }
+
+
+    /**
+     * Appends records to the segment and forces them to disk, then points the offset table at them.
+     * If any of them cannot be appended, none of them are, and the offset table is left as it was.
+     * The write lock of the type must be held.
+     */
+    private void append(Segment segment, List<Append> appends) throws IOException {
+        this.stage(segment, appends);
+        try {
+            segment.map.force();
+        } catch (RuntimeException e) {
+            this.discard(segment, appends);
+            throw e;
+        }
+        this.publish(segment, appends);
+    }
+
+
+    /**
+     * Makes room at the end of the segment, then writes the records there without moving its end or pointing
+     * the offset table at them, so nothing reads them until they are published. The write lock of the type must be held.
+     * A 0 byte is written after the last record, so that opening the segment stops there, whatever an earlier write
+     * that failed or was torn by a crash left further on.
+     */
+    private void stage(Segment segment, List<Append> appends) throws IOException {
+
+        long length = 0;
+        for (Append append : appends) {
+            length += RECORD_HEADER_LENGTH + append.bytes.length;
+        }
+        this.reserve(segment, length + 1);
+
+        int position = segment.end;
+        for (Append append : appends) {
+            this.writeRecord(segment.map, position, append.operation, append.key, append.bytes);
+            position += RECORD_HEADER_LENGTH + append.bytes.length;
+        }
+        segment.map.put(position, (byte) 0);
+
+    }
+
+
+    /**
+     * Makes sure this many bytes fit after the end of the segment, by rewriting it or mapping it again at a larger size.
+     * Only moves the records that are already published. The write lock of the type must be held.
+     */
+    private void reserve(Segment segment, long length) throws IOException {
+
+        if (segment.channel == null) {
+            FileChannel channel = new RandomAccessFile(segment.file, "rw").getChannel();
+            try {
+                segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            segment.channel = channel;
+        }
+        long needed = segment.end + length;
+        if (needed > segment.map.capacity()) {
+            //Rewriting is only worth it if it frees at least half of the segment
+            if (segment.garbage * 2 > segment.end) this.rewrite(segment);
+            needed = segment.end + length;
+            if (needed > segment.map.capacity()) {
+                long capacity = Math.max((long) segment.map.capacity() * 2, needed);
+                if (needed > Integer.MAX_VALUE) throw new IOException(segment.file + " is full.");
+                segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+            }
+        }
+
+    }
+
+
+    /**
+     * Points the offset table at records that were staged and forced to disk, and moves the end of the segment past them.
+     */
+    private void publish(Segment segment, List<Append> appends) {
+        int position = segment.end;
+        for (Append append : appends) {
+            this.index(segment, append.operation, append.key, position, append.record);
+            position += RECORD_HEADER_LENGTH + append.bytes.length;
+        }
+        segment.end = position;
+    }
+
+
+    /**
+     * Clears the operation of every record that was staged but will not be published, so that opening
+     * the segment again never finds any of them, even if they already reached the disk, and even once later appends
+     * have written over some of them. The next append writes over them.
+     */
+    private void discard(Segment segment, List<Append> appends) {
+        int position = segment.end;
+        for (Append append : appends) {
+            segment.map.put(position, (byte) 0);
+            position += RECORD_HEADER_LENGTH + append.bytes.length;
+        }
+        try {
+            segment.map.force();
+        } catch (RuntimeException e) {
+            System.out.println("Could not clear the records of a failed write from " + segment.file);
+        }
+    }
+
+
+    /**
+     * Writes one record at a position of a mapping, with its operation last.
+     */
+    private void writeRecord(MappedByteBuffer map, int position, byte operation, int key, byte[] bytes) {
+        ByteBuffer view = map.duplicate();
+        view.position(position + 1);
+        view.putInt(key);
+        view.putInt(bytes.length);
+        view.putLong(this.checksum(bytes));
+        view.put(bytes);
+        map.put(position, operation);
+    }
+
+
+    /**
+     * Points the offset table at a record that was just read or written, and counts the record it replaces as garbage.
+     *
+     * @param record The record, to keep the indexes up to date if they have been built, or null if it is not known
+     */
+    private void index(Segment segment, byte operation, int key, int position, Persistable record) {
+
+        Integer replaced = segment.offsets.get(key);
+        if (replaced != null) segment.garbage += RECORD_HEADER_LENGTH + segment.map.getInt(replaced + 5);
+        if (segment.indexes != null) segment.unindex(key);
+
+        if (operation == PUT) {
+            segment.offsets.put(key, position);
+            if (segment.indexes != null) segment.index(key, record);
+        } else {
+            segment.offsets.remove(key);
+            //A delete record is only needed while the record it deletes is still in the segment
+            segment.garbage += RECORD_HEADER_LENGTH;
+        }
+
+    }
+
+
+    /**
+     * Writes the latest record of every key to a new segment file, then replaces the old file with it.
+     * The old mapping stays valid for cursors and snapshots that still read from it. The write lock of the type must be held.
+     */
+    private void rewrite(Segment segment) throws IOException {
+
+        long live = (long) segment.end - segment.garbage;
+        File newFile = new File(segment.file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(newFile, "rw");
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer map;
+        Map<Integer, Integer> offsets = new LinkedHashMap<>();
+        int position = 0;
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(Math.min(live * 2, Integer.MAX_VALUE), INITIAL_CAPACITY));
+            for (Map.Entry<Integer, Integer> entry : segment.offsets.entrySet()) {
+                byte[] bytes = this.readEntity(segment.map, entry.getValue());
+                this.writeRecord(map, position, PUT, entry.getKey(), bytes);
+                offsets.put(entry.getKey(), position);
+                position += RECORD_HEADER_LENGTH + bytes.length;
+            }
+            map.force();
+            Files.move(newFile.toPath(), segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            newFile.delete();
+            throw e;
+        }
+
+        segment.channel.close();
+        segment.channel = channel;
+        segment.map = map;
+        segment.offsets.clear();
+        segment.offsets.putAll(offsets);
+        segment.end = position;
+        segment.garbage = 0;
+
+    }
+
+
+    /**
+     * Decodes every record of a segment once, to build the indexes of its Indexed fields.
+     */
+    private void buildIndexes(Segment segment) throws IOException {
+
+        Lock lock = this.locks.write(segment.typeName);
+        lock.lock();
+        try {
+            if (segment.indexes != null) return;
+            Map<String, Map<Object, Set<Integer>>> indexes = new HashMap<>();
+            for (String field : segment.indexedFields.keySet()) {
+                indexes.put(field, new HashMap<>());
+            }
+            segment.indexes = indexes;
+            for (Map.Entry<Integer, Integer> entry : segment.offsets.entrySet()) {
+                segment.index(entry.getKey(), this.decode(this.readEntity(segment.map, entry.getValue())));
+            }
+        } catch (IOException | RuntimeException e) {
+            segment.indexes = null;
+            segment.indexedValues.clear();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Decodes the stored records with these primary keys into a table, for the checks of an update or unit of work.
+     * If none of them are stored, one other record is decoded, so that the type of new records can still be checked.
+     * The lock of the type must be held.
+     */
+    private EntityTable storedTable(Class<?> type, Segment segment, Collection<Integer> keys) throws IOException {
+
+        EntityTable table = new EntityTable(type);
+        for (Integer key : keys) {
+            Integer offset = segment.offsets.get(key);
+            if (offset != null) table.put(this.decode(this.readEntity(segment.map, offset)));
+        }
+        if (table.size() == 0 && !segment.offsets.isEmpty()) {
+            table.put(this.decode(this.readEntity(segment.map, segment.offsets.values().iterator().next())));
+        }
+        return table;
+
+    }
+
+
+    /**
+     * Copies the serialized entity of the record at a position out of a mapping.
+     */
+    private byte[] readEntity(ByteBuffer map, int position) {
+        ByteBuffer view = map.duplicate();
+        view.position(position + 5);
+        byte[] bytes = new byte[view.getInt()];
+        view.position(position + RECORD_HEADER_LENGTH);
+        view.get(bytes);
+        return bytes;
+    }
+
+
+    private <T> List<T> decodeAll(List<byte[]> found, Class<T> type) throws IOException {
+        List<T> result = new ArrayList<>(found.size());
+        for (byte[] bytes : found) {
+            result.add(type.cast(this.decode(bytes)));
+        }
+        return result;
+    }
+
+
+    private <T> List<T> copies(Collection<Persistable> stored, Class<T> type) throws IOException {
+        List<T> result = new ArrayList<>(stored.size());
+        for (Persistable p : stored) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+    }
+
+
+    /**
+     * Writes the records of a unit of work to the unit log and flushes it to disk, then appends them to the segments.
+     * The write locks of every type in the unit must be held, and the changes checked.
+     */
+    private void write(Map<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> changes) throws IOException {
+
+        //Deleting a key that is not stored does nothing
+        int count = 0;
+        for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+            Segment segment = this.segments.get(type.getKey().getName());
+            type.getValue().entrySet().removeIf(e -> e.getValue().record == null && !segment.offsets.containsKey(e.getKey()));
+            count += type.getValue().size();
+        }
+
+        Map<Class<?>, List<Append>> appends = new LinkedHashMap<>();
+        ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        DataOutputStream unitOutput = new DataOutputStream(unit);
+        unitOutput.writeInt(count);
+        for (Map.Entry<Class<?>, Map<Integer, AbstractUnitOfWork.Change>> type : changes.entrySet()) {
+            List<Append> records = new ArrayList<>();
+            for (Map.Entry<Integer, AbstractUnitOfWork.Change> change : type.getValue().entrySet()) {
+                Persistable record = change.getValue().record;
+                byte[] bytes = record == null ? new byte[0] : this.encode(record);
+                unitOutput.writeUTF(type.getKey().getName());
+                unitOutput.writeByte(record == null ? DELETE : PUT);
+                unitOutput.writeInt(change.getKey());
+                unitOutput.writeInt(bytes.length);
+                unitOutput.writeLong(this.checksum(bytes));
+                unitOutput.write(bytes);
+                records.add(new Append(record == null ? DELETE : PUT, change.getKey(), bytes, record));
+            }
+            appends.put(type.getKey(), records);
+        }
+
+        synchronized (this.unitLogLock) {
+            File log = this.unitLog;
+            try (FileOutputStream output = new FileOutputStream(log)) {
+                unit.writeTo(output);
+                output.getFD().sync();
+            } catch (IOException e) {
+                log.delete();
+                throw e;
+            }
+            //The unit is saved from here on. If the application stops now, recover appends it to the segments.
+            //Nothing is published until every segment has its records on disk, so a failure leaves every segment as it was.
+            Map<Segment, List<Append>> staged = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<Class<?>, List<Append>> type : appends.entrySet()) {
+                    if (type.getValue().isEmpty()) continue;
+                    Segment segment = this.segments.get(type.getKey().getName());
+                    this.stage(segment, type.getValue());
+                    staged.put(segment, type.getValue());
+                }
+                for (Segment segment : staged.keySet()) {
+                    segment.map.force();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.rollBack(log, staged);
+                throw e;
+            }
+            for (Map.Entry<Class<?>, List<Append>> type : appends.entrySet()) {
+                if (type.getValue().isEmpty()) continue;
+                Segment segment = this.segments.get(type.getKey().getName());
+                this.publish(segment, type.getValue());
+            }
+            Files.delete(log.toPath());
+        }
+
+    }
+
+
+    /**
+     * Undoes a unit of work that could not be appended to every segment: discards what it staged,
+     * then deletes its log, so that it is not finished on the next start either.
+     */
+    private void rollBack(File log, Map<Segment, List<Append>> staged) {
+        for (Map.Entry<Segment, List<Append>> entry : staged.entrySet()) {
+            this.discard(entry.getKey(), entry.getValue());
+        }
+        if (!log.delete()) {
+            System.out.println("Could not delete " + this.unitLog + " of a failed unit of work. It will be finished on the next start.");
+        }
+    }
+
+
+    /**
+     * Appends the records of a unit of work that was saved, but not yet appended to the segments, when the application stopped.
+     * Only looks for the unit log the first time the gateway is used, before any segment is open.
+     * A unit log that is incomplete was never saved, and is dropped.
+     */
+    private void recover() throws IOException {
+
+        if (this.recovered) return;
+        synchronized (this.unitLogLock) {
+            if (this.recovered) return;
+            File log = this.unitLog;
+            if (log.exists()) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+                    //{class name: records to append}
+                    Map<String, List<Append>> records = new LinkedHashMap<>();
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String typeName = input.readUTF();
+                        byte operation = input.readByte();
+                        int key = input.readInt();
+                        byte[] bytes = new byte[input.readInt()];
+                        long checksum = input.readLong();
+                        input.readFully(bytes);
+                        if (checksum != this.checksum(bytes)) throw new EOFException();
+                        records.computeIfAbsent(typeName, t -> new ArrayList<>()).add(new Append(operation, key, bytes, null));
+                    }
+
+                    //Appending a record that is already in a segment again only replaces it with itself
+                    for (Map.Entry<String, List<Append>> type : records.entrySet()) {
+                        Segment segment = this.open(type.getKey(), Collections.emptyMap());
+                        try {
+                            this.append(segment, type.getValue());
+                        } finally {
+                            segment.close();
+                        }
+                    }
+                } catch (EOFException | UTFDataFormatException | NegativeArraySizeException e) {
+                    //The log was not finished, so the unit was never saved
+                }
+                Files.delete(log.toPath());
+            }
+            this.recovered = true;
+        }
+
+    }
+
+
+    private long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+
+    private String getFilePath(String fileName) {
+        return new File(this.directory, "segment" + fileName + ".dat").getPath();
+    }
+
+
+    private String getSequencePath(String fileName) {
+        return new File(this.directory, "segment" + fileName + ".seq").getPath();
+    }
+
+
+    @Override
+    protected int loadNextKey(Class<?> type) throws IOException {
+
+        Segment segment = this.load(type);
+        int stored = 1;
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            for (Integer key : segment.offsets.keySet()) {
+                stored = Math.max(stored, key + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Math.max(stored, readKeyLimit(this.getSequencePath(type.getName())));
+
+    }
+
+
+    @Override
+    protected void saveKeyLimit(Class<?> type, int limit) throws IOException {
+        writeKeyLimit(this.getSequencePath(type.getName()), limit);
+    }
+
+
+    /**
+     * One record to append to a segment.
+     */
+    private static class Append {
+
+        private final byte operation;
+
+        private final int key;
+
+        private final byte[] bytes;
+
+        /**
+         * The record that was encoded, to keep the indexes up to date, or null if it is a delete or is not known.
+         */
+        private final Persistable record;
+
+        private Append(byte operation, int key, byte[] bytes, Persistable record) {
+            this.operation = operation;
+            this.key = key;
+            this.bytes = bytes;
+            this.record = record;
+        }
+
+    }
+
+
+    /**
+     * Holds the mapping of one segment file, and where the latest record of each key is in it.
+     * Anything that reads the segment takes the read lock of its type, and anything that writes to it takes the write lock.
+     */
+    private static class Segment {
+
+        private final String typeName;
+
+        private final File file;
+
+        /**
+         * The open file and its mapping, or null until the first record is appended to a segment that did not exist.
+         */
+        private FileChannel channel;
+
+        private MappedByteBuffer map;
+
+        /**
+         * Where the next record is written.
+         */
+        private int end;
+
+        /**
+         * The bytes taken up by records that have been replaced or deleted.
+         */
+        private long garbage;
+
+        /**
+         * {primary key: position of its latest record}, in the order the keys were first stored.
+         */
+        private final Map<Integer, Integer> offsets = new LinkedHashMap<>();
+
+        /**
+         * {field name: field} of the Indexed fields of the type.
+         */
+        private final Map<String, Field> indexedFields;
+
+        /**
+         * {field name: {field value: primary keys}}, or null until findBy is first used on the type.
+         */
+        private Map<String, Map<Object, Set<Integer>>> indexes;
+
+        /**
+         * {primary key: value of each Indexed field}, so that a key can be taken out of the indexes without decoding its record.
+         */
+        private final Map<Integer, Object[]> indexedValues = new HashMap<>();
+
+        private Segment(String typeName, File file, Map<String, Field> indexedFields) {
+            this.typeName = typeName;
+            this.file = file;
+            this.indexedFields = indexedFields;
+        }
+
+        private void index(int key, Persistable record) {
+            Object[] values = new Object[this.indexedFields.size()];
+            int i = 0;
+            for (Map.Entry<String, Field> field : this.indexedFields.entrySet()) {
+                values[i] = EntityTable.valueOf(field.getValue(), record);
+                this.indexes.get(field.getKey()).computeIfAbsent(values[i], v -> new TreeSet<>()).add(key);
+                i++;
+            }
+            this.indexedValues.put(key, values);
+        }
+
+        private void unindex(int key) {
+            Object[] values = this.indexedValues.remove(key);
+            if (values == null) return;
+            int i = 0;
+            for (String field : this.indexedFields.keySet()) {
+                Set<Integer> keys = this.indexes.get(field).get(values[i]);
+                keys.remove(key);
+                if (keys.isEmpty()) this.indexes.get(field).remove(values[i]);
+                i++;
+            }
+        }
+
+        /**
+         * Closes the file. The mapping stays valid until nothing refers to it any more.
+         */
+        private void close() {
+            if (this.channel == null) return;
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                System.out.println("Could not close " + this.file);
+            }
+        }
+
+    }
+
+
+    /**
+     * A unit of work that takes the write locks of every type it holds, then writes all of its records
+     * after one flush of the unit log.
+     */
+    private class MappedUnitOfWork extends AbstractUnitOfWork {
+
+        private MappedUnitOfWork() {
+            super(MappedPersistenceGateway.this);
+        }
+
+        @Override
+        protected void save(Map<Class<?>, Map<Integer, Change>> changes) throws IOException {
+            List<String> typeNames = new ArrayList<>();
+            for (Class<?> type : changes.keySet()) {
+                load(type);
+                typeNames.add(type.getName());
+            }
+            List<Lock> taken = locks.writeAll(typeNames);
+            try {
+                for (Class<?> type : changes.keySet()) {
+                    Segment segment = segments.get(type.getName());
+                    this.check(changes.get(type), storedTable(type, segment, changes.get(type).keySet()));
+                }
+                write(changes);
+            } finally {
+                locks.unlock(taken);
+            }
+        }
+
+    }
+
+
+}
@@ -28,4 +28,22 @@ public interface Persistable extends Serializable {
     void setKey(int id);
 
 
+    /**
+     * Retrieves the version of this Entity, which is the number of times it has been updated in storage.
+     * An update is only saved if it was made to the version that is currently stored,
+     * otherwise a VersionConflictException is thrown and the caller should read the record again.
+     *
+     * @return an integer representing the version of this entity
+     */
+    int getVersion();
+
+
+    /**
+     * Sets the version of this Entity. Only the persistence gateways should need to call this.
+     *
+     * @param version an integer representing the version of this entity
+     */
+    void setVersion(int version);
+
+
 }
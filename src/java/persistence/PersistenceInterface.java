@@ -3,9 +3,12 @@ package persistence;
 import persistence.exceptions.EntryDoesNotExistException;
 import persistence.exceptions.EntryExistsException;
 import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.VersionConflictException;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 
 /**
@@ -28,6 +31,7 @@ public interface PersistenceInterface {
 
     /**
      * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of idList. Id's that do not exist are skipped.
      *
      * @param idList a list of id's to be retrieved
      * @param type   .class information about class T
@@ -37,18 +41,71 @@ public interface PersistenceInterface {
      */
     <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException;
 
+    /**
+     * Gets the records whose field has the given value, through the index on that field.
+     * Only fields that are marked as Indexed can be looked up this way.
+     *
+     * @param field the name of the indexed field
+     * @param value the value that the field must have
+     * @param type  .class information about class T
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException              throws this exception if there is a IO error.
+     * @throws IllegalArgumentException throws this exception if the field is not indexed.
+     */
+    <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException;
+
 
     /**
      * Gets all records that exist in a file/table with the given key.
+     * Records come back oldest first, in the order they were created. Since generated primary keys only grow,
+     * that is also the order of their primary keys, unless records were created with keys of their own.
      *
      * @param type .class information about class T.
      * @param <T>  the class type of each element in ArrayList
-     * @return An ArrayList of all records
+     * @return An ArrayList of all records, oldest first
      * @throws IOException throws this exception if there is a IO error.
      */
     <T> List<T> all(Class<T> type) throws IOException;
 
 
+    /**
+     * Reads all records of a type lazily, one at a time, instead of reading them all into a List first.
+     * The cursor must be closed once the caller is done with it. See Cursor.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each record
+     * @return A cursor over all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    <T> Cursor<T> stream(Class<T> type) throws IOException;
+
+
+    /**
+     * Reads the records of a type that match a filter lazily, one at a time.
+     * The filter is run inside the gateway, before a record is copied or handed out,
+     * so records that do not match cost almost nothing. It must not change the records it is given.
+     *
+     * @param type   .class information about class T.
+     * @param filter Whether a record should be handed out
+     * @param <T>    the class type of each record
+     * @return A cursor over the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException;
+
+
+    /**
+     * Takes a consistent snapshot of the records of some types and pins it to the current thread,
+     * so that a long scan over them neither waits for writers nor holds them up. See Snapshot.
+     *
+     * @param types .class information about the types
+     * @return The snapshot, which must be closed on this thread
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    Snapshot snapshot(Class<?>... types) throws IOException;
+
+
     /**
      * Saves new objects into persistence. Will not modify existing objects.
      * These objects must be of the same type and implement the Persistable interface.
@@ -93,6 +150,7 @@ public interface PersistenceInterface {
      * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
      * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
      * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
      */
     <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException;
 
@@ -103,6 +161,9 @@ public interface PersistenceInterface {
      * If the ArrayList provided consists of objects of different types, a NonUniformObjectsException will be thrown.
      * If a record is provided for which the primary key does not currently exist in storage, an EntryDoesNotExistException will be thrown.
      * If any two records in updateObjList has the same primary key, an EntryExistsException will be thrown.
+     * If a record has been updated in storage since it was read, a VersionConflictException will be thrown.
+     * Otherwise every record that differs from what is stored is saved, and its version is increased by one.
+     * Records that are the same as what is stored are not written again, and keep their version.
      *
      * @param updateObjList an ArrayList of Persistable objects.
      * @param type          .class information about class T
@@ -112,6 +173,7 @@ public interface PersistenceInterface {
      * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
      * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
      * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
      */
     <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException;
 
@@ -138,4 +200,33 @@ public interface PersistenceInterface {
     <T> boolean remove(Class<T> type);
 
 
+    /**
+     * Starts a unit of work, which saves creates, updates and deletes across entity types together when committed.
+     *
+     * @return A new, empty unit of work
+     */
+    UnitOfWork beginUnitOfWork();
+
+
+    /**
+     * Returns a future that completes once every create, update and delete that has returned so far is durable.
+     * Gateways that write before returning hand out a future that is already complete.
+     * Callers only need to wait on it if they must not report success before the data is safe on disk.
+     *
+     * @return A future that completes when the writes are durable
+     */
+    CompletableFuture<Void> whenDurable();
+
+
+    /**
+     * Loads whatever a type needs before it can be read quickly, such as its records, indexes and caches,
+     * so that the first request that uses the type does not have to wait for it. Calling this is optional,
+     * since every type is also loaded the first time it is used. It is safe to call on many types at once.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    void warmUp(Class<?> type) throws IOException;
+
+
 }
@@ -1,20 +1,130 @@
 package persistence;
 
+import persistence.codec.BinaryCodec;
+import persistence.codec.EntityCodec;
 import persistence.exceptions.EntryDoesNotExistException;
 import persistence.exceptions.EntryExistsException;
 import persistence.exceptions.NonUniformObjectsException;
+import persistence.exceptions.VersionConflictException;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 
 /**
  * Persists to a ser file. Mimics the behaviour of a relational database.
+ * <p>
+ * In cached mode, each file is only read once. The records are then kept in memory, reads are served from memory,
+ * and every create/update/delete is written through to the file.
+ * Callers always receive their own copies of the records, so changing a returned object without calling update
+ * does not change what is stored, exactly as if it had been read from the file.
+ * <p>
+ * Each type has its own read/write lock, so the gateway can be shared by request threads.
+ * Reads of a type run in parallel, writes to a type run one at a time, and different types never block each other.
+ * Files are written to a temporary file first and then moved into place, so a file is never seen half-written.
+ * <p>
+ * A file holds a header (2 bytes), the number of records (4 bytes), then the length (4 bytes) and bytes of each record,
+ * as encoded by the codec of the gateway. Files written as one serialized List, before codecs were used, are still read.
+ * The files of the types given as compressed types have a different header, and everything after it compressed with Deflater.
  */
 public class SerPersistenceGateway extends AbstractPersistenceGateway implements PersistenceInterface {
 
+    /**
+     * The first bytes of a file of encoded records.
+     */
+    private static final short FILE_HEADER = 0x5E12;
+
+    /**
+     * The first bytes of a file of encoded records that are compressed.
+     */
+    private static final short COMPRESSED_HEADER = 0x5E13;
+
+    /**
+     * The first bytes of a file written with java.io.Serializable.
+     */
+    private static final short SERIALIZED_HEADER = (short) 0xACED;
+
+    /**
+     * Whether the records of each file are kept in memory after the first read.
+     */
+    private final boolean cached;
+
+    /**
+     * Holds the records of each file that has been read, when in cached mode.
+     * "File path": EntityTable
+     */
+    private final Map<String, EntityTable> cache = new ConcurrentHashMap<>();
+
+    /**
+     * The read/write lock of each type.
+     */
+    private final TypeLocks locks = new TypeLocks();
+
+    /**
+     * The directory that holds the file and the sequence of every type.
+     */
+    private final File directory;
+
+
+    /**
+     * Creates a gateway that reads the file on every request.
+     */
+    public SerPersistenceGateway() {
+        this(false);
+    }
+
+    /**
+     * Creates a gateway.
+     *
+     * @param cached Whether the records of each file should be kept in memory after the first read.
+     */
+    public SerPersistenceGateway(boolean cached) {
+        this(cached, new BinaryCodec());
+    }
+
+    /**
+     * Creates a gateway that stores records with the given codec.
+     *
+     * @param cached Whether the records of each file should be kept in memory after the first read.
+     * @param codec  Turns records into the bytes that are stored, and back
+     */
+    public SerPersistenceGateway(boolean cached, EntityCodec codec) {
+        this(cached, codec, Collections.emptySet());
+    }
+
+    /**
+     * Creates a gateway that stores records with the given codec, and compresses the files of some types.
+     *
+     * @param cached          Whether the records of each file should be kept in memory after the first read.
+     * @param codec           Turns records into the bytes that are stored, and back
+     * @param compressedTypes The class names of the types whose files are compressed
+     */
+    public SerPersistenceGateway(boolean cached, EntityCodec codec, Set<String> compressedTypes) {
+        this(cached, codec, compressedTypes, new File("").getAbsoluteFile());
+    }
+
+    /**
+     * Creates a gateway that keeps its files in the given directory, instead of the working directory.
+     *
+     * @param cached          Whether the records of each file should be kept in memory after the first read.
+     * @param codec           Turns records into the bytes that are stored, and back
+     * @param compressedTypes The class names of the types whose files are compressed
+     * @param directory       The directory of the .ser files
+     */
+    public SerPersistenceGateway(boolean cached, EntityCodec codec, Set<String> compressedTypes, File directory) {
+        super(codec, compressedTypes);
+        this.cached = cached;
+        this.directory = directory;
+    }
+
 
     /**
      * Returns one instance of records based on the id.
@@ -27,15 +137,14 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      */
     @Override
     public <T> T get(int id, Class<T> type) throws IOException {
-        List<Integer> idList = new ArrayList<>();
-        idList.add(id);
-        List<T> results = this.get(idList, type);
-        if (results.size() > 0) return results.get(0);
-        return null;
+        Persistable p = this.read(type, records -> records.get(id));
+        if (p == null) return null;
+        return type.cast(this.copy(p));
     }
 
     /**
      * Gets a list of records that exist in a file/table based on the provided idList.
+     * The records are returned in the order of idList. Id's that do not exist are skipped.
      *
      * @param idList a list of id's to be retrieved
      * @param type   .class information about class T
@@ -46,14 +155,32 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
 
-        List<T> all = this.all(type);
         List<T> result = new ArrayList<>();
+        for (Persistable p : this.read(type, records -> records.get(idList))) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
 
-        for (T t : all) {
-            Persistable p = (Persistable) t; //We know it's persistable due to the way we save
-            if (idList.contains(p.getKey())) {
-                result.add(t);
-            }
+    }
+
+
+    /**
+     * Gets the records whose field has the given value, through the index on that field.
+     *
+     * @param field the name of the indexed field
+     * @param value the value that the field must have
+     * @param type  .class information about class T
+     * @param <T>   the class type of each element in List
+     * @return A List of the matching records, in the order of their primary keys
+     * @throws IOException              throws this exception if there is a IO error.
+     * @throws IllegalArgumentException throws this exception if the field is not indexed.
+     */
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+
+        List<T> result = new ArrayList<>();
+        for (Persistable p : this.read(type, records -> records.findBy(field, value))) {
+            result.add(type.cast(this.copy(p)));
         }
         return result;
 
@@ -74,16 +201,122 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     public <T> List<T> all(Class<T> type) throws IOException {
 
         List<T> result = new ArrayList<T>();
+        for (Persistable p : this.read(type, records -> new ArrayList<>(records.all()))) {
+            result.add(type.cast(this.copy(p)));
+        }
+        return result;
+
+    }
+
+
+    /**
+     * Reads all records of a type lazily, one at a time, instead of reading them all into a List first.
+     * The cursor must be closed once the caller is done with it. See Cursor.
+     *
+     * @param type .class information about class T.
+     * @param <T>  the class type of each record
+     * @return A cursor over all records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.stream(type, record -> true);
+    }
+
+
+    /**
+     * Reads the records of a type that match a filter lazily, one at a time.
+     * The filter is run on the stored records, before they are copied, so it must not change them.
+     * Without the cache, records are read from the file as the cursor reaches them, and the file stays open until it is closed.
+     *
+     * @param type   .class information about class T.
+     * @param filter Whether a record should be handed out
+     * @param <T>    the class type of each record
+     * @return A cursor over the matching records
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+
+        if (this.cached || this.pinned(type) != null) {
+            return this.cursor(type, this.read(type, records -> new ArrayList<>(records.all())), filter);
+        }
+
+        //The file is only ever replaced, never changed, so the one we open stays whole while we read it
+        DataInputStream input;
         try {
-            List<Persistable> all = this.read(this.getFilePath(type.getName()));
-            for (Persistable t : all) {
-                result.add(type.cast(t));
-            }
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.getFilePath(type.getName()))));
         } catch (FileNotFoundException e) {
-            //Do nothing, since if there is no file that exists, we can return an empty list
+            return this.cursor(type, new ArrayList<>(), filter);
         }
 
-        return result;
+        try {
+            short header = input.readShort();
+            if (header != FILE_HEADER && header != COMPRESSED_HEADER) {
+                //Files written by Java serialization can only be read as a whole
+                input.close();
+                return this.cursor(type, this.read(type, records -> new ArrayList<>(records.all())), filter);
+            }
+            if (header == COMPRESSED_HEADER) input = inflating(input);
+            DataInputStream records = input;
+            int count = records.readInt();
+            return new AbstractCursor<T>() {
+
+                private int remaining = count;
+
+                @Override
+                protected T fetch() throws IOException {
+                    while (this.remaining > 0) {
+                        this.remaining--;
+                        byte[] bytes = new byte[records.readInt()];
+                        records.readFully(bytes);
+                        T record = type.cast(decode(bytes));
+                        if (filter.test(record)) return record;
+                    }
+                    return null;
+                }
+
+                @Override
+                protected void release() throws IOException {
+                    records.close();
+                }
+
+            };
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+
+    }
+
+
+    /**
+     * Takes a consistent snapshot of the records of some types and pins it to the current thread. See Snapshot.
+     * Every write replaces the table of its type rather than changing it, so the tables are pinned as they are,
+     * without copying anything. Without the cache, the files are read once, under their read locks.
+     *
+     * @param types .class information about the types
+     * @return The snapshot, which must be closed on this thread
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+
+        List<String> typeNames = new ArrayList<>();
+        for (Class<?> type : types) {
+            typeNames.add(type.getName());
+        }
+
+        Map<String, EntityTable> tables = new HashMap<>();
+        List<Lock> taken = this.locks.readAll(typeNames);
+        try {
+            for (Class<?> type : types) {
+                tables.put(type.getName(), this.read(type));
+            }
+        } finally {
+            this.locks.unlock(taken);
+        }
+        return this.pin(tables);
 
     }
 
@@ -112,40 +345,34 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
         //First check if duplicates exist in our provided ArrayList, except 0
         this.hasDuplicateKeys(newObjList);
 
-        //Then check if everything is one type
-        List<Persistable> existingList = null;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
         try {
-            existingList = this.read(this.getFilePath(type.getName()));
-        } catch (FileNotFoundException e) {
-            existingList = new ArrayList<>();
-        }
+            //Then check if everything is one type
+            EntityTable table = this.read(type);
 
-        int newKey = this.getNextPrimaryKey(existingList, newObjList);
-        //Now we assign non-zero keys
-        for (Persistable p : newObjList) {
-            if (p.getKey() == 0) {
-                p.setKey(newKey);
-                newKey++;
-            }
-        }
+            //Keys come from the sequence of the type, so the stored records do not need to be scanned
+            this.assignKeys(newObjList, type);
 
-        //We need to check if everything passed in is of the same type (not including subclasses).
-        //This is necessary since subclasses may require additional columns in a csv or in a relational database
-        if (!this.containsOneType(newObjList, existingList)) {
-            throw new NonUniformObjectsException();
-        }
+            //We need to check if everything passed in is of the same type (not including subclasses).
+            //This is necessary since subclasses may require additional columns in a csv or in a relational database
+            if (!this.containsOneType(newObjList, table.sample())) {
+                throw new NonUniformObjectsException();
+            }
 
-        List<Integer> existingIds = this.getListOfPrimaryKeys(existingList);
-        for (Persistable p : newObjList) {
-            if (existingIds.contains(p.getKey())) {
-                throw new EntryExistsException();
+            for (Persistable p : newObjList) {
+                if (table.contains(p.getKey())) {
+                    throw new EntryExistsException();
+                }
             }
-        }
 
-        List<Persistable> newList = new ArrayList<>(newObjList);
-        newList.addAll(existingList);
+            List<Persistable> newList = new ArrayList<>(newObjList);
+            newList.addAll(table.all());
 
-        this.write(newList, type.getName());
+            this.write(newList, type);
+        } finally {
+            lock.unlock();
+        }
 
         return newObjList;
 
@@ -184,6 +411,7 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
      * @throws EntryExistsException       throws this exception if there exists a duplicate primary keyin the provided list of objects to update.
      * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
      */
     @Override
     public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
@@ -201,6 +429,9 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      * If the ArrayList provided consists of objects of different types, a NonUniformObjectsException will be thrown.
      * If a record is provided for which the primary key does not currently exist in storage, an EntryDoesNotExistException will be thrown.
      * If any two records in updateObjList has the same primary key, an EntryExistsException will be thrown.
+     * If a record has been updated in storage since it was read, a VersionConflictException will be thrown.
+     * Otherwise every record that differs from what is stored is saved, and its version is increased by one.
+     * Records that are the same as what is stored are not written again, and keep their version.
      *
      * @param updateObjList an ArrayList of Persistable objects.
      * @param type          .class information about class T
@@ -210,6 +441,7 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      * @throws NonUniformObjectsException throws this exception if the ArrayList consists of objects of different types.
      * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list of objects to update.
      * @throws EntryDoesNotExistException throws this exception if an object's primary key does not exist in the current records.
+     * @throws VersionConflictException   throws this exception if an object has been updated since it was read.
      */
     @Override
     public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
@@ -219,33 +451,42 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
         //First check if duplicates exist in our provided List
         this.hasDuplicateKeys(updateObjList);
 
-        List<Persistable> existingList = null;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
         try {
-            existingList = this.read(this.getFilePath(type.getName()));
-        } catch (FileNotFoundException e) {
-            existingList = new ArrayList<>();
-        }
+            EntityTable table = this.read(type);
 
-        //Check we have only passed in one type of object.
-        if (!this.containsOneType(updateObjList, existingList)) throw new NonUniformObjectsException();
+            //Check we have only passed in one type of object.
+            if (!this.containsOneType(updateObjList, table.sample())) throw new NonUniformObjectsException();
 
-        List<Integer> existingIds = this.getListOfPrimaryKeys(existingList); //Get existing id's
-        List<Integer> updateIds = this.getListOfPrimaryKeys(updateObjList); //Get update id's
-        List<Persistable> newObjList = new ArrayList<>();
+            //Check every object exists and was read at its stored version
+            this.checkVersions(updateObjList, table);
 
-        //Add updated objects to our new list
-        for (Persistable p : updateObjList) {
-            if (existingIds.contains(p.getKey())) newObjList.add(p);
-            else throw new EntryDoesNotExistException();
-        }
+            //Objects that are the same as what is stored keep their version, and if none changed, the file is not rewritten
+            List<T> changed = this.changedRecords(updateObjList, table);
+            if (changed.isEmpty()) return true;
 
-        //Add unchanged objects to our new list
-        for (Persistable p : existingList) {
-            if (!updateIds.contains(p.getKey())) newObjList.add(p);
-        }
+            Set<Integer> updateIds = new HashSet<>(this.getListOfPrimaryKeys(changed)); //Get update id's
 
-        //Save our new list
-        this.write(newObjList, type.getName());
+            //Add updated objects to our new list
+            List<Persistable> newObjList = new ArrayList<>(changed);
+
+            //Add unchanged objects to our new list
+            for (Persistable p : table.all()) {
+                if (!updateIds.contains(p.getKey())) newObjList.add(p);
+            }
+
+            //Save our new list, with the updated objects one version further
+            this.shiftVersions(changed, 1);
+            try {
+                this.write(newObjList, type);
+            } catch (IOException e) {
+                this.shiftVersions(changed, -1);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
 
         return true;
 
@@ -264,17 +505,24 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
 
+        Set<Integer> ids = new HashSet<>(idList);
         List<Persistable> newObjList = new ArrayList<>();
-        List<Persistable> all = this.read(this.getFilePath(type.getName()));
-        for (Persistable p : all) {
-            if (!idList.contains(p.getKey())) newObjList.add(p);
-        }
-        if (all.size() != newObjList.size()) {
-            this.remove(type);
-            if (newObjList.size() != 0) this.write(newObjList, type.getName());
-            return true;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            EntityTable table = this.read(type);
+            for (Persistable p : table.all()) {
+                if (!ids.contains(p.getKey())) newObjList.add(p);
+            }
+            if (table.size() != newObjList.size()) {
+                this.removeFile(type);
+                if (newObjList.size() != 0) this.write(newObjList, type);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
 
     }
 
@@ -289,12 +537,58 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     @Override
     public <T> boolean remove(Class<T> type) {
 
-        File file = new File(this.getFilePath(type.getName()));
-        if (file.delete()) return true;
-        return false;
+        Lock lock = this.locks.write(type.getName());
+        lock.lock();
+        try {
+            //Keys start over once the type is gone
+            this.resetKeys(type);
+            new File(this.getSequencePath(type.getName())).delete();
+            return this.removeFile(type);
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+
+    /**
+     * Starts a unit of work, which saves creates, updates and deletes across entity types together when committed.
+     * On commit, the new contents of every file in the unit are written to temporary files before any file is replaced,
+     * so a file is never left half-written. If the application stops while the files are being replaced,
+     * only some of them may have been replaced.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+        return new SerUnitOfWork();
+    }
+
 
+    /**
+     * Files are written before each create, update and delete returns, so they are already durable.
+     *
+     * @return A future that is already complete
+     */
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return CompletableFuture.completedFuture(null);
     }
 
+
+    /**
+     * Reads the file of a type once, which keeps its records in memory in cached mode,
+     * and otherwise at least brings the file into the page cache of the operating system.
+     *
+     * @param type .class information about the type
+     * @throws IOException throws this exception if there is a IO error.
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.readLatest(type, records -> null);
+    }
+
+
     /********************************************************************************************************
      *
      * Helper methods.
@@ -302,28 +596,89 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
      *********************************************************************************************************/
 
 
-    private <S extends Persistable, T extends Persistable> int getNextPrimaryKey(List<S> existingList, List<T> newObjList) {
+    /**
+     * Reads the stored records of a type under its read lock, or from the snapshot of the type pinned to this thread.
+     * Stored records are never changed once they are in the table, only replaced,
+     * so whatever the reader returns can be copied after the lock is released.
+     */
+    private <R> R read(Class<?> type, Function<EntityTable, R> reader) throws IOException {
+        EntityTable pinned = this.pinned(type);
+        if (pinned != null) return reader.apply(pinned);
+        return this.readLatest(type, reader);
+    }
 
-        int max = 1;
-        for (Persistable p : existingList) {
-            if (p.getKey() >= max) max = p.getKey() + 1;
+
+    /**
+     * Reads the stored records of a type under its read lock, even if a snapshot of it is pinned to this thread.
+     */
+    private <R> R readLatest(Class<?> type, Function<EntityTable, R> reader) throws IOException {
+
+        Lock lock = this.locks.read(type.getName());
+        lock.lock();
+        try {
+            return reader.apply(this.read(type));
+        } finally {
+            lock.unlock();
         }
-        for (Persistable p : newObjList) {
-            if (p.getKey() >= max) max = p.getKey() + 1;
+
+    }
+
+
+    /**
+     * Returns the stored records of a type, indexed by primary key. These must never be handed out to callers.
+     * If a file has never been persisted before, there are no records.
+     */
+    private EntityTable read(Class<?> type) throws IOException {
+
+        String filePath = this.getFilePath(type.getName());
+        if (this.cached && this.cache.containsKey(filePath)) return this.cache.get(filePath);
+
+        EntityTable table = new EntityTable(type);
+        try {
+            for (Persistable p : this.read(filePath)) {
+                table.put(p);
+            }
+        } catch (FileNotFoundException e) {
+            //There are no records yet
         }
-        return max;
+        if (this.cached) this.cache.put(filePath, table);
+        return table;
 
     }
 
 
     private List<Persistable> read(String filePath) throws IOException {
 
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            input.mark(2);
+            short header = input.readShort();
+            if (header == SERIALIZED_HEADER) {
+                input.reset();
+                return this.readSerialized(input);
+            }
+            if (header != FILE_HEADER && header != COMPRESSED_HEADER) throw new IOException(filePath + " is not in a known format.");
+
+            try (DataInputStream records = header == COMPRESSED_HEADER ? inflating(input) : input) {
+                int count = records.readInt();
+                List<Persistable> obj = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] bytes = new byte[records.readInt()];
+                    records.readFully(bytes);
+                    obj.add(this.decode(bytes));
+                }
+                return obj;
+            }
+        }
+
+    }
+
+
+    private List<Persistable> readSerialized(InputStream file) throws IOException {
+
         ObjectInput input = null;
         List<Persistable> obj = null;
         try {
-            InputStream file = new FileInputStream(filePath);
-            InputStream buffer = new BufferedInputStream(file);
-            input = new ObjectInputStream(buffer);
+            input = new ObjectInputStream(file);
             obj = (List<Persistable>) input.readObject(); //We need this unchecked cast due to the way ser saves.
 
         } catch (ClassNotFoundException e) {
@@ -341,75 +696,145 @@ public class SerPersistenceGateway extends AbstractPersistenceGateway implements
     }
 
 
-    private <T extends Persistable> boolean write(List<T> obj, String key) throws IOException {
+    private <T extends Persistable> boolean write(List<T> obj, Class<?> type) throws IOException {
 
-        ObjectOutput output = null;
+        String filePath = this.getFilePath(type.getName());
+        this.write(obj, filePath + ".tmp", this.isCompressed(type.getName()));
+        Files.move(Paths.get(filePath + ".tmp"), Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING);
 
-        try {
-            String filePath = this.getFilePath(key);
-            OutputStream file = new FileOutputStream(filePath);
-            OutputStream buffer = new BufferedOutputStream(file);
-            output = new ObjectOutputStream(buffer);
-            output.writeObject(obj);
-        } finally {
-            if (output != null) {
-                output.close();
+        //The callers still hold the objects they passed in, so we keep our own copies of those
+        if (this.cached) {
+            Set<Persistable> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (this.cache.containsKey(filePath)) stored.addAll(this.cache.get(filePath).all());
+            EntityTable table = new EntityTable(type);
+            for (Persistable p : obj) {
+                table.put(stored.contains(p) ? p : this.copy(p));
             }
+            this.cache.put(filePath, table);
         }
 
         return true;
     }
 
 
-    private String getFilePath(String fileName) {
-        return "serfile" + fileName + ".ser";
-    }
-
-
-    private <S, T extends Persistable> boolean containsOneType(List<S> newList, List<T> existingList) {
+    /**
+     * Writes the new records of every type to a temporary file first, then replaces the files.
+     * A type with no records left has its file removed.
+     */
+    private void write(Map<Class<?>, EntityTable> tables) throws IOException {
 
-        //We know that all objects in existing lists are the same type, so we only need to match the first of each list.
-        if (newList.size() != 0 && existingList.size() != 0) {
-            if (newList.get(0).getClass() != existingList.get(0).getClass()) {
-                return false;
+        for (Map.Entry<Class<?>, EntityTable> entry : tables.entrySet()) {
+            String filePath = this.getFilePath(entry.getKey().getName());
+            if (entry.getValue().size() != 0) {
+                this.write(new ArrayList<>(entry.getValue().all()), filePath + ".tmp", this.isCompressed(entry.getKey().getName()));
             }
         }
 
-        //Next we check that all objects in newList are identical type.
-        for (int i = 0; i < newList.size(); i++) {
-            for (int j = i; j < newList.size(); j++) {
-                if (newList.get(i).getClass() != newList.get(j).getClass()) {
-                    return false;
-                }
+        for (Map.Entry<Class<?>, EntityTable> entry : tables.entrySet()) {
+            String filePath = this.getFilePath(entry.getKey().getName());
+            if (entry.getValue().size() != 0) {
+                Files.move(Paths.get(filePath + ".tmp"), Paths.get(filePath), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(Paths.get(filePath));
             }
+            if (this.cached) this.cache.put(filePath, entry.getValue());
         }
 
-        return true;
-
     }
 
 
-    private <T extends Persistable> boolean hasDuplicateKeys(List<T> persistableList) throws EntryExistsException {
+    private <T extends Persistable> void write(List<T> obj, String filePath, boolean compressed) throws IOException {
 
-        List<Integer> newIds = this.getListOfPrimaryKeys(persistableList);
-        HashSet<Integer> s = new HashSet<Integer>();
-        for (Integer i : newIds) {
-            if (i != 0 && !s.add(i)) {
-                throw new EntryExistsException();
+        try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)))) {
+            file.writeShort(compressed ? COMPRESSED_HEADER : FILE_HEADER);
+            DataOutputStream output = compressed ? deflating(file) : file;
+            output.writeInt(obj.size());
+            for (Persistable p : obj) {
+                byte[] bytes = this.encode(p);
+                output.writeInt(bytes.length);
+                output.write(bytes);
             }
+            //Finishes the compressed data
+            output.close();
         }
-        return false;
+
+    }
+
+
+    private String getFilePath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".ser").getPath();
+    }
+
+
+    /**
+     * Deletes the file of a type, without touching its key sequence. The caller holds the write lock of the type.
+     */
+    private boolean removeFile(Class<?> type) {
+        String filePath = this.getFilePath(type.getName());
+        this.cache.remove(filePath);
+        return new File(filePath).delete();
     }
 
 
-    private <T extends Persistable> List<Integer> getListOfPrimaryKeys(List<T> persistableList) {
+    private String getSequencePath(String fileName) {
+        return new File(this.directory, "serfile" + fileName + ".seq").getPath();
+    }
+
+
+    @Override
+    protected int loadNextKey(Class<?> type) throws IOException {
+        int stored = this.readLatest(type, records -> this.getNextPrimaryKey(records.all(), Collections.<Persistable>emptyList()));
+        return Math.max(stored, readKeyLimit(this.getSequencePath(type.getName())));
+    }
+
+
+    @Override
+    protected void saveKeyLimit(Class<?> type, int limit) throws IOException {
+        writeKeyLimit(this.getSequencePath(type.getName()), limit);
+    }
 
-        List<Integer> keys = new ArrayList<Integer>();
-        //We need to load the existing file, and loop to check that we don't override any entries
-        for (Persistable p : persistableList) {
-            keys.add(p.getKey());
+
+    /**
+     * A unit of work that builds the new records of every type it holds, then writes them all at once.
+     */
+    private class SerUnitOfWork extends AbstractUnitOfWork {
+
+        private SerUnitOfWork() {
+            super(SerPersistenceGateway.this);
+        }
+
+        @Override
+        protected void save(Map<Class<?>, Map<Integer, Change>> changes) throws IOException {
+            List<String> typeNames = new ArrayList<>();
+            for (Class<?> type : changes.keySet()) {
+                typeNames.add(type.getName());
+            }
+            List<Lock> taken = locks.writeAll(typeNames);
+            try {
+                this.saveLocked(changes);
+            } finally {
+                locks.unlock(taken);
+            }
+        }
+
+        private void saveLocked(Map<Class<?>, Map<Integer, Change>> changes) throws IOException {
+            Map<Class<?>, EntityTable> newTables = new LinkedHashMap<>();
+            for (Map.Entry<Class<?>, Map<Integer, Change>> entry : changes.entrySet()) {
+                EntityTable table = read(entry.getKey());
+                this.check(entry.getValue(), table);
+
+                //Nobody else holds the unit's copies, so we can store them as they are
+                EntityTable newTable = new EntityTable(entry.getKey());
+                for (Persistable p : table.all()) {
+                    if (!entry.getValue().containsKey(p.getKey())) newTable.put(p);
+                }
+                for (Change change : entry.getValue().values()) {
+                    if (change.record != null) newTable.put(change.record);
+                }
+                newTables.put(entry.getKey(), newTable);
+            }
+            write(newTables);
         }
-        return keys;
 
     }
 
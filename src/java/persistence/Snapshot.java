@@ -0,0 +1,28 @@
+package persistence;
+
+import java.io.Closeable;
+
+
+/**
+ * A consistent view of the records of some types, as they were at the moment it was taken, pinned to one thread.
+ * Until the snapshot is closed, every read of those types on that thread through the gateway
+ * (get, all, findBy, stream) sees the records of the snapshot. Such reads never wait for writers,
+ * and writers never wait for them, which suits long scans such as reports:
+ * <p>
+ * try (Snapshot snapshot = gateway.snapshot(User.class, Transaction.class, Trade.class)) {
+ * ...
+ * }
+ * <p>
+ * Writes are not affected and go to storage as usual, but reads within the snapshot do not see them.
+ * A snapshot is only kept in memory while it is pinned, and its records are reclaimed once nothing refers to them.
+ * Snapshots taken on one thread must be closed in the reverse order they were taken, on that same thread.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * Unpins the snapshot, so that reads on this thread see the latest records again.
+     */
+    @Override
+    void close();
+
+}
@@ -0,0 +1,255 @@
+package persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Holds at most a fixed number of records of one type, deciding which to keep by how often they are used,
+ * in the style of W-TinyLFU:
+ * <p>
+ * New records first go into a small window, kept in least recently used order, which gives records that are
+ * used in a burst a chance to prove themselves. A record pushed out of the window is only admitted to the main
+ * area if it has been used more often than the record it would push out, so a scan over many records used once
+ * cannot flush out the records that are used all the time. How often a record has been used is estimated by
+ * a count-min sketch, which remembers records that are no longer cached, and which is halved periodically
+ * so that records that stop being used are eventually forgotten. The main area is split into a probation
+ * segment, for records used once since they were admitted, and a protected segment for records used again.
+ * <p>
+ * Every method is synchronized, since even a lookup changes the order of the records.
+ */
+class TinyLfuCache {
+
+    /**
+     * The share of the capacity that is given to the window, in percent.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The share of the main area that is given to the protected segment, in percent.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final String typeName;
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+
+    /**
+     * {primary key: record bytes} of each segment, least recently used first.
+     */
+    private final LinkedHashMap<Integer, byte[]> window = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, byte[]> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, byte[]> protectedSegment = new LinkedHashMap<>();
+
+    private final FrequencySketch sketch;
+    private final CacheStats stats;
+
+
+    /**
+     * Initializes an empty cache.
+     *
+     * @param typeName The class name of the type, for the stats
+     * @param capacity The most records that are kept, at least 1
+     * @param stats    Where hits, misses and evictions are counted
+     */
+    TinyLfuCache(String typeName, int capacity, CacheStats stats) {
+        this.typeName = typeName;
+        this.capacity = Math.max(capacity, 1);
+        this.windowCapacity = Math.max(this.capacity * WINDOW_PERCENT / 100, 1);
+        this.protectedCapacity = (this.capacity - this.windowCapacity) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(this.capacity);
+        this.stats = stats;
+    }
+
+
+    /**
+     * Looks up a record, and counts the lookup whether or not it is cached.
+     *
+     * @param key The primary key
+     * @return The bytes of the record, or null if it is not cached
+     */
+    synchronized byte[] get(int key) {
+
+        this.sketch.increment(key);
+        byte[] value = this.window.remove(key);
+        if (value != null) {
+            this.window.put(key, value);
+        } else if ((value = this.probation.remove(key)) != null) {
+            this.protect(key, value);
+        } else if ((value = this.protectedSegment.remove(key)) != null) {
+            this.protectedSegment.put(key, value);
+        }
+
+        if (value != null) this.stats.hit(this.typeName, 1);
+        else this.stats.miss(this.typeName, 1);
+        return value;
+
+    }
+
+
+    /**
+     * Caches a record that was just read, which may push out another record.
+     *
+     * @param key   The primary key
+     * @param value The bytes of the record
+     */
+    synchronized void put(int key, byte[] value) {
+
+        this.invalidate(key);
+        this.window.put(key, value);
+        if (this.window.size() <= this.windowCapacity) return;
+
+        Map.Entry<Integer, byte[]> candidate = this.removeEldest(this.window);
+        this.admit(candidate.getKey(), candidate.getValue());
+
+    }
+
+
+    /**
+     * Drops a record, because it has been changed or deleted.
+     *
+     * @param key The primary key
+     */
+    synchronized void invalidate(int key) {
+        if (this.window.remove(key) == null && this.probation.remove(key) == null) {
+            this.protectedSegment.remove(key);
+        }
+    }
+
+
+    /**
+     * Drops every record.
+     */
+    synchronized void clear() {
+        this.window.clear();
+        this.probation.clear();
+        this.protectedSegment.clear();
+    }
+
+
+    /**
+     * Returns the number of records that are cached.
+     *
+     * @return The number of records
+     */
+    synchronized int size() {
+        return this.window.size() + this.probation.size() + this.protectedSegment.size();
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Moves a record that was pushed out of the window into the main area, if it is used more often than
+     * the record it would push out there.
+     */
+    private void admit(int key, byte[] value) {
+
+        int mainCapacity = this.capacity - this.windowCapacity;
+        if (this.probation.size() + this.protectedSegment.size() < mainCapacity) {
+            this.probation.put(key, value);
+            return;
+        }
+
+        LinkedHashMap<Integer, byte[]> victims = this.probation.isEmpty() ? this.protectedSegment : this.probation;
+        if (victims.isEmpty()) {
+            //The main area has no room at all, so the candidate is dropped
+            this.stats.evict(this.typeName);
+            return;
+        }
+        int victim = victims.keySet().iterator().next();
+        if (this.sketch.frequency(key) > this.sketch.frequency(victim)) {
+            victims.remove(victim);
+            this.probation.put(key, value);
+        }
+        this.stats.evict(this.typeName);
+
+    }
+
+
+    /**
+     * Moves a record that was used again into the protected segment, moving the least recently used
+     * protected record back to probation if the segment is full.
+     */
+    private void protect(int key, byte[] value) {
+        this.protectedSegment.put(key, value);
+        if (this.protectedSegment.size() > this.protectedCapacity) {
+            Map.Entry<Integer, byte[]> demoted = this.removeEldest(this.protectedSegment);
+            this.probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+
+    private Map.Entry<Integer, byte[]> removeEldest(LinkedHashMap<Integer, byte[]> segment) {
+        Iterator<Map.Entry<Integer, byte[]>> entries = segment.entrySet().iterator();
+        Map.Entry<Integer, byte[]> eldest = entries.next();
+        Map.Entry<Integer, byte[]> removed = new java.util.AbstractMap.SimpleImmutableEntry<>(eldest);
+        entries.remove();
+        return removed;
+    }
+
+
+    /**
+     * Estimates how often each key has been used, with 4 counters per key. Each counter is a byte, but only counts
+     * up to 15, the most a 4-bit counter could hold, which is all the frequencies that decide admission need.
+     * Counters are halved once there have been 10 increments per cached record, so that old uses fade.
+     */
+    private static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            this.counters = new byte[width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * capacity;
+        }
+
+        void increment(int key) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = this.indexOf(key, i);
+                if (this.counters[index] < 15) {
+                    this.counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++this.additions >= this.sampleSize) this.reset();
+        }
+
+        int frequency(int key) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, this.counters[this.indexOf(key, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int key, int i) {
+            long hash = (key + SEEDS[i]) * SEEDS[i];
+            hash += hash >>> 32;
+            return (int) hash & this.mask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.counters.length; i++) {
+                this.counters[i] >>= 1;
+            }
+            this.additions /= 2;
+        }
+
+    }
+
+
+}
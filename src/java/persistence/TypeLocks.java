@@ -0,0 +1,98 @@
+package persistence;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Holds one read/write lock per entity type, so that a gateway can be used by many request threads at once.
+ * Reads of a type run in parallel, writes to a type run one at a time and wait for its reads,
+ * and different types never block each other.
+ */
+class TypeLocks {
+
+    /**
+     * {class name: lock}
+     */
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+
+    /**
+     * Returns the read lock of a type.
+     *
+     * @param typeName The class name of the type
+     * @return The read lock
+     */
+    Lock read(String typeName) {
+        return this.of(typeName).readLock();
+    }
+
+
+    /**
+     * Returns the write lock of a type.
+     *
+     * @param typeName The class name of the type
+     * @return The write lock
+     */
+    Lock write(String typeName) {
+        return this.of(typeName).writeLock();
+    }
+
+
+    /**
+     * Takes the write locks of several types, in the order of their names,
+     * so that two threads that need some of the same types can never wait on each other.
+     *
+     * @param typeNames The class names of the types
+     * @return The locks that were taken, to be released with unlock
+     */
+    List<Lock> writeAll(Collection<String> typeNames) {
+        List<Lock> taken = new ArrayList<>();
+        for (String typeName : new TreeSet<>(typeNames)) {
+            Lock lock = this.write(typeName);
+            lock.lock();
+            taken.add(lock);
+        }
+        return taken;
+    }
+
+
+    /**
+     * Takes the read locks of several types, in the order of their names, so that their records can be read
+     * as they are at one moment.
+     *
+     * @param typeNames The class names of the types
+     * @return The locks that were taken, to be released with unlock
+     */
+    List<Lock> readAll(Collection<String> typeNames) {
+        List<Lock> taken = new ArrayList<>();
+        for (String typeName : new TreeSet<>(typeNames)) {
+            Lock lock = this.read(typeName);
+            lock.lock();
+            taken.add(lock);
+        }
+        return taken;
+    }
+
+
+    /**
+     * Releases locks taken by writeAll or readAll, in the reverse order.
+     *
+     * @param taken The locks
+     */
+    void unlock(List<Lock> taken) {
+        for (int i = taken.size() - 1; i >= 0; i--) {
+            taken.get(i).unlock();
+        }
+    }
+
+
+    private ReadWriteLock of(String typeName) {
+        return this.locks.computeIfAbsent(typeName, name -> new ReentrantReadWriteLock());
+    }
+
+
+}
@@ -0,0 +1,94 @@
+package persistence;
+
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Groups creates, updates and deletes across any number of entity types, so that they are saved together.
+ * Nothing is saved until commit is called. Then either every change is saved, or none of them are.
+ * <p>
+ * Example usage:
+ * UnitOfWork unit = gateway.beginUnitOfWork();
+ * unit.update(items, Item.class);
+ * unit.delete(tradeIds, Trade.class);
+ * unit.commit();
+ * <p>
+ * Primary keys are assigned as soon as an object is created in the unit, so that other objects in the same unit
+ * can refer to it. A unit can only be committed once.
+ */
+public interface UnitOfWork {
+
+    /**
+     * Adds new objects to the unit. Will not modify existing objects.
+     * If any one of the objects have a primary key of 0, a primary key is generated right away,
+     * and the objects are returned with their primary key updated.
+     *
+     * @param newObjList a List of Persistable objects.
+     * @param type       .class information about class T
+     * @param <T>        the class type of each element in List
+     * @return A List of these objects with the primary key of that object updated.
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the List consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the unit.
+     */
+    <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException;
+
+    /**
+     * Adds one new object to the unit.
+     *
+     * @param newObject a Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @return The object with primary key of that object updated.
+     * @throws IOException IOException
+     */
+    <T extends Persistable> T create(T newObject, Class<T> type) throws IOException;
+
+    /**
+     * Adds updates of existing records to the unit.
+     *
+     * @param updateObjList a List of Persistable objects.
+     * @param type          .class information about class T
+     * @param <T>           the class type
+     * @throws IOException                IOException
+     * @throws NonUniformObjectsException throws this exception if the List consists of objects of different types.
+     * @throws EntryExistsException       throws this exception if there exists a duplicate primary key in the provided list.
+     * @throws EntryDoesNotExistException throws this exception if an object has already been deleted in this unit.
+     */
+    <T extends Persistable> void update(List<T> updateObjList, Class<T> type) throws IOException;
+
+    /**
+     * Adds an update of one existing record to the unit.
+     *
+     * @param updateObj one Persistable object.
+     * @param type      .class information about class T
+     * @param <T>       the class type
+     * @throws IOException IOException
+     */
+    <T extends Persistable> void update(T updateObj, Class<T> type) throws IOException;
+
+    /**
+     * Adds deletes to the unit. Id's that do not exist when the unit is committed are skipped.
+     *
+     * @param idList a list of id's to be deleted
+     * @param type   .class information about class T
+     * @param <T>    the class type
+     */
+    <T> void delete(List<Integer> idList, Class<T> type);
+
+    /**
+     * Saves every change in the unit, or none of them.
+     *
+     * @throws IOException                throws this exception if there is a IO error.
+     * @throws NonUniformObjectsException throws this exception if an object is not of the same type as the stored records.
+     * @throws EntryExistsException       throws this exception if a created object's primary key already exists.
+     * @throws EntryDoesNotExistException throws this exception if an updated object's primary key does not exist.
+     */
+    void commit() throws IOException;
+
+}
@@ -0,0 +1,145 @@
+package persistence;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Loads entity types into a gateway when the application starts, several at a time on a bounded pool of background threads,
+ * so that the first requests after a deploy do not each wait for a type to be loaded. See PersistenceInterface.warmUp.
+ * <p>
+ * The time each type took is printed once every type is loaded, and kept in getLoadMillis.
+ * A type that fails to load is reported and skipped, since it is loaded again the first time it is used.
+ * The application should not take traffic until isReady, or whenReady has completed.
+ */
+public class WarmUp {
+
+    /**
+     * Class dependencies
+     */
+    private final PersistenceInterface gateway;
+
+    /**
+     * The types to load.
+     */
+    private final List<Class<?>> types;
+
+    /**
+     * The most types loaded at once.
+     */
+    private final int threads;
+
+    /**
+     * Completes once every type has been loaded, or has failed to.
+     */
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    /**
+     * How long each type took to load, in the order they finished.
+     * "Class Name": milliseconds
+     */
+    private final Map<String, Long> loadMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private boolean started = false;
+
+
+    /**
+     * Initializes this class.
+     *
+     * @param gateway The gateway to load the types into
+     * @param types   The types to load
+     * @param threads The most types loaded at once
+     */
+    public WarmUp(PersistenceInterface gateway, List<Class<?>> types, int threads) {
+        this.gateway = gateway;
+        this.types = new ArrayList<>(types);
+        this.threads = Math.max(1, Math.min(threads, this.types.size()));
+    }
+
+
+    /**
+     * Starts loading every type in the background, and returns right away. Calling it again does nothing.
+     * The threads will not keep the application running on their own, and are stopped once every type is loaded.
+     */
+    public synchronized void start() {
+
+        if (this.started) return;
+        this.started = true;
+        if (this.types.isEmpty()) {
+            this.ready.complete(null);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        CompletableFuture<?>[] loads = new CompletableFuture<?>[this.types.size()];
+        for (int i = 0; i < loads.length; i++) {
+            Class<?> type = this.types.get(i);
+            loads[i] = CompletableFuture.runAsync(() -> this.load(type), executor);
+        }
+        CompletableFuture.allOf(loads).whenComplete((result, e) -> {
+            executor.shutdown();
+            System.out.println("Warm-up finished in " + (System.nanoTime() - start) / 1000000 + " ms: " + this.loadMillis);
+            this.ready.complete(null);
+        });
+
+    }
+
+
+    /**
+     * Returns whether every type has been loaded, or has failed to.
+     *
+     * @return true once warm-up is finished
+     */
+    public boolean isReady() {
+        return this.ready.isDone();
+    }
+
+
+    /**
+     * Returns a future that completes once every type has been loaded, or has failed to. It never completes exceptionally.
+     *
+     * @return A future that completes when warm-up is finished
+     */
+    public CompletableFuture<Void> whenReady() {
+        return this.ready;
+    }
+
+
+    /**
+     * Returns how long each type that finished loading took.
+     *
+     * @return A copy of {class name: milliseconds}
+     */
+    public Map<String, Long> getLoadMillis() {
+        synchronized (this.loadMillis) {
+            return new LinkedHashMap<>(this.loadMillis);
+        }
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private void load(Class<?> type) {
+        long start = System.nanoTime();
+        try {
+            this.gateway.warmUp(type);
+            this.loadMillis.put(type.getName(), (System.nanoTime() - start) / 1000000);
+        } catch (Exception e) {
+            //The type is loaded again the first time it is used
+            System.out.println("Could not warm up " + type.getName() + ": " + e.getMessage());
+        }
+    }
+
+
+}
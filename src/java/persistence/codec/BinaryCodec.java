@@ -0,0 +1,111 @@
+package persistence.codec;
+
+import persistence.Persistable;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Encodes records field by field, as described by the EntitySchema of their type, instead of with java.io.Serializable.
+ * No class descriptors are written, and whole numbers and lists of id's are written as varints,
+ * so records are much smaller and much faster to read back.
+ * <p>
+ * Each record is laid out as: format (1 byte, always 1), tag of the type (varint), schema version (varint),
+ * then each field of that version, in order. See FieldCodec for how each field is written.
+ * <p>
+ * Records of a type without a schema are encoded with java.io.Serializable. Records that were stored with java.io.Serializable
+ * before this codec was used start with 0xAC, so they are recognized and still read back.
+ */
+public class BinaryCodec implements EntityCodec {
+
+    /**
+     * The first byte of every record this codec writes with a schema.
+     */
+    private static final byte FORMAT = 1;
+
+    /**
+     * The first byte of every record written with java.io.Serializable.
+     */
+    private static final byte JAVA_SERIALIZATION = (byte) 0xAC;
+
+    /**
+     * {type: schema}
+     */
+    private final Map<Class<?>, EntitySchema<?>> byType = new HashMap<>();
+
+    /**
+     * {tag: schema}
+     */
+    private final Map<Integer, EntitySchema<?>> byTag = new HashMap<>();
+
+    /**
+     * Used for types without a schema, and to read records stored before this codec was used.
+     */
+    private final JavaSerializationCodec fallback = new JavaSerializationCodec();
+
+
+    /**
+     * Initializes a codec with the schemas of every entity. See EntitySchemas.
+     */
+    public BinaryCodec() {
+        this(EntitySchemas.all());
+    }
+
+
+    /**
+     * Initializes a codec with the given schemas.
+     *
+     * @param schemas The schemas
+     * @throws IllegalArgumentException If two schemas have the same type or tag
+     * @throws IllegalStateException    If a schema does not store every field of its type
+     */
+    public BinaryCodec(List<EntitySchema<?>> schemas) {
+        for (EntitySchema<?> schema : schemas) {
+            schema.checkComplete();
+            if (this.byType.put(schema.getType(), schema) != null) {
+                throw new IllegalArgumentException(schema.getType().getName() + " has more than one schema.");
+            }
+            if (this.byTag.put(schema.getTag(), schema) != null) {
+                throw new IllegalArgumentException("More than one schema has the tag " + schema.getTag() + ".");
+            }
+        }
+    }
+
+
+    @Override
+    public byte[] encode(Persistable record) throws IOException {
+
+        EntitySchema<?> schema = this.byType.get(record.getClass());
+        if (schema == null) return this.fallback.encode(record);
+
+        BinaryWriter output = new BinaryWriter();
+        output.writeByte(FORMAT);
+        output.writeVarint(schema.getTag());
+        output.writeVarint(schema.getLatestVersion());
+        schema.write(record, output);
+        return output.toByteArray();
+
+    }
+
+
+    @Override
+    public Persistable decode(byte[] bytes) throws IOException {
+
+        if (bytes.length > 0 && bytes[0] == JAVA_SERIALIZATION) return this.fallback.decode(bytes);
+        if (bytes.length == 0 || bytes[0] != FORMAT) throw new IOException("The record is not in a known format.");
+
+        BinaryReader input = new BinaryReader(bytes, 1);
+        int tag = input.readVarint();
+        EntitySchema<?> schema = this.byTag.get(tag);
+        if (schema == null) {
+            throw new IOException("No schema has the tag " + tag + ". Has the application changed since the data was last saved?");
+        }
+        return (Persistable) schema.read(input, input.readVarint());
+
+    }
+
+
+}
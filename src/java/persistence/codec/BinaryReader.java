@@ -0,0 +1,84 @@
+package persistence.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Reads back what BinaryWriter wrote, in the same order.
+ */
+final class BinaryReader {
+
+    private final byte[] buffer;
+
+    private int position;
+
+
+    BinaryReader(byte[] buffer, int position) {
+        this.buffer = buffer;
+        this.position = position;
+    }
+
+
+    int readByte() throws IOException {
+        if (this.position >= this.buffer.length) throw new EOFException("The record ends too early.");
+        return this.buffer[this.position++];
+    }
+
+
+    int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = this.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("A varint is longer than 5 bytes.");
+    }
+
+
+    int readSignedVarint() throws IOException {
+        int zigzag = this.readVarint();
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+
+    long readSignedVarlong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = this.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("A varlong is longer than 10 bytes.");
+    }
+
+
+    String readString() throws IOException {
+        int length = this.readVarint() - 1;
+        if (length < 0) return null;
+        this.checkRemaining(length);
+        String value = new String(this.buffer, this.position, length, StandardCharsets.UTF_8);
+        this.position += length;
+        return value;
+    }
+
+
+    byte[] readBytes() throws IOException {
+        int length = this.readVarint() - 1;
+        if (length < 0) return null;
+        this.checkRemaining(length);
+        byte[] value = Arrays.copyOfRange(this.buffer, this.position, this.position + length);
+        this.position += length;
+        return value;
+    }
+
+
+    private void checkRemaining(int length) throws IOException {
+        if (length > this.buffer.length - this.position) throw new EOFException("The record ends too early.");
+    }
+
+
+}
@@ -0,0 +1,99 @@
+package persistence.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * A growable buffer that BinaryCodec writes records into.
+ * Whole numbers are written as varints: 7 bits per byte, lowest bits first, with the top bit set on every byte but the last,
+ * so that small numbers such as primary keys take one or two bytes instead of four.
+ */
+final class BinaryWriter {
+
+    private byte[] buffer = new byte[64];
+
+    private int length = 0;
+
+
+    void writeByte(int value) {
+        this.ensureCapacity(1);
+        this.buffer[this.length++] = (byte) value;
+    }
+
+
+    /**
+     * Writes a number that is never negative, such as a length.
+     */
+    void writeVarint(int value) {
+        this.ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            this.buffer[this.length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.length++] = (byte) value;
+    }
+
+
+    /**
+     * Writes any int. Zigzag encoding keeps small negative numbers small: 0, -1, 1, -2, ... become 0, 1, 2, 3, ...
+     */
+    void writeSignedVarint(int value) {
+        this.writeVarint((value << 1) ^ (value >> 31));
+    }
+
+
+    /**
+     * Writes any long, zigzag encoded.
+     */
+    void writeSignedVarlong(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        this.ensureCapacity(10);
+        while ((zigzag & ~0x7FL) != 0) {
+            this.buffer[this.length++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        this.buffer[this.length++] = (byte) zigzag;
+    }
+
+
+    /**
+     * Writes a string as its length plus one, then its UTF-8 bytes. A length of 0 means null.
+     */
+    void writeString(String value) {
+        if (value == null) {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Writes bytes as their length plus one, then the bytes. A length of 0 means null.
+     */
+    void writeBytes(byte[] value) {
+        if (value == null) {
+            this.writeVarint(0);
+            return;
+        }
+        this.writeVarint(value.length + 1);
+        this.ensureCapacity(value.length);
+        System.arraycopy(value, 0, this.buffer, this.length, value.length);
+        this.length += value.length;
+    }
+
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+
+
+    private void ensureCapacity(int extra) {
+        if (this.length + extra > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + extra));
+        }
+    }
+
+
+}
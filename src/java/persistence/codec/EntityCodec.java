@@ -0,0 +1,33 @@
+package persistence.codec;
+
+import persistence.Persistable;
+
+import java.io.IOException;
+
+
+/**
+ * Turns one record into bytes and back, for the persistence gateways to store.
+ * A codec must be able to decode everything it has encoded, and should be able to decode what older codecs have encoded,
+ * so that a gateway can switch codecs without losing its stored records.
+ */
+public interface EntityCodec {
+
+    /**
+     * Turns one record into bytes.
+     *
+     * @param record The record
+     * @return The bytes of the record
+     * @throws IOException If the record cannot be encoded
+     */
+    byte[] encode(Persistable record) throws IOException;
+
+    /**
+     * Reads back one record from its bytes.
+     *
+     * @param bytes The bytes of the record
+     * @return The record
+     * @throws IOException If the bytes cannot be read, or their type is no longer known
+     */
+    Persistable decode(byte[] bytes) throws IOException;
+
+}
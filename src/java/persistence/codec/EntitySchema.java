@@ -0,0 +1,219 @@
+package persistence.codec;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+
+/**
+ * Describes how BinaryCodec stores one entity type: a tag that identifies the type in the stored bytes,
+ * and the fields that are stored, in order, for each schema version of the type.
+ * <p>
+ * Records are always written with the latest version. Records written with an older version can still be read,
+ * and the fields that version did not have are left empty. So when a field is added to an entity,
+ * add a new version that includes it, instead of changing an existing one:
+ * new EntitySchema<>(3, Item.class)
+ * .version("version", "id", "name")
+ * .version("version", "id", "name", "price");
+ * <p>
+ * Records are created with the no-arg constructor of the type, which may be private, and then have their stored
+ * fields read into them. It should set nothing that a stored field would not overwrite.
+ */
+public final class EntitySchema<T> {
+
+    /**
+     * Identifies the type in the stored bytes. Must never change once records have been stored.
+     */
+    private final int tag;
+
+    /**
+     * The type that is stored.
+     */
+    private final Class<T> type;
+
+    /**
+     * Creates the empty records of the type that stored fields are read into.
+     */
+    private final Constructor<T> instantiator;
+
+    /**
+     * The fields stored by each version, in order. Version 1 is at index 0.
+     */
+    private final List<FieldCodec[]> versions = new ArrayList<>();
+
+    /**
+     * The fields of the latest version that each version does not store.
+     */
+    private final List<FieldCodec[]> missing = new ArrayList<>();
+
+
+    /**
+     * Initializes a schema with no versions yet.
+     *
+     * @param tag  A number that identifies the type in the stored bytes, unique among all schemas
+     * @param type The type that is stored
+     * @throws IllegalArgumentException If the type has no no-arg constructor
+     */
+    public EntitySchema(int tag, Class<T> type) {
+        if (tag < 0) throw new IllegalArgumentException("The tag of a schema cannot be negative.");
+        this.tag = tag;
+        this.type = type;
+        this.instantiator = instantiator(type);
+    }
+
+
+    /**
+     * Adds the next version of the schema.
+     *
+     * @param fieldNames The names of the stored fields, declared in the type or any of its superclasses
+     * @return This schema
+     * @throws IllegalArgumentException If the type has no field with one of the names
+     */
+    public EntitySchema<T> version(String... fieldNames) {
+
+        FieldCodec[] fields = new FieldCodec[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fields[i] = FieldCodec.of(this.findField(fieldNames[i]));
+        }
+        this.versions.add(fields);
+
+        //Every earlier version is now missing whatever this version added
+        this.missing.clear();
+        for (FieldCodec[] version : this.versions) {
+            Set<Field> stored = new HashSet<>();
+            for (FieldCodec f : version) stored.add(f.field);
+            List<FieldCodec> notStored = new ArrayList<>();
+            for (FieldCodec f : fields) {
+                if (!stored.contains(f.field)) notStored.add(f);
+            }
+            this.missing.add(notStored.toArray(new FieldCodec[0]));
+        }
+        return this;
+
+    }
+
+
+    /**
+     * Returns the tag that identifies the type in the stored bytes.
+     *
+     * @return The tag
+     */
+    public int getTag() {
+        return this.tag;
+    }
+
+
+    /**
+     * Returns the type that is stored.
+     *
+     * @return The type
+     */
+    public Class<T> getType() {
+        return this.type;
+    }
+
+
+    /**
+     * Returns the version that records are written with.
+     *
+     * @return The latest version
+     */
+    public int getLatestVersion() {
+        return this.versions.size();
+    }
+
+
+    /**
+     * Checks that the latest version stores every field of the type, so that a field added to an entity
+     * without a new schema version is noticed when the application starts, not after its values are lost.
+     *
+     * @throws IllegalStateException If the schema has no versions, or a field is not stored
+     */
+    void checkComplete() {
+
+        if (this.versions.isEmpty()) throw new IllegalStateException(this.type.getName() + " has no schema versions.");
+        Set<Field> stored = new HashSet<>();
+        for (FieldCodec f : this.versions.get(this.versions.size() - 1)) stored.add(f.field);
+        for (Class<?> c = this.type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) continue;
+                if (!stored.contains(field)) {
+                    throw new IllegalStateException(c.getName() + "." + field.getName() + " is not in the latest schema version of "
+                            + this.type.getName() + ". Add a new version that includes it.");
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * Writes the fields of the latest version.
+     */
+    void write(Object record, BinaryWriter output) throws IOException {
+        for (FieldCodec f : this.versions.get(this.versions.size() - 1)) {
+            f.write(record, output);
+        }
+    }
+
+
+    /**
+     * Reads a record that was written with the given version.
+     */
+    T read(BinaryReader input, int version) throws IOException {
+
+        if (version < 1 || version > this.versions.size()) {
+            throw new IOException(this.type.getName() + " has no schema version " + version +
+                    ". Was the record saved by a newer version of the application?");
+        }
+
+        T record;
+        try {
+            record = this.instantiator.newInstance();
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IOException(e);
+        }
+        for (FieldCodec f : this.versions.get(version - 1)) {
+            f.read(record, input);
+        }
+        for (FieldCodec f : this.missing.get(version - 1)) {
+            f.reset(record);
+        }
+        return record;
+
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private Field findField(String name) {
+        for (Class<?> c = this.type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                //Look in the superclass
+            }
+        }
+        throw new IllegalArgumentException(this.type.getName() + " has no field " + name + ".");
+    }
+
+
+    private static <T> Constructor<T> instantiator(Class<T> type) {
+        try {
+            Constructor<T> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " needs a no-arg constructor to be stored by BinaryCodec.", e);
+        }
+    }
+
+
+}
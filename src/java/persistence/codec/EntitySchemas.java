@@ -0,0 +1,64 @@
+package persistence.codec;
+
+import entities.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The schemas BinaryCodec stores the entities with.
+ * A tag must never be reused, and a version must never be changed once records have been stored with it.
+ * When a field is added to or removed from an entity, add a new version to its schema.
+ */
+public final class EntitySchemas {
+
+    private EntitySchemas() {
+    }
+
+
+    /**
+     * Returns a new schema for each entity.
+     *
+     * @return The schemas
+     */
+    public static List<EntitySchema<?>> all() {
+
+        List<EntitySchema<?>> schemas = new ArrayList<>();
+
+        schemas.add(new EntitySchema<>(1, Config.class)
+                .version("version", "id", "configName", "configValue"));
+
+        //data holds arbitrary values, so it is written with java.io.Serializable
+        schemas.add(new EntitySchema<>(2, History.class)
+                .version("version", "id", "actionName", "displayString", "undone", "data"));
+
+        schemas.add(new EntitySchema<>(3, Item.class)
+                .version("version", "id", "name", "ownerId", "holderId", "description",
+                        "visibility", "softDelete", "isReserved", "price", "forSale"));
+
+        schemas.add(new EntitySchema<>(4, Meeting.class)
+                .version("version", "meetingId", "times", "locations", "editorIds",
+                        "agreedTo", "confirmedBy", "hasSecondMeeting"));
+
+        schemas.add(new EntitySchema<>(5, Tag.class)
+                .version("version", "tagId", "tagName", "itemIds"));
+
+        schemas.add(new EntitySchema<>(6, Trade.class)
+                .version("version", "tradeId", "lenderId", "borrowerId", "itemList", "complete", "sell"));
+
+        schemas.add(new EntitySchema<>(7, Transaction.class)
+                .version("version", "transId", "oneWay", "tradeList", "meetingList"));
+
+        schemas.add(new EntitySchema<>(8, User.class)
+                .version("version", "userId", "name", "password", "status", "credit", "homeCity"));
+
+        schemas.add(new EntitySchema<>(9, WishList.class)
+                .version("version", "id", "ownerId", "wishList"));
+
+        return schemas;
+
+    }
+
+
+}
@@ -0,0 +1,308 @@
+package persistence.codec;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Supplier;
+
+
+/**
+ * Writes and reads one field of a record, in a form chosen by the type of the field:
+ * <p>
+ * int: zigzag varint. boolean: one byte. String: length, then UTF-8 bytes. LocalDate: the epoch day as a zigzag varlong.
+ * List and Set: the size, then each element in one of these forms, so a list of id's is a list of varints.
+ * Anything else: java.io.Serializable bytes, so that no field is ever lost.
+ * Null values are written as a marker of their own.
+ */
+abstract class FieldCodec {
+
+    /**
+     * The field, made accessible.
+     */
+    final Field field;
+
+
+    private FieldCodec(Field field) {
+        this.field = field;
+    }
+
+
+    /**
+     * Returns the codec for a field, based on its declared type.
+     *
+     * @param field The field
+     * @return A codec for the field
+     */
+    static FieldCodec of(Field field) {
+
+        field.setAccessible(true);
+        if (field.getType() == int.class) return new IntField(field);
+        if (field.getType() == boolean.class) return new BooleanField(field);
+
+        Type type = field.getGenericType();
+        if (type instanceof ParameterizedType) {
+            Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (field.getType() == List.class) return new ValueField(field, new CollectionValue(valueOf(element), ArrayList::new));
+            if (field.getType() == Set.class) return new ValueField(field, new CollectionValue(valueOf(element), HashSet::new));
+        }
+        return new ValueField(field, valueOf(type));
+
+    }
+
+
+    /**
+     * Writes the field of the record.
+     */
+    abstract void write(Object record, BinaryWriter output) throws IOException;
+
+    /**
+     * Reads the field and sets it on the record.
+     */
+    abstract void read(Object record, BinaryReader input) throws IOException;
+
+    /**
+     * Sets the field of the record to its empty value, for records of an older schema version that did not have the field.
+     */
+    abstract void reset(Object record);
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private static Value valueOf(Type type) {
+        if (type == Integer.class) return INTEGER;
+        if (type == String.class) return STRING;
+        if (type == LocalDate.class) return DATE;
+        return SERIALIZED;
+    }
+
+
+    Object get(Object record) {
+        try {
+            return this.field.get(record);
+        } catch (IllegalAccessException e) {
+            //The field was made accessible by of
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    void set(Object record, Object value) {
+        try {
+            this.field.set(record, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static class IntField extends FieldCodec {
+
+        private IntField(Field field) {
+            super(field);
+        }
+
+        @Override
+        void write(Object record, BinaryWriter output) {
+            output.writeSignedVarint((Integer) this.get(record));
+        }
+
+        @Override
+        void read(Object record, BinaryReader input) throws IOException {
+            this.set(record, input.readSignedVarint());
+        }
+
+        @Override
+        void reset(Object record) {
+            this.set(record, 0);
+        }
+
+    }
+
+
+    private static class BooleanField extends FieldCodec {
+
+        private BooleanField(Field field) {
+            super(field);
+        }
+
+        @Override
+        void write(Object record, BinaryWriter output) {
+            output.writeByte((Boolean) this.get(record) ? 1 : 0);
+        }
+
+        @Override
+        void read(Object record, BinaryReader input) throws IOException {
+            this.set(record, input.readByte() != 0);
+        }
+
+        @Override
+        void reset(Object record) {
+            this.set(record, false);
+        }
+
+    }
+
+
+    private static class ValueField extends FieldCodec {
+
+        private final Value value;
+
+        private ValueField(Field field, Value value) {
+            super(field);
+            this.value = value;
+        }
+
+        @Override
+        void write(Object record, BinaryWriter output) throws IOException {
+            this.value.write(this.get(record), output);
+        }
+
+        @Override
+        void read(Object record, BinaryReader input) throws IOException {
+            this.set(record, this.value.read(input));
+        }
+
+        @Override
+        void reset(Object record) {
+            this.set(record, this.value.empty());
+        }
+
+    }
+
+
+    /**
+     * Writes and reads one value, including null.
+     */
+    private interface Value {
+
+        void write(Object value, BinaryWriter output) throws IOException;
+
+        Object read(BinaryReader input) throws IOException;
+
+        default Object empty() {
+            return null;
+        }
+
+    }
+
+
+    /**
+     * Written as 0 for null, otherwise 1 followed by the zigzag varint.
+     */
+    private static final Value INTEGER = new Value() {
+        @Override
+        public void write(Object value, BinaryWriter output) {
+            output.writeByte(value == null ? 0 : 1);
+            if (value != null) output.writeSignedVarint((Integer) value);
+        }
+
+        @Override
+        public Object read(BinaryReader input) throws IOException {
+            return input.readByte() == 0 ? null : input.readSignedVarint();
+        }
+    };
+
+
+    private static final Value STRING = new Value() {
+        @Override
+        public void write(Object value, BinaryWriter output) {
+            output.writeString((String) value);
+        }
+
+        @Override
+        public Object read(BinaryReader input) throws IOException {
+            return input.readString();
+        }
+    };
+
+
+    /**
+     * Written as 0 for null, otherwise 1 followed by the epoch day.
+     */
+    private static final Value DATE = new Value() {
+        @Override
+        public void write(Object value, BinaryWriter output) {
+            output.writeByte(value == null ? 0 : 1);
+            if (value != null) output.writeSignedVarlong(((LocalDate) value).toEpochDay());
+        }
+
+        @Override
+        public Object read(BinaryReader input) throws IOException {
+            return input.readByte() == 0 ? null : LocalDate.ofEpochDay(input.readSignedVarlong());
+        }
+    };
+
+
+    private static final Value SERIALIZED = new Value() {
+        @Override
+        public void write(Object value, BinaryWriter output) throws IOException {
+            output.writeBytes(value == null ? null : JavaSerializationCodec.serialize(value));
+        }
+
+        @Override
+        public Object read(BinaryReader input) throws IOException {
+            byte[] bytes = input.readBytes();
+            return bytes == null ? null : JavaSerializationCodec.deserialize(bytes);
+        }
+    };
+
+
+    /**
+     * Written as the size plus one, 0 meaning null, followed by each element.
+     * Lists of id's are the common case, so elements are written without a null marker unless they are null.
+     */
+    private static class CollectionValue implements Value {
+
+        private final Value element;
+
+        private final Supplier<Collection<Object>> factory;
+
+        private CollectionValue(Value element, Supplier<Collection<Object>> factory) {
+            this.element = element;
+            this.factory = factory;
+        }
+
+        @Override
+        public void write(Object value, BinaryWriter output) throws IOException {
+            if (value == null) {
+                output.writeVarint(0);
+                return;
+            }
+            Collection<?> collection = (Collection<?>) value;
+            output.writeVarint(collection.size() + 1);
+            boolean ids = this.element == INTEGER && !collection.contains(null);
+            output.writeByte(ids ? 1 : 0);
+            for (Object o : collection) {
+                if (ids) output.writeSignedVarint((Integer) o);
+                else this.element.write(o, output);
+            }
+        }
+
+        @Override
+        public Object read(BinaryReader input) throws IOException {
+            int size = input.readVarint() - 1;
+            if (size < 0) return null;
+            boolean ids = input.readByte() != 0;
+            Collection<Object> collection = this.factory.get();
+            for (int i = 0; i < size; i++) {
+                collection.add(ids ? input.readSignedVarint() : this.element.read(input));
+            }
+            return collection;
+        }
+
+        @Override
+        public Object empty() {
+            return this.factory.get();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,64 @@
+package persistence.codec;
+
+import persistence.Persistable;
+
+import java.io.*;
+
+
+/**
+ * Encodes records with java.io.Serializable, the format every record was stored in before BinaryCodec.
+ * Every record this codec writes starts with the bytes 0xAC 0xED.
+ */
+public class JavaSerializationCodec implements EntityCodec {
+
+    @Override
+    public byte[] encode(Persistable record) throws IOException {
+        return serialize(record);
+    }
+
+
+    @Override
+    public Persistable decode(byte[] bytes) throws IOException {
+        return (Persistable) deserialize(bytes);
+    }
+
+
+    /**
+     * Serializes any object on its own.
+     *
+     * @param object The object
+     * @return The bytes of the object
+     * @throws IOException If the object cannot be serialized
+     */
+    static byte[] serialize(Object object) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(object);
+        }
+        return bytes.toByteArray();
+
+    }
+
+
+    /**
+     * Reads back an object that was serialized by serialize.
+     *
+     * @param bytes The bytes of the object
+     * @return The object
+     * @throws IOException If the bytes cannot be read, or the class no longer exists
+     */
+    static Object deserialize(byte[] bytes) throws IOException {
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return input.readObject();
+        } catch (ClassNotFoundException e) {
+            System.out.println("Class is not found. Cannot load the class in through string name. " +
+                    "Has the application changed since the data was last saved?");
+            throw new IOException(e);
+        }
+
+    }
+
+
+}
@@ -0,0 +1,8 @@
+package persistence.exceptions;
+
+/**
+ * Thrown when a record is updated from an older version than the one in storage,
+ * because someone else has updated it since it was read.
+ */
+public class VersionConflictException extends PersistenceException {
+}
@@ -2,6 +2,7 @@ package persistence.relations;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface MapsRelations {
 
@@ -18,4 +19,18 @@ public interface MapsRelations {
     <T extends HasRelations> List<T> get(String relationName, HasRelations requestingEntity,
                                          Class<T> subjectEntity) throws IOException;
 
+
+    /**
+     * Retrieves the relation of many entities at once, reading all of their associates in one call.
+     *
+     * @param relationName       The name of the relation we are looking for
+     * @param requestingEntities The entities whose associates we are looking for
+     * @param subjectEntity      The associated entities
+     * @param <T>                A class that extends HasRelations
+     * @return A map with the key of each requesting entity as key, and its associated subject entities as value
+     * @throws IOException An IOException
+     */
+    <T extends HasRelations> Map<Integer, List<T>> getAll(String relationName, List<? extends HasRelations> requestingEntities,
+                                                          Class<T> subjectEntity) throws IOException;
+
 }
@@ -0,0 +1,397 @@
+package persistence.relations;
+
+import persistence.Cursor;
+import persistence.Persistable;
+import persistence.PersistenceInterface;
+import persistence.Snapshot;
+import persistence.UnitOfWork;
+import persistence.exceptions.EntryDoesNotExistException;
+import persistence.exceptions.EntryExistsException;
+import persistence.exceptions.NonUniformObjectsException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+
+/**
+ * Wraps a gateway with an inverted index of the relations that RelationMapper registers,
+ * so that finding the records whose relation holds a key is a hash lookup instead of a scan of the whole type.
+ * For example, with Tag's "items" registered, lookup(Tag.class, "items", 5) returns the keys of the tags of item 5.
+ * <p>
+ * The index of a type is built from the wrapped gateway the first time it is looked up, and from then on
+ * it is updated with every record saved through this gateway. An update is only indexed if it is newer than
+ * the version already indexed, so writes that finish out of order do not undo each other.
+ * A type is built again from the wrapped gateway after a write to it fails, or after it is removed.
+ * Writes made to the wrapped gateway directly are not seen.
+ */
+public class RelationIndexGateway implements PersistenceInterface {
+
+    /**
+     * The gateway that records are read from and written to.
+     */
+    private final PersistenceInterface gateway;
+
+    /**
+     * The relations to index, by the type that defines them. {Tag.class: ["items"]}
+     */
+    private final Map<Class<?>, Set<String>> relations = new HashMap<>();
+
+    /**
+     * The index of each type that has been built.
+     */
+    private final Map<Class<?>, TypeIndex> indexes = new HashMap<>();
+
+
+    /**
+     * Initializes this gateway.
+     *
+     * @param gateway The gateway that records are read from and written to
+     */
+    public RelationIndexGateway(PersistenceInterface gateway) {
+        this.gateway = gateway;
+    }
+
+
+    /**
+     * Indexes a relation. The type is built again the next time it is looked up.
+     *
+     * @param type         The type that defines the relation in getDefinedRelations
+     * @param relationName The name of the relation
+     */
+    public synchronized void register(Class<? extends HasRelations> type, String relationName) {
+        this.relations.computeIfAbsent(type, t -> new HashSet<>()).add(relationName);
+        this.indexes.remove(type);
+    }
+
+
+    /**
+     * Finds the records of a type whose relation holds a key.
+     *
+     * @param type         The type that defines the relation
+     * @param relationName The name of a registered relation
+     * @param relatedKey   The key the relation must hold
+     * @return The primary keys of the records, in ascending order
+     * @throws IOException An IOException, if the type had to be built
+     */
+    public synchronized List<Integer> lookup(Class<?> type, String relationName, int relatedKey) throws IOException {
+
+        if (!this.relations.containsKey(type) || !this.relations.get(type).contains(relationName)) {
+            throw new IllegalArgumentException(type.getName() + "." + relationName + " is not a registered relation");
+        }
+        Set<Integer> keys = this.indexOf(type).inverted.get(relationName).get(relatedKey);
+        return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
+
+    }
+
+
+    @Override
+    public <T> T get(int id, Class<T> type) throws IOException {
+        return this.gateway.get(id, type);
+    }
+
+
+    @Override
+    public <T> List<T> get(List<Integer> idList, Class<T> type) throws IOException {
+        return this.gateway.get(idList, type);
+    }
+
+
+    @Override
+    public <T> List<T> findBy(String field, Object value, Class<T> type) throws IOException {
+        return this.gateway.findBy(field, value, type);
+    }
+
+
+    @Override
+    public <T> List<T> all(Class<T> type) throws IOException {
+        return this.gateway.all(type);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type) throws IOException {
+        return this.gateway.stream(type);
+    }
+
+
+    @Override
+    public <T> Cursor<T> stream(Class<T> type, Predicate<? super T> filter) throws IOException {
+        return this.gateway.stream(type, filter);
+    }
+
+
+    @Override
+    public Snapshot snapshot(Class<?>... types) throws IOException {
+        return this.gateway.snapshot(types);
+    }
+
+
+    @Override
+    public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException {
+        List<T> created;
+        try {
+            created = this.gateway.create(newObjList, type);
+        } catch (IOException | RuntimeException e) {
+            this.invalidate(type);
+            throw e;
+        }
+        this.index(created, type);
+        return created;
+    }
+
+
+    @Override
+    public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(newObject);
+        return this.create(objectList, type).get(0);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(T updateObj, Class<T> type) throws IOException {
+        List<T> objectList = new ArrayList<>();
+        objectList.add(updateObj);
+        return this.update(objectList, type);
+    }
+
+
+    @Override
+    public <T extends Persistable> boolean update(List<T> updateObjList, Class<T> type) throws IOException, NonUniformObjectsException, EntryExistsException, EntryDoesNotExistException {
+        boolean updated;
+        try {
+            updated = this.gateway.update(updateObjList, type);
+        } catch (IOException | RuntimeException e) {
+            this.invalidate(type);
+            throw e;
+        }
+        this.index(updateObjList, type);
+        return updated;
+    }
+
+
+    @Override
+    public <T> boolean delete(List<Integer> idList, Class<T> type) throws IOException {
+        boolean deleted;
+        try {
+            deleted = this.gateway.delete(idList, type);
+        } catch (IOException | RuntimeException e) {
+            this.invalidate(type);
+            throw e;
+        }
+        this.unindex(idList, type);
+        return deleted;
+    }
+
+
+    @Override
+    public <T> boolean remove(Class<T> type) {
+        boolean removed = this.gateway.remove(type);
+        this.invalidate(type);
+        return removed;
+    }
+
+
+    /**
+     * Starts a unit of work on the wrapped gateway. Once it is committed, every record it saved is indexed.
+     * If it fails to commit, every type it touched is built again the next time.
+     *
+     * @return A new, empty unit of work
+     */
+    @Override
+    public UnitOfWork beginUnitOfWork() {
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        Set<Class<?>> touched = new HashSet<>();
+        //The changes to index once the unit is committed, in the order they were made
+        List<Runnable> changes = new ArrayList<>();
+        return new UnitOfWork() {
+            @Override
+            public <T extends Persistable> List<T> create(List<T> newObjList, Class<T> type) throws IOException {
+                touched.add(type);
+                List<T> created = unit.create(newObjList, type);
+                changes.add(() -> index(created, type));
+                return created;
+            }
+
+            @Override
+            public <T extends Persistable> T create(T newObject, Class<T> type) throws IOException {
+                touched.add(type);
+                T created = unit.create(newObject, type);
+                changes.add(() -> index(Collections.singletonList(created), type));
+                return created;
+            }
+
+            @Override
+            public <T extends Persistable> void update(List<T> updateObjList, Class<T> type) throws IOException {
+                touched.add(type);
+                unit.update(updateObjList, type);
+                List<T> updated = new ArrayList<>(updateObjList);
+                changes.add(() -> index(updated, type));
+            }
+
+            @Override
+            public <T extends Persistable> void update(T updateObj, Class<T> type) throws IOException {
+                touched.add(type);
+                unit.update(updateObj, type);
+                changes.add(() -> index(Collections.singletonList(updateObj), type));
+            }
+
+            @Override
+            public <T> void delete(List<Integer> idList, Class<T> type) {
+                touched.add(type);
+                unit.delete(idList, type);
+                List<Integer> deleted = new ArrayList<>(idList);
+                changes.add(() -> unindex(deleted, type));
+            }
+
+            @Override
+            public void commit() throws IOException {
+                try {
+                    unit.commit();
+                } catch (IOException | RuntimeException e) {
+                    for (Class<?> type : touched) invalidate(type);
+                    throw e;
+                }
+                for (Runnable change : changes) change.run();
+            }
+        };
+
+    }
+
+
+    @Override
+    public CompletableFuture<Void> whenDurable() {
+        return this.gateway.whenDurable();
+    }
+
+
+    /**
+     * Loads a type into the wrapped gateway, and builds its index if it has registered relations.
+     *
+     * @param type The type to load
+     * @throws IOException An IOException
+     */
+    @Override
+    public void warmUp(Class<?> type) throws IOException {
+        this.gateway.warmUp(type);
+        synchronized (this) {
+            if (this.relations.containsKey(type)) this.indexOf(type);
+        }
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Returns the index of a type, building it from the wrapped gateway if it is not built yet.
+     * Must be called while holding the lock of this gateway, so that no write is indexed while the type is read.
+     */
+    private TypeIndex indexOf(Class<?> type) throws IOException {
+
+        TypeIndex index = this.indexes.get(type);
+        if (index != null) return index;
+
+        index = new TypeIndex(this.relations.get(type));
+        try (Cursor<?> records = this.gateway.stream(type)) {
+            for (Object record : records) {
+                index.put((HasRelations) record);
+            }
+        }
+        this.indexes.put(type, index);
+        return index;
+
+    }
+
+
+    private synchronized void index(List<? extends Persistable> records, Class<?> type) {
+        TypeIndex index = this.indexes.get(type);
+        if (index == null) return;
+        for (Persistable record : records) {
+            Integer indexedVersion = index.versions.get(record.getKey());
+            if (indexedVersion == null || indexedVersion <= record.getVersion()) index.put((HasRelations) record);
+        }
+    }
+
+
+    private synchronized void unindex(Collection<Integer> keys, Class<?> type) {
+        TypeIndex index = this.indexes.get(type);
+        if (index == null) return;
+        for (Integer key : keys) {
+            index.remove(key);
+        }
+    }
+
+
+    private synchronized void invalidate(Class<?> type) {
+        this.indexes.remove(type);
+    }
+
+
+    /**
+     * The index of the registered relations of one type.
+     */
+    private static class TypeIndex {
+
+        /**
+         * The version of each record that is indexed. {primary key: version}
+         */
+        private final Map<Integer, Integer> versions = new HashMap<>();
+
+        /**
+         * The keys each record's relation held when it was indexed. {"Relation Name": {primary key: related keys}}
+         */
+        private final Map<String, Map<Integer, List<Integer>>> forward = new HashMap<>();
+
+        /**
+         * The records whose relation holds each key. {"Relation Name": {related key: primary keys}}
+         */
+        private final Map<String, Map<Integer, Set<Integer>>> inverted = new HashMap<>();
+
+        private TypeIndex(Set<String> relationNames) {
+            for (String relationName : relationNames) {
+                this.forward.put(relationName, new HashMap<>());
+                this.inverted.put(relationName, new HashMap<>());
+            }
+        }
+
+        private void put(HasRelations record) {
+            this.remove(record.getKey());
+            this.versions.put(record.getKey(), record.getVersion());
+            Map<String, List<Integer>> definedRelations = record.getDefinedRelations();
+            for (String relationName : this.forward.keySet()) {
+                List<Integer> relatedKeys = definedRelations.get(relationName);
+                if (relatedKeys == null) continue;
+                relatedKeys = new ArrayList<>(relatedKeys);
+                this.forward.get(relationName).put(record.getKey(), relatedKeys);
+                for (Integer relatedKey : relatedKeys) {
+                    this.inverted.get(relationName).computeIfAbsent(relatedKey, k -> new TreeSet<>()).add(record.getKey());
+                }
+            }
+        }
+
+        private void remove(int key) {
+            this.versions.remove(key);
+            for (String relationName : this.forward.keySet()) {
+                List<Integer> relatedKeys = this.forward.get(relationName).remove(key);
+                if (relatedKeys == null) continue;
+                Map<Integer, Set<Integer>> inverted = this.inverted.get(relationName);
+                for (Integer relatedKey : relatedKeys) {
+                    Set<Integer> keys = inverted.get(relatedKey);
+                    if (keys == null) continue;
+                    keys.remove(key);
+                    if (keys.isEmpty()) inverted.remove(relatedKey);
+                }
+            }
+        }
+
+    }
+
+
+}
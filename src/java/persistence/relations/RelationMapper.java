@@ -9,8 +9,11 @@ import persistence.PersistenceInterface;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class maps the relations between one entity to another entity.
@@ -27,6 +30,11 @@ public class RelationMapper implements MapsRelations {
 
     PersistenceInterface persistence;
 
+    /**
+     * Finds the entities on the other side of a reverse relation without reading all of them.
+     */
+    RelationIndexGateway index;
+
     /**
      * Holds the reverse relation.
      * For example, we want to log that the reverse of all of the items with tag "x", is the all of the tags of item "y"
@@ -39,9 +47,11 @@ public class RelationMapper implements MapsRelations {
      * Instanates an instance of this class.
      *
      * @param persistence A concrete class that persists data.
+     * @param index       The index of the relations, which must wrap the gateway that persistence writes to
      */
-    public RelationMapper(PersistenceInterface persistence) {
+    public RelationMapper(PersistenceInterface persistence, RelationIndexGateway index) {
         this.persistence = persistence;
+        this.index = index;
         this.build();
     }
 
@@ -59,6 +69,10 @@ public class RelationMapper implements MapsRelations {
         this.buildReciprocalRelation(firstClass, firstRelationName, secondClass, secondRelationName);
         this.buildReciprocalRelation(secondClass, secondRelationName, firstClass, firstRelationName);
 
+        //Either side may be the one that holds the ids, so both are indexed
+        this.index.register(firstClass, firstRelationName);
+        this.index.register(secondClass, secondRelationName);
+
     }
 
     /**
@@ -85,6 +99,52 @@ public class RelationMapper implements MapsRelations {
 
     }
 
+    /**
+     * Retrieves the relation of many entities at once, reading all of their associates in one call.
+     *
+     * @param relationName       The name of the relation we are looking for
+     * @param requestingEntities The entities whose associates we are looking for
+     * @param subjectEntity      The associated entities
+     * @param <T>                A class that extends HasRelations
+     * @return A map with the key of each requesting entity as key, and its associated subject entities as value
+     * @throws IOException An IOException
+     */
+    public <T extends HasRelations> Map<Integer, List<T>> getAll(String relationName, List<? extends HasRelations> requestingEntities,
+                                                                 Class<T> subjectEntity) throws IOException {
+
+        //The keys of the associates of each requesting entity, found in the entity itself or in the index
+        Map<Integer, List<Integer>> relatedKeys = new LinkedHashMap<>();
+        Set<Integer> allKeys = new LinkedHashSet<>();
+        for (HasRelations requestingEntity : requestingEntities) {
+            List<Integer> keys = requestingEntity.getDefinedRelations().get(relationName);
+            if (keys == null) {
+                String reverseRelationKey = this.getReverseRelationKey(requestingEntity.getClass().getName(), relationName);
+                keys = this.index.lookup(subjectEntity, reverseRelationKey, requestingEntity.getKey());
+            }
+            relatedKeys.put(requestingEntity.getKey(), keys);
+            allKeys.addAll(keys);
+        }
+
+        //Every associate is read in one call
+        Map<Integer, T> subjects = new HashMap<>();
+        if (!allKeys.isEmpty()) {
+            for (T subject : this.persistence.get(new ArrayList<>(allKeys), subjectEntity)) {
+                subjects.put(subject.getKey(), subject);
+            }
+        }
+
+        Map<Integer, List<T>> relations = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : relatedKeys.entrySet()) {
+            List<T> related = new ArrayList<>();
+            for (Integer key : new LinkedHashSet<>(entry.getValue())) {
+                if (subjects.containsKey(key)) related.add(subjects.get(key));
+            }
+            relations.put(entry.getKey(), related);
+        }
+        return relations;
+
+    }
+
 /********************************************************************************************************
  *
  * Helper Methods
@@ -114,17 +174,10 @@ public class RelationMapper implements MapsRelations {
         String requestingName = requestingEntity.getClass().getName();
         String reverseRelationKey = this.getReverseRelationKey(requestingName, relationName);
 
-        //Get all the subject entities
-        List<T> candidates = this.persistence.all(subjectEntity);
-
-        //We filter through all the instances of the subject entity to get the ones with the relations
-        List<T> relations = new ArrayList<>();
-        for (T candidate : candidates) {
-            boolean isRelated = candidate.getDefinedRelations().get(reverseRelationKey).contains(requestingEntity.getKey());
-            if (isRelated) relations.add(subjectEntity.cast(candidate));
-        }
-
-        return relations;
+        //The index holds the keys of the subject entities whose relation holds the requesting entity
+        List<Integer> keys = this.index.lookup(subjectEntity, reverseRelationKey, requestingEntity.getKey());
+        if (keys.isEmpty()) return new ArrayList<>();
+        return this.persistence.get(keys, subjectEntity);
     }
 
 
@@ -137,9 +190,8 @@ public class RelationMapper implements MapsRelations {
     private void buildReciprocalRelation(Class<? extends HasRelations> firstClass, String firstRelationName,
                                          Class<? extends HasRelations> secondClass, String secondRelationName) {
 
-        Map<String, String> reverseMaps1 = new HashMap<>();
+        Map<String, String> reverseMaps1 = this.reciprocalRelations.computeIfAbsent(secondClass.getName(), name -> new HashMap<>());
         reverseMaps1.put(secondRelationName, firstClass.getName() + "," + firstRelationName);
-        this.reciprocalRelations.put(secondClass.getName(), reverseMaps1);
 
     }
 
@@ -1,10 +1,10 @@
 package presenter;
 
 import controller.forms.*;
-import entities.History;
-import entities.Item;
-import entities.User;
+import entities.*;
 import org.springframework.ui.Model;
+import persistence.PersistenceInterface;
+import persistence.Snapshot;
 import usecases.SystemFacade;
 import usecases.TradingFacade;
 import usecases.command.CommandManager;
@@ -22,6 +22,7 @@ public class AdminPresenter {
     private final SystemFacade systemFacade;
     private final TradingFacade tradingFacade;
     private final CommandManager commandManager;
+    private final PersistenceInterface gateway;
 
 
     /**
@@ -30,11 +31,14 @@ public class AdminPresenter {
      * @param tradingFacade  The facade holding trading related functionality.
      * @param systemFacade   The facade holding system related functionality.
      * @param commandManager Manages actions
+     * @param gateway        The gateway, to read consistent snapshots from for the pages that scan every record
      */
-    public AdminPresenter(SystemFacade systemFacade, TradingFacade tradingFacade, CommandManager commandManager) {
+    public AdminPresenter(SystemFacade systemFacade, TradingFacade tradingFacade, CommandManager commandManager,
+                          PersistenceInterface gateway) {
         this.systemFacade = systemFacade;
         this.tradingFacade = tradingFacade;
         this.commandManager = commandManager;
+        this.gateway = gateway;
     }
 
     /**
@@ -45,8 +49,13 @@ public class AdminPresenter {
      * @throws IOException               An IOException
      * @throws RuleDoesNotExistException An exception that a particular system rule doesn't exist.
      */
+    @SuppressWarnings("try") //The snapshot is only held open around the reads, never used in them
     public String viewFreezeSuggestionPresenter(Model model) throws IOException, RuleDoesNotExistException {
-        List<User> users = systemFacade.alert().getFreezeSuggestions();
+        List<User> users;
+        //Every user is checked against every rule, so this reads from a snapshot instead of holding up trades
+        try (Snapshot snapshot = gateway.snapshot(User.class, Transaction.class, Trade.class, Meeting.class)) {
+            users = systemFacade.alert().getFreezeSuggestions();
+        }
         model.addAttribute("freezeSuggestions", users);
         model.addAttribute("freezeUserForm", new FreezeUserForm());
         return "admin/freezeSuggestions";
@@ -135,14 +144,18 @@ public class AdminPresenter {
      * @return The view
      * @throws IOException An IOException
      */
+    @SuppressWarnings("try") //The snapshot is only held open around the reads, never used in them
     public String handleReportingPresenter(Model model) throws IOException {
-        List<List<Integer>> mostFrequentTradedItem = this.tradingFacade.manageTransactions().mostTradedItems();
-        List<List<Integer>> userCredit = this.systemFacade.users().userHighCredit();
-        model.addAttribute("allUsers", this.systemFacade.users().allById());
-        model.addAttribute("items", tradingFacade.editItems().get(mostFrequentTradedItem.get(0)));
-        model.addAttribute("itemFrequency", mostFrequentTradedItem.get(1));
-        model.addAttribute("userCredit", userCredit.get(0));
-        model.addAttribute("credit", userCredit.get(1));
+        //Every user, transaction and trade is read, so the report comes from one consistent snapshot
+        try (Snapshot snapshot = gateway.snapshot(User.class, Transaction.class, Trade.class, Meeting.class, Item.class)) {
+            List<List<Integer>> mostFrequentTradedItem = this.tradingFacade.manageTransactions().mostTradedItems();
+            List<List<Integer>> userCredit = this.systemFacade.users().userHighCredit();
+            model.addAttribute("allUsers", this.systemFacade.users().allById());
+            model.addAttribute("items", tradingFacade.editItems().get(mostFrequentTradedItem.get(0)));
+            model.addAttribute("itemFrequency", mostFrequentTradedItem.get(1));
+            model.addAttribute("userCredit", userCredit.get(0));
+            model.addAttribute("credit", userCredit.get(1));
+        }
         return "admin/reporting";
     }
 
@@ -6,11 +6,10 @@ import org.springframework.ui.Model;
 import usecases.SystemFacade;
 import usecases.TradingFacade;
 import usecases.items.exceptions.ItemNotFoundException;
-import usecases.trade.TransactionQueryBuilder;
+import usecases.query.Aggregate;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 
 
 public class TransactionPresenter {
@@ -129,23 +128,17 @@ public class TransactionPresenter {
      * @throws IOException An IOException
      */
     public String transHistoryPresenter(Model model, int userId) throws IOException {
-        TransactionQueryBuilder query = tradingFacade.fetchTransactions().query().involvesUser(userId);
-
-        //Retrieves the transactions, trades, items, meetings, and users related to this user's transactions.
-        List<Transaction> transactions = query.getTransactions();
-        Map<Integer, List<Trade>> trades = query.getTrades();
-        Map<Integer, List<Item>> items = query.getItems();
-        Map<Integer, List<Meeting>> meetings = query.getMeetings();
-        Map<Integer, User> borrowers = query.getBorrowers();
-        Map<Integer, User> lenders = query.getLenders();
+        //Retrieves the transactions, trades, items, meetings, and users related to this user's transactions, in one pass.
+        Aggregate<Transaction> history = tradingFacade.fetchTransactions().query().involvesUser(userId)
+                .with("trades.items", "trades.borrower", "trades.lender", "meetings").getAggregate();
 
         //Bind our dynamic variables to the model, for HTML display
-        model.addAttribute("transactions", transactions);
-        model.addAttribute("trades", trades);
-        model.addAttribute("meetings", meetings);
-        model.addAttribute("items", items);
-        model.addAttribute("borrowers", borrowers);
-        model.addAttribute("lenders", lenders);
+        model.addAttribute("transactions", history.getRoots());
+        model.addAttribute("trades", history.getRelated("trades", Trade.class));
+        model.addAttribute("meetings", history.getRelated("meetings", Meeting.class));
+        model.addAttribute("items", history.getRelated("trades.items", Item.class));
+        model.addAttribute("borrowers", history.getSingle("trades.borrower", User.class));
+        model.addAttribute("lenders", history.getSingle("trades.lender", User.class));
         model.addAttribute("users", systemFacade.users().allById());
 
         return "trade/transactions";
@@ -2,6 +2,7 @@ package usecases.alerts;
 
 import entities.Item;
 import entities.User;
+import persistence.Cursor;
 import persistence.PersistenceInterface;
 import usecases.rules.RuleDoesNotExistException;
 
@@ -102,12 +103,14 @@ public class AlertManager {
      */
     public List<User> getFreezeSuggestions() throws IOException, RuleDoesNotExistException {
         SystemAlert freezeUserAlert = alertList.get("FreezeUserAlert");
-        List<User> users = gateway.all(User.class);
 
         List<User> suggestions = new ArrayList<>();
-        for (User user : users) {
-            if (freezeUserAlert.needAlert(user.getKey()) && !user.getStatus().equals("frozen")) {
-                suggestions.add(user);
+        //Frozen users are skipped by the gateway, before they are ever copied
+        try (Cursor<User> users = gateway.stream(User.class, user -> !user.getStatus().equals("frozen"))) {
+            for (User user : users) {
+                if (freezeUserAlert.needAlert(user.getKey())) {
+                    suggestions.add(user);
+                }
             }
         }
         return suggestions;
@@ -7,6 +7,7 @@ import usecases.command.action.Undoable;
 import usecases.command.exceptions.CommandExecutionException;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,13 +41,15 @@ public class CommandManager {
     }
 
     /**
-     * Get all actionable actions's history
+     * Get all actionable actions's history, newest first
      *
      * @return a list of all histories
      * @throws IOException An IOException.
      */
     public List<History> allActions() throws IOException {
-        return this.gateway.all(History.class);
+        List<History> allHistory = this.gateway.all(History.class);
+        Collections.reverse(allHistory);
+        return allHistory;
     }
 
     /**
@@ -3,6 +3,7 @@ package usecases.command.action;
 import entities.History;
 import entities.Meeting;
 import persistence.PersistenceInterface;
+import persistence.UnitOfWork;
 import usecases.command.exceptions.CommandExecutionException;
 import usecases.meeting.exceptions.MeetingException;
 import usecases.trade.TransactionFetcher;
@@ -69,7 +70,9 @@ public class InitiateTransaction implements Undoable {
                         String meetingLocation, String meetingLocation2) throws
             TooManyItemListsException, MeetingException, IOException {
 
-        int transactionId = transactionManager.buildTransaction(borrowerId, lenderId, borrowItemId, lendItemId,
+        //The transaction and its history are saved together
+        UnitOfWork unit = gateway.beginUnitOfWork();
+        int transactionId = transactionManager.buildTransaction(unit, borrowerId, lenderId, borrowItemId, lendItemId,
                 tradeType, tradeDuration, meetingDate, meetingLocation, meetingLocation2);
 
         History history = new History();
@@ -86,7 +89,8 @@ public class InitiateTransaction implements Undoable {
         history.setActionName(this.getClass().getName());
         history.setDisplayString("Borrower with id " + borrowerId + " initiates a transaction with lender with id "
                 + lenderId + " involving borrow item with id " + borrowItemId + " and lend item with id " + lendItemId);
-        gateway.create(history, History.class);
+        unit.create(history, History.class);
+        unit.commit();
     }
 
     /**
@@ -98,12 +102,14 @@ public class InitiateTransaction implements Undoable {
     @Override
     public void undo(History history) throws CommandExecutionException {
         try {
-            transactionManager.deleteTransaction((Integer) history.getData("transactionId"));
+            UnitOfWork unit = gateway.beginUnitOfWork();
+            transactionManager.deleteTransaction(unit, (Integer) history.getData("transactionId"));
             history.setUndone(true);
             String oldMessage = history.getDisplayString();
             String newMessage = oldMessage + " has been undone";
             history.setDisplayString(newMessage);
-            gateway.update(history, History.class);
+            unit.update(history, History.class);
+            unit.commit();
         } catch (Exception e) {
             throw new CommandExecutionException(e);
         }
@@ -23,6 +23,8 @@ public class ConfigManager {
 
     /**
      * Create sensible defaults for various parameters of the program.
+     * The saved config is loaded over them the first time it is needed, not here,
+     * so that creating this class at startup does not wait for the Config records to be read.
      *
      * @param gateway      An object that handles persistence
      * @param eventHandler An object that handles events
@@ -33,10 +35,6 @@ public class ConfigManager {
         this.config.put("maxMeetingEdits", "3");
         this.config.put("maxIncompleteTransactions", "3");
         this.config.put("maxTransactionsPerWeek", "3");
-
-        //We override any saved defaults
-        this.loadConfig();
-
     }
 
     /**
@@ -44,6 +42,11 @@ public class ConfigManager {
      */
     private Map<String, String> config = new HashMap<>();
 
+    /**
+     * Whether the saved config has been loaded over the defaults.
+     */
+    private boolean loaded = false;
+
 
     /**
      * Retrieves a particular configuration by the unique key
@@ -52,6 +55,7 @@ public class ConfigManager {
      * @return The value of the configuration
      */
     public String get(String key) {
+        this.loadConfig();
         return this.config.get(key);
     }
 
@@ -61,6 +65,7 @@ public class ConfigManager {
      * @return A map of all available configurations of this program.
      */
     public Map<String, String> all() {
+        this.loadConfig();
         return this.config;
     }
 
@@ -74,6 +79,7 @@ public class ConfigManager {
      * @throws IOException An IOException
      */
     public boolean edit(String key, Integer value) throws IOException {
+        this.loadConfig();
         this.config.put(key, value.toString());
 
         List<Config> configArr = new ArrayList<>();
@@ -107,9 +113,12 @@ public class ConfigManager {
  *********************************************************************************************************/
 
     /**
-     * Load an available config
+     * Load an available config over the defaults, unless it has been loaded already
      */
-    private void loadConfig() {
+    private synchronized void loadConfig() {
+        if (this.loaded) return;
+        //If it fails to load, the defaults are used from then on
+        this.loaded = true;
         try {
             //If there are multiple values per key, then we use the latest one.
             List<Config> configPair = gateway.all(Config.class);
@@ -4,6 +4,7 @@ import entities.Item;
 import entities.WishList;
 import persistence.PersistenceInterface;
 import persistence.exceptions.PersistenceException;
+import persistence.exceptions.VersionConflictException;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -17,6 +18,11 @@ public class ItemEditor {
 
     private PersistenceInterface gateway;
 
+    /**
+     * The number of times an update is tried before giving up, when the record keeps being changed by someone else
+     */
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+
     /**
      * Initializes this class.
      *
@@ -67,19 +73,25 @@ public class ItemEditor {
      * @throws IOException IOException
      */
     public boolean approveItem(int itemId) throws IOException {
-        List<Integer> l = new ArrayList<>();
-        l.add(itemId);
-        List<Item> items = gateway.get(l, Item.class);
+        for (int attempt = 1; ; attempt++) {
+            List<Integer> l = new ArrayList<>();
+            l.add(itemId);
+            List<Item> items = gateway.get(l, Item.class);
+
+            if (items.isEmpty()) return false;
 
-        if (!items.isEmpty()) {
             Item item = items.get(0);
             item.setVisibility(true);
             List<Item> updateList = new ArrayList<>();
             updateList.add(item);
-            gateway.update(updateList, Item.class);
-            return true;
+            try {
+                gateway.update(updateList, Item.class);
+                return true;
+            } catch (VersionConflictException e) {
+                //The item was changed since we read it, so we read it again and approve that version
+                if (attempt == MAX_UPDATE_ATTEMPTS) throw e;
+            }
         }
-        return false;
     }
 
 
@@ -140,17 +152,15 @@ public class ItemEditor {
      */
     public boolean addItemToWishlist(int itemId, int userId) throws IOException, PersistenceException {
 
-        List<WishList> wishLists = gateway.all(WishList.class);
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
         List<WishList> updateWishlist = new ArrayList<>();
         for (WishList w : wishLists) {
-            if (w.getOwnerId() == userId) {
-                //Check for duplicates
-                if (w.getWishList().contains(itemId)) return false;
-                w.addWishList(itemId);
-                updateWishlist.add(w);
-                gateway.update(updateWishlist, WishList.class);
-            }
+            //Check for duplicates
+            if (w.getWishList().contains(itemId)) return false;
+            w.addWishList(itemId);
+            updateWishlist.add(w);
         }
+        gateway.update(updateWishlist, WishList.class);
         return true;
 
     }
@@ -166,15 +176,13 @@ public class ItemEditor {
      */
     public void removeItemFromWishlist(int itemId, int userId) throws IOException, PersistenceException {
 
-        List<WishList> wishLists = gateway.all(WishList.class);
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
         List<WishList> updateWishlist = new ArrayList<>();
         for (WishList w : wishLists) {
-            if (w.getOwnerId() == userId) {
-                w.removeWishList(itemId);
-                updateWishlist.add(w);
-                gateway.update(updateWishlist, WishList.class);
-            }
+            w.removeWishList(itemId);
+            updateWishlist.add(w);
         }
+        gateway.update(updateWishlist, WishList.class);
 
     }
 
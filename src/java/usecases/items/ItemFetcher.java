@@ -5,14 +5,16 @@ import entities.Tag;
 import entities.User;
 import entities.WishList;
 import persistence.PersistenceInterface;
+import persistence.relations.HasRelations;
 import persistence.relations.MapsRelations;
 import usecases.items.exceptions.ItemNotFoundException;
 import usecases.query.AbstractFetcher;
+import usecases.query.AbstractQueryBuilder;
+import usecases.query.Aggregate;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.function.Predicate;
 
 
 /**
@@ -20,13 +22,13 @@ import java.util.List;
  * Can execute a number of pre-defined filters, such as whether the item is approve or not etc.
  * Can return a list of ids, a list of item names, or a list of Item objects.
  */
-public class ItemFetcher extends AbstractFetcher {
+public class ItemFetcher extends AbstractFetcher<Item, ItemQueryContext> {
 
     /**
      * Class dependencies
      */
-    PersistenceInterface gateway;
-    MapsRelations mapsRelation;
+    private final PersistenceInterface gateway;
+    private final MapsRelations mapsRelation;
 
     /**
      * Initializes this class.
@@ -38,13 +40,6 @@ public class ItemFetcher extends AbstractFetcher {
         this.mapsRelation = mapsRelation;
     }
 
-    /**
-     * Stores the result of the current fetch.
-     */
-    private List<Item> allItems = new ArrayList<Item>();
-    private List<Item> currentList = new ArrayList<Item>();
-    private List<WishList> wishList = new ArrayList<WishList>();
-
 
 /********************************************************************************************************
  *
@@ -84,9 +79,8 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Integer> fetchIds(ItemQueryBuilder query) throws IOException {
-        this.fetchObjects(query);
         List<Integer> ids = new ArrayList<Integer>();
-        for (Item item : this.currentList) {
+        for (Item item : this.fetchObjects(query)) {
             ids.add(item.getKey());
         }
         return ids;
@@ -101,9 +95,8 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<String> fetchNames(ItemQueryBuilder query) throws IOException {
-        this.fetchObjects(query);
         List<String> names = new ArrayList<String>();
-        for (Item item : this.currentList) {
+        for (Item item : this.fetchObjects(query)) {
             names.add(item.getName());
         }
         return names;
@@ -118,8 +111,20 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Item> fetchObjects(ItemQueryBuilder query) throws IOException {
-        this.fetch(query);
-        return this.currentList;
+        return this.fetch(query).getResults();
+    }
+
+
+    /**
+     * Returns the items together with the related entities of the include paths of the query.
+     * The paths are "tags", "owner" and "holder".
+     *
+     * @param query ItemQueryBuilder
+     * @return An aggregate of the items and their related entities
+     * @throws IOException IOException
+     */
+    public Aggregate<Item> fetchAggregate(ItemQueryBuilder query) throws IOException {
+        return this.resolve(this.fetch(query).getResults(), query);
     }
 
 
@@ -189,39 +194,91 @@ public class ItemFetcher extends AbstractFetcher {
 
 /********************************************************************************************************
  *
- * All the List<String> Filters Available
+ * The filters, compiled into one pipeline
  *
  *********************************************************************************************************/
 
     /**
-     * Filter the list of items and leave the items with the Tags associated with them
+     * Returns the predicate of a filter of the query, for AbstractQueryBuilder.compile.
      *
-     * @param tagNames A list of tag names.
+     * @param name    The name of the filter
+     * @param value   The value of the filter, or true for a boolean filter
+     * @param context The context of the query
+     * @return The predicate, or null if there is no such filter
      * @throws IOException An IOException
      */
-    public void isTaggedWithAll(List<String> tagNames) throws IOException {
-        for (String tagName : tagNames) {
-            this.isTaggedWith(tagName);
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Predicate<Item> filter(String name, Object value, ItemQueryContext context) throws IOException {
+        switch (name) {
+            case "isTaggedWithAll":
+                return this.isTaggedWithAll((List<String>) value, context);
+            case "findById":
+                return this.findById((Integer) value);
+            case "findByHomeCity":
+                return this.findByHomeCity((Integer) value, context);
+            case "exceptOwnedBy":
+                return this.exceptOwnedBy((Integer) value);
+            case "onlyOwnedBy":
+                return this.onlyOwnedBy((Integer) value);
+            case "exceptHeldBy":
+                return this.exceptHeldBy((Integer) value);
+            case "onlyHeldBy":
+                return this.onlyHeldBy((Integer) value);
+            case "sellBy":
+                return this.sellBy((Integer) value);
+            case "inWishlistOf":
+                return this.inWishlistOf((Integer) value);
+            case "notInWishlistOf":
+                return this.notInWishlistOf((Integer) value);
+            case "heldByOwner":
+                return this.heldByOwner();
+            case "onlyApproved":
+                return this.onlyApproved();
+            case "exceptApproved":
+                return this.exceptApproved();
+            case "ownedByUnfrozenUser":
+                return this.ownedByUnfrozenUser(context);
+            case "ownedByUnVacationUser":
+                return this.ownedByUnVacationUser(context);
+            case "onlyDeleted":
+                return this.onlyDeleted();
+            case "notDeleted":
+                return this.notDeleted();
+            case "forSell":
+                return this.forSell();
+            case "unreserved":
+                return this.unreserved();
+            default:
+                return null;
         }
     }
 
+
+/********************************************************************************************************
+ *
+ * All the List<String> Filters Available
+ *
+ *********************************************************************************************************/
+
     /**
-     * Filters based on one tag.
+     * Filter the list of items and leave the items with the Tags associated with them
      *
-     * @param tagName The string representation of a tag
+     * @param tagNames A list of tag names.
+     * @param context  The context of the query
      * @throws IOException An IOException
      */
-    public void isTaggedWith(String tagName) throws IOException {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            List<Tag> tags = item.relation(this.mapsRelation, "tags", Tag.class);
-            boolean include = false;
-            for (Tag tag : tags) {
-                if (tag.getTagName().equals(tagName)) include = true;
+    private Predicate<Item> isTaggedWithAll(List<String> tagNames, ItemQueryContext context) throws IOException {
+        //The tags of every item are read in one call
+        Map<Integer, Set<String>> tagsOfItems = new HashMap<>();
+        for (Map.Entry<Integer, List<Tag>> entry : this.mapsRelation.getAll("tags", context.getResults(), Tag.class).entrySet()) {
+            Set<String> names = new HashSet<>();
+            for (Tag tag : entry.getValue()) {
+                names.add(tag.getTagName());
             }
-            if (include) filtered.add(item);
+            tagsOfItems.put(entry.getKey(), names);
         }
-        this.currentList = filtered;
+        return item -> tagsOfItems.get(item.getKey()).containsAll(tagNames);
     }
 
 
@@ -235,29 +292,21 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param itemId The unique id of the item
      */
-    public void findById(Integer itemId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getKey() == itemId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> findById(Integer itemId) {
+        return item -> item.getKey() == itemId;
     }
 
     /**
      * Get the item that belongs to user from the same home city
      *
-     * @param userId The unique id of the user
+     * @param userId  The unique id of the user
+     * @param context The context of the query
      * @throws IOException An IOException
      */
-    public void findByHomeCity(Integer userId) throws IOException {
-        List<Item> filtered = new ArrayList<>();
-        String homeCiy = getOwner(userId).getHomeCity();
-        for (Item item : this.currentList) {
-            if (getOwner(item.getOwnerId()).getHomeCity().equals(homeCiy)) {
-                filtered.add(item);
-            }
-        }
-        this.currentList = filtered;
+    private Predicate<Item> findByHomeCity(Integer userId, ItemQueryContext context) throws IOException {
+        String homeCity = getOwner(userId).getHomeCity();
+        Map<Integer, User> owners = this.getOwners(context);
+        return item -> owners.containsKey(item.getOwnerId()) && owners.get(item.getOwnerId()).getHomeCity().equals(homeCity);
     }
 
     /**
@@ -265,12 +314,8 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId The unique id of the user
      */
-    public void exceptOwnedBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() != userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> exceptOwnedBy(Integer userId) {
+        return item -> item.getOwnerId() != userId;
     }
 
     /**
@@ -278,12 +323,8 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId The unique id of the user
      */
-    public void onlyOwnedBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> onlyOwnedBy(Integer userId) {
+        return item -> item.getOwnerId() == userId;
     }
 
     /**
@@ -291,12 +332,8 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId The unique id of the user
      */
-    public void exceptHeldBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getHolderId() != userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> exceptHeldBy(Integer userId) {
+        return item -> item.getHolderId() != userId;
     }
 
     /**
@@ -304,12 +341,8 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId The unique id of the user
      */
-    public void onlyHeldBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getHolderId() == userId) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> onlyHeldBy(Integer userId) {
+        return item -> item.getHolderId() == userId;
     }
 
     /**
@@ -317,46 +350,35 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId The unique id of the user
      */
-    public void sellBy(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == userId && item.getHolderId() == userId && item.isForSale()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> sellBy(Integer userId) {
+        return item -> item.getOwnerId() == userId && item.getHolderId() == userId && item.isForSale();
     }
 
     /**
      * Get the items in the wishlist of the user
      *
      * @param userId The unique id of the user
+     * @throws IOException An IOException
      */
-    public void inWishlistOf(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
+    private Predicate<Item> inWishlistOf(Integer userId) throws IOException {
         WishList wishList = this.getWishlistOf(userId);
-        if (wishList != null) {
-            for (Item item : this.currentList) {
-                if (wishList.getWishList().contains(item.getKey())) filtered.add(item);
-            }
-        }
-        this.currentList = filtered;
+        if (wishList == null) return item -> false;
+        Set<Integer> wished = new HashSet<>(wishList.getWishList());
+        return item -> wished.contains(item.getKey());
     }
 
     /**
      * Get the item that are not in the wishlist of the user
      *
      * @param userId The unique id of the user
+     * @throws IOException An IOException
      */
-    public void notInWishlistOf(Integer userId) {
-        List<Item> filtered = new ArrayList<Item>();
+    private Predicate<Item> notInWishlistOf(Integer userId) throws IOException {
         WishList wishList = this.getWishlistOf(userId);
-        //If there is a wishlist, we must only add items not in the wishlist
-        if (wishList != null) {
-            for (Item item : this.currentList) {
-                if (!wishList.getWishList().contains(item.getKey())) filtered.add(item);
-            }
-            this.currentList = filtered;
-        }
-        //Otherwise, we do nothing and no filtering has taken place
+        //If there is no wishlist, no filtering takes place
+        if (wishList == null) return item -> true;
+        Set<Integer> wished = new HashSet<>(wishList.getWishList());
+        return item -> !wished.contains(item.getKey());
     }
 
 
@@ -369,107 +391,79 @@ public class ItemFetcher extends AbstractFetcher {
     /**
      * Get the items that are held by their owner
      */
-    public void heldByOwner() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.getOwnerId() == item.getHolderId()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> heldByOwner() {
+        return item -> item.getOwnerId() == item.getHolderId();
     }
 
     /**
      * Get only the items that are approved
      */
-    public void onlyApproved() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (item.isVisible()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> onlyApproved() {
+        return Item::isVisible;
     }
 
     /**
      * Get only the items that are not visible to users
      */
-    public void exceptApproved() {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            if (!item.isVisible()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> exceptApproved() {
+        return item -> !item.isVisible();
     }
 
     /**
      * Get only the items that are owned by unfrozen user
      *
+     * @param context The context of the query
      * @throws IOException An IOException
      */
-    public void ownedByUnfrozenUser() throws IOException {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            User user = this.getOwner(item.getOwnerId());
-            if (user != null && !user.getStatus().equals("frozen")) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> ownedByUnfrozenUser(ItemQueryContext context) throws IOException {
+        Map<Integer, User> owners = this.getOwners(context);
+        return item -> {
+            User user = owners.get(item.getOwnerId());
+            return user != null && !user.getStatus().equals("frozen");
+        };
     }
 
     /**
      * Get only the items that are owned by user not on vacation
      *
+     * @param context The context of the query
      * @throws IOException An IOException
      */
-    public void ownedByUnVacationUser() throws IOException {
-        List<Item> filtered = new ArrayList<Item>();
-        for (Item item : this.currentList) {
-            User user = this.getOwner(item.getOwnerId());
-            if (user != null && !user.getStatus().equals("vacation")) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> ownedByUnVacationUser(ItemQueryContext context) throws IOException {
+        Map<Integer, User> owners = this.getOwners(context);
+        return item -> {
+            User user = owners.get(item.getOwnerId());
+            return user != null && !user.getStatus().equals("vacation");
+        };
     }
 
     /**
      * Get only the items that are deleted
      */
-    public void onlyDeleted() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (item.isSoftDeleted()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> onlyDeleted() {
+        return Item::isSoftDeleted;
     }
 
     /**
      * Get only the items that are not deleted
      */
-    public void notDeleted() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (!item.isSoftDeleted()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> notDeleted() {
+        return item -> !item.isSoftDeleted();
     }
 
     /**
      * Get only the items that are for sale
      */
-    public void forSell() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (item.isForSale()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> forSell() {
+        return Item::isForSale;
     }
 
 
     /**
      * Get only the items that are not reserved
      */
-    public void unreserved() {
-        List<Item> filtered = new ArrayList<>();
-        for (Item item : this.currentList) {
-            if (!item.isReserved()) filtered.add(item);
-        }
-        this.currentList = filtered;
+    private Predicate<Item> unreserved() {
+        return item -> !item.isReserved();
     }
 
 
@@ -480,21 +474,53 @@ public class ItemFetcher extends AbstractFetcher {
  *********************************************************************************************************/
 
     /**
-     * reset the all lists this class saved
+     * Get the Item Objects the query will be filtered from, in a new context for the query.
+     * If the query only wants the items of one owner or holder, only those items are looked up, through the index.
      */
-    protected void reset() {
-        this.allItems = new ArrayList<Item>();
-        this.currentList = new ArrayList<Item>();
-        this.wishList = new ArrayList<WishList>();
+    @Override
+    protected ItemQueryContext all(AbstractQueryBuilder query) throws IOException {
+        Map<String, Integer> integerFilters = ((ItemQueryBuilder) query).getIntegerFilters();
+        Integer ownerId = integerFilters.get("onlyOwnedBy");
+        Integer holderId = integerFilters.get("onlyHeldBy");
+        if (ownerId != null) return new ItemQueryContext(gateway.findBy("ownerId", ownerId, Item.class));
+        if (holderId != null) return new ItemQueryContext(gateway.findBy("holderId", holderId, Item.class));
+        return new ItemQueryContext(gateway.all(Item.class));
     }
 
     /**
-     * Get all Item Objects and save them into the lists this class had
+     * Reads the related entities of one include path for all of the items at once.
+     *
+     * @param path    The include path
+     * @param parents The items
+     * @return A map with the item id as key and its related entities as value
+     * @throws IOException An IOException
      */
-    protected void all() throws IOException {
-        this.allItems = gateway.all(Item.class);
-        this.currentList.addAll(this.allItems);
-        this.wishList = gateway.all(WishList.class);
+    @Override
+    protected Map<Integer, List<HasRelations>> include(String path, List<HasRelations> parents) throws IOException {
+        if (path.equals("tags")) return this.widen(this.mapsRelation.getAll("tags", parents, Tag.class));
+        if (!path.equals("owner") && !path.equals("holder")) {
+            throw new IllegalArgumentException("Items cannot include " + path);
+        }
+
+        //The owners or holders are read in one call
+        List<Integer> userIds = new ArrayList<>();
+        for (HasRelations parent : parents) {
+            Item item = (Item) parent;
+            userIds.add(path.equals("owner") ? item.getOwnerId() : item.getHolderId());
+        }
+        Map<Integer, User> users = new HashMap<>();
+        if (!userIds.isEmpty()) {
+            for (User user : gateway.get(new ArrayList<>(new LinkedHashSet<>(userIds)), User.class)) {
+                users.put(user.getKey(), user);
+            }
+        }
+        Map<Integer, List<HasRelations>> related = new LinkedHashMap<>();
+        for (int i = 0; i < parents.size(); i++) {
+            List<HasRelations> user = new ArrayList<>();
+            if (users.containsKey(userIds.get(i))) user.add(users.get(userIds.get(i)));
+            related.put(parents.get(i).getKey(), user);
+        }
+        return related;
     }
 
     /**
@@ -505,9 +531,30 @@ public class ItemFetcher extends AbstractFetcher {
      * @throws IOException An IOException
      */
     private User getOwner(int userId) throws IOException {
-        List<User> users = gateway.get(new ArrayList<>(Collections.singletonList(userId)), User.class);
-        if (!users.isEmpty()) return users.get(0);
-        return null;
+        return gateway.get(userId, User.class);
+    }
+
+    /**
+     * Get the owners of the items the query is filtered from, reading them all in one call the first time
+     *
+     * @param context the context of the query, which keeps the owners for the other filters
+     * @return a map with the user id as key and the user as value
+     * @throws IOException An IOException
+     */
+    private Map<Integer, User> getOwners(ItemQueryContext context) throws IOException {
+        if (context.owners != null) return context.owners;
+        Set<Integer> ownerIds = new LinkedHashSet<>();
+        for (Item item : context.getResults()) {
+            ownerIds.add(item.getOwnerId());
+        }
+        Map<Integer, User> owners = new HashMap<>();
+        if (!ownerIds.isEmpty()) {
+            for (User user : gateway.get(new ArrayList<>(ownerIds), User.class)) {
+                owners.put(user.getKey(), user);
+            }
+        }
+        context.owners = owners;
+        return owners;
     }
 
     /**
@@ -515,11 +562,11 @@ public class ItemFetcher extends AbstractFetcher {
      *
      * @param userId id of user
      * @return Wishlist Object whose userId is userId
+     * @throws IOException An IOException
      */
-    private WishList getWishlistOf(Integer userId) {
-        for (WishList wishList : this.wishList) {
-            if (wishList.getOwnerId() == userId) return wishList;
-        }
+    private WishList getWishlistOf(Integer userId) throws IOException {
+        List<WishList> wishLists = gateway.findBy("ownerId", userId, WishList.class);
+        if (!wishLists.isEmpty()) return wishLists.get(0);
         return null;
     }
 
@@ -2,8 +2,10 @@ package usecases.items;
 
 import entities.Item;
 import usecases.query.AbstractQueryBuilder;
+import usecases.query.Aggregate;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -339,6 +341,24 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
         return this;
     }
 
+/********************************************************************************************************
+ *
+ * Include paths
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Allows the client to read the related entities of each path along with the items, all in one pass, for getAggregate.
+     * The paths are "tags", "owner" and "holder".
+     *
+     * @param paths Include paths
+     * @return An instance of this class.
+     */
+    public ItemQueryBuilder with(String... paths) {
+        this.includes.addAll(Arrays.asList(paths));
+        return this;
+    }
+
 /********************************************************************************************************
  *
  * All the ways we can retrieve the results
@@ -377,6 +397,17 @@ public class ItemQueryBuilder extends AbstractQueryBuilder {
     }
 
 
+    /**
+     * Retrieves the Item objects satisfying the query conditions, with the related entities of the include paths.
+     *
+     * @return An aggregate of the Item objects and their related entities.
+     * @throws IOException IOException
+     */
+    public Aggregate<Item> getAggregate() throws IOException {
+        return this.fetcher.fetchAggregate(this);
+    }
+
+
     /**
      * Retrieves the name of the first item satisfying the query conditions.
      *
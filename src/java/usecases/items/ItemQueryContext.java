@@ -0,0 +1,29 @@
+package usecases.items;
+
+import entities.Item;
+import entities.User;
+import usecases.query.QueryContext;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The context of one item query, which also holds what its filters read for all of the items.
+ */
+class ItemQueryContext extends QueryContext<Item> {
+
+    /**
+     * The owners of the items the query is filtered from, read the first time a filter needs them.
+     */
+    Map<Integer, User> owners = null;
+
+    /**
+     * Initializes this class.
+     *
+     * @param source The items the query is filtered from
+     */
+    ItemQueryContext(List<Item> source) {
+        super(source);
+    }
+
+}
@@ -2,6 +2,7 @@ package usecases.meeting;
 
 import entities.Meeting;
 import persistence.PersistenceInterface;
+import persistence.UnitOfWork;
 import persistence.exceptions.PersistenceException;
 import usecases.meeting.exceptions.TooManyLocationsException;
 import usecases.meeting.exceptions.TooManyTimesException;
@@ -52,15 +53,17 @@ public class MeetingFactory {
 
 
     /**
-     * To get the ids of the instantiated meetings, then the MeetingFactory resets.
+     * To get the ids of the instantiated meetings, which are added to a unit of work instead of saved right away,
+     * then the MeetingFactory resets.
      *
+     * @param unit the unit of work to add the meetings to
      * @return a list of ids of created meetings
      * @throws IOException          if there is an IO error
      * @throws PersistenceException if there is an exception thrown during persisting to database.
      */
-    public List<Integer> getMeetingId() throws IOException, PersistenceException {
+    public List<Integer> getMeetingId(UnitOfWork unit) throws IOException, PersistenceException {
         List<Integer> ids = new ArrayList<>();
-        for (Meeting meeting : init()) {
+        for (Meeting meeting : unit.create(build(), Meeting.class)) {
             ids.add(meeting.getKey());
         }
         reset();
@@ -188,6 +191,17 @@ public class MeetingFactory {
      * @throws IOException An IOException
      */
     private List<Meeting> init() throws IOException {
+        return gateway.create(build(), Meeting.class);
+    }
+
+
+    /**
+     * A private method used as helper function, which builds meetings according
+     * to the attributes stored in the Meeting factory, without saving them.
+     *
+     * @return a list of meeting
+     */
+    private List<Meeting> build() {
         List<Meeting> arr = new ArrayList<>();
         Meeting firstMeeting = new Meeting(this.timeArray.get(0), this.locationArray.get(0),
                 this.currentSuggestionMaker);
@@ -200,7 +214,7 @@ public class MeetingFactory {
             secondMeeting.setSecondMeeting(true);
             arr.add(secondMeeting);
         }
-        return gateway.create(arr, Meeting.class);
+        return arr;
     }
 
 
@@ -4,6 +4,7 @@ import entities.Meeting;
 import entities.Trade;
 import entities.Transaction;
 import persistence.PersistenceInterface;
+import persistence.exceptions.VersionConflictException;
 import persistence.relations.MapsRelations;
 import usecases.config.ListensForConfig;
 import usecases.meeting.exceptions.EditAgreedMeetingException;
@@ -36,6 +37,11 @@ public class MeetingManager implements ListensForConfig {
      */
     private int editThreshold; // set by configManager, see updateConfig
 
+    /**
+     * The number of times an edit is tried before giving up, when the meeting keeps being changed by someone else
+     */
+    private static final int MAX_EDIT_ATTEMPTS = 3;
+
 
     /**
      * To create an instance of MeetingManager
@@ -85,6 +91,20 @@ public class MeetingManager implements ListensForConfig {
     public boolean editMeeting(int userId, int meetingId, String location, LocalDate time) throws
             MeetingException, IOException {
 
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return this.tryEditMeeting(userId, meetingId, location, time);
+            } catch (VersionConflictException e) {
+                // The other user edited the meeting since we read it, so we read it again and redo the checks
+                if (attempt == MAX_EDIT_ATTEMPTS) throw e;
+            }
+        }
+    }
+
+
+    private boolean tryEditMeeting(int userId, int meetingId, String location, LocalDate time) throws
+            MeetingException, IOException {
+
         Meeting meeting = this.getMeeting(meetingId);
 
         // To check if the user has reached the edit limits
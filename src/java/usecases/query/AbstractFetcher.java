@@ -1,119 +1,137 @@
 package usecases.query;
 
+import persistence.relations.HasRelations;
+
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Predicate;
 
 /**
  * Abstract Class of Fetcher: executes a Abstract Query and returns the results in the specified format of the query.
  * Can execute a number of pre-defined filters, such as whether the item is approve or not etc.
+ * The filters of a query are compiled into one predicate, which is run over the entities in one pass.
  * Can return a list of objects.
+ * <p>
+ * A fetcher keeps nothing about the queries it runs: everything a query reads is kept in its QueryContext,
+ * which is kept with the query builder. So one fetcher can run any number of queries at once, from any thread.
+ *
+ * @param <T> The type of entity that is fetched
+ * @param <C> The type of context the queries of this fetcher are run in
  */
-abstract public class AbstractFetcher {
+abstract public class AbstractFetcher<T extends HasRelations, C extends QueryContext<T>> {
 
     /**
      * Run the fetcher.
      *
      * @param query An AbstractQueryBuilder class that holds the query
+     * @return The context the query was run in, which holds its results
      * @throws IOException An IOException
      */
-    protected void fetch(AbstractQueryBuilder query) throws IOException {
-        //Only fetch once
-        if (!query.hasBeenFetched()) {
-            this.reset();
-            this.all();
-            //Then we run filter methods
-            try {
-                this.filterBoolean(query);
-                this.filterInteger(query);
-                this.filterList(query);
-            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                e.printStackTrace();
-                //We do nothing if there's no such filter.
+    @SuppressWarnings("unchecked")
+    protected C fetch(AbstractQueryBuilder query) throws IOException {
+        synchronized (query) {
+            //Only fetch once
+            if (!query.hasBeenFetched()) {
+                C context = this.all(query);
+                //Then we run every filter at once
+                context.retain(query.compile(this, context));
+                query.setContext(context);
+                query.setFetched(true);
             }
-            query.setFetched(true);
+            return (C) query.getContext();
         }
     }
 
     /**
-     * A method that resets the filter and the query.
+     * Reads the related entities of every include path of the query, and returns them with the entities the query returned.
+     * Each path is read once, in one pass per step of the path, after the step before it: "trades.items" reads
+     * the trades of every entity, then the items of every one of those trades.
      *
+     * @param roots The entities the query returned
+     * @param query An AbstractQueryBuilder class that holds the include paths
+     * @return An aggregate of the entities and their related entities
      * @throws IOException An IOException
      */
-    abstract protected void reset();
+    protected Aggregate<T> resolve(List<T> roots, AbstractQueryBuilder query) throws IOException {
+
+        //Every step of every path, with the shorter paths first, so that the parents of a path are read before it
+        Set<String> paths = new TreeSet<>(Comparator.comparingInt((String path) -> path.split("\\.").length)
+                .thenComparing(Comparator.naturalOrder()));
+        for (String include : query.getIncludes()) {
+            for (int dot = include.indexOf('.'); dot >= 0; dot = include.indexOf('.', dot + 1)) {
+                paths.add(include.substring(0, dot));
+            }
+            paths.add(include);
+        }
+
+        Aggregate<T> aggregate = new Aggregate<>(roots);
+        for (String path : paths) {
+            aggregate.put(path, this.include(path, aggregate.parentsOf(path)));
+        }
+        return aggregate;
+
+    }
+
+    /**
+     * A method that reads the related entities of one include path for all of their parents at once.
+     *
+     * @param path    The include path, for example "trades.items"
+     * @param parents The entities one step up the path, for example the trades
+     * @return A map with the key of each parent as key and its related entities as value
+     * @throws IOException              An IOException
+     * @throws IllegalArgumentException If this fetcher does not know the path
+     */
+    abstract protected Map<Integer, List<HasRelations>> include(String path, List<HasRelations> parents) throws IOException;
 
     /**
-     * A method that returns all of the instances of the type that we are fetching
+     * A method that reads the instances of the type that the query will be filtered from, into a new context for the query.
+     * Reads all of them, unless the fetcher can narrow them down for this query, for example through an index.
      *
+     * @param query An AbstractQueryBuilder class that holds the query
+     * @return A new context, holding the instances
      * @throws IOException An IOException
      */
-    abstract protected void all() throws IOException;
+    abstract protected C all(AbstractQueryBuilder query) throws IOException;
 
 
 /********************************************************************************************************
  *
- * Methods that decide which filters to run
+ * Methods that run the filters
  *
  *********************************************************************************************************/
 
     /**
-     * Runs boolean filters.
+     * A method that returns the predicate of one filter of a query. Anything it needs to read,
+     * such as the owners of the items, is read here for all of the entities at once, so that the predicate does not read.
+     * What is read can be kept in the context, for the other filters of the query.
      *
-     * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
-     */
-    protected void filterBoolean(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-
-        for (Map.Entry<String, Boolean> entry : query.getBooleanFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey()).invoke(this);
-            }
-        }
-
-    }
-
-
-    /**
-     * Runs integer filters.
-     *
-     * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
+     * @param name    The name of the filter
+     * @param value   The value of the filter, which is true for a boolean filter
+     * @param context The context of the query, holding the entities it is filtered from
+     * @return The predicate, or null if there is no such filter
+     * @throws IOException An IOException
      */
-    protected void filterInteger(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    abstract protected Predicate<T> filter(String name, Object value, C context) throws IOException;
 
-        for (Map.Entry<String, Integer> entry : query.getIntegerFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey(), Integer.class).invoke(this, entry.getValue());
-            }
-        }
-
-    }
 
+/********************************************************************************************************
+ *
+ * Helper Methods
+ *
+ *********************************************************************************************************/
 
     /**
-     * Runs list filters.
+     * Widens the related entities of a relation, so they can be kept in an Aggregate.
      *
-     * @param query AbstractQueryBuilder
-     * @throws NoSuchMethodException     If there isn't a method with the name
-     * @throws IllegalAccessException    If there's an illegal access exception during the invocation of the filter.
-     * @throws InvocationTargetException If there's an exception thrown during invocation of the method.
+     * @param related A map with the key of each parent as key and its related entities as value
+     * @return The same map, with the related entities as HasRelations
      */
-    protected void filterList(AbstractQueryBuilder query)
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-
-        for (Map.Entry<String, List<String>> entry : query.getListFilters().entrySet()) {
-            if (entry.getValue() != null) {
-                this.getClass().getDeclaredMethod(entry.getKey(), List.class).invoke(this, entry.getValue());
-            }
+    protected Map<Integer, List<HasRelations>> widen(Map<Integer, ? extends List<? extends HasRelations>> related) {
+        Map<Integer, List<HasRelations>> widened = new LinkedHashMap<>();
+        for (Map.Entry<Integer, ? extends List<? extends HasRelations>> entry : related.entrySet()) {
+            widened.put(entry.getKey(), new ArrayList<>(entry.getValue()));
         }
-
+        return widened;
     }
 
 
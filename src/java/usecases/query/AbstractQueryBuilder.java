@@ -1,9 +1,14 @@
 package usecases.query;
 
+import persistence.relations.HasRelations;
+
+import java.io.IOException;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 abstract public class AbstractQueryBuilder {
 
@@ -27,11 +32,21 @@ abstract public class AbstractQueryBuilder {
      */
     protected final Map<String, LocalDate> dateFilters = new HashMap<String, LocalDate>();
 
+    /**
+     * Holds the include paths of the related entities to read along with the result, such as "trades.items"
+     */
+    protected final List<String> includes = new ArrayList<String>();
+
     /**
      * Holds whether this ItemQuery has been fetched or not.
      */
     protected boolean fetched = false;
 
+    /**
+     * Holds what the fetcher read and worked out for this query, including its results, once it has been fetched.
+     */
+    private QueryContext<?> context = null;
+
 /********************************************************************************************************
  *
  * Getter and setter methods.
@@ -65,6 +80,42 @@ abstract public class AbstractQueryBuilder {
         return this.listFilters;
     }
 
+    /**
+     * Returns the set of available date filters.
+     *
+     * @return The set of available date filters.
+     */
+    protected Map<String, LocalDate> getDateFilters() {
+        return this.dateFilters;
+    }
+
+    /**
+     * Returns the include paths of the related entities to read along with the result.
+     *
+     * @return The include paths, in the order they were added.
+     */
+    protected List<String> getIncludes() {
+        return this.includes;
+    }
+
+    /**
+     * Returns the context this query was fetched in.
+     *
+     * @return The context, or null if this query has not been fetched.
+     */
+    protected QueryContext<?> getContext() {
+        return this.context;
+    }
+
+    /**
+     * Sets the context this query was fetched in.
+     *
+     * @param context The context, holding the results of this query.
+     */
+    protected void setContext(QueryContext<?> context) {
+        this.context = context;
+    }
+
     /**
      * Checks if this query has been fetched already. Each query can only be fetched once.
      *
@@ -83,4 +134,44 @@ abstract public class AbstractQueryBuilder {
         this.fetched = fetched;
     }
 
+    /**
+     * Compiles the filters that are set into one predicate, with the boolean filters first, then the integer filters,
+     * then the list filters, then the date filters. An entity passes if it passes every filter, and the later filters are not run once one fails.
+     * Filters that the fetcher does not have are skipped.
+     *
+     * @param fetcher The fetcher that has the filters
+     * @param context The context the query is fetched in
+     * @param <T>     The type of entity that is fetched
+     * @param <C>     The type of context the query is fetched in
+     * @return The filters, as one predicate
+     * @throws IOException An IOException
+     */
+    protected <T extends HasRelations, C extends QueryContext<T>> Predicate<T> compile(AbstractFetcher<T, C> fetcher, C context)
+            throws IOException {
+        List<Predicate<T>> filters = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : this.getBooleanFilters().entrySet()) {
+            if (entry.getValue() != null) filters.add(fetcher.filter(entry.getKey(), entry.getValue(), context));
+        }
+        for (Map.Entry<String, Integer> entry : this.getIntegerFilters().entrySet()) {
+            if (entry.getValue() != null) filters.add(fetcher.filter(entry.getKey(), entry.getValue(), context));
+        }
+        for (Map.Entry<String, List<String>> entry : this.getListFilters().entrySet()) {
+            if (entry.getValue() != null) filters.add(fetcher.filter(entry.getKey(), entry.getValue(), context));
+        }
+        for (Map.Entry<String, LocalDate> entry : this.getDateFilters().entrySet()) {
+            if (entry.getValue() != null) filters.add(fetcher.filter(entry.getKey(), entry.getValue(), context));
+        }
+        //We do nothing if there's no such filter
+        filters.removeIf(filter -> filter == null);
+
+        @SuppressWarnings("unchecked")
+        Predicate<T>[] pipeline = (Predicate<T>[]) filters.toArray(new Predicate<?>[0]);
+        return entity -> {
+            for (Predicate<T> filter : pipeline) {
+                if (!filter.test(entity)) return false;
+            }
+            return true;
+        };
+    }
+
 }
@@ -0,0 +1,140 @@
+package usecases.query;
+
+import persistence.relations.HasRelations;
+
+import java.util.*;
+
+/**
+ * The result of a query together with the related entities it asked for with include paths,
+ * for example query().with("trades.items", "meetings").getAggregate().
+ * <p>
+ * Every entity is already read, so nothing here reads from the gateway.
+ * The related entities of a path are kept by the key of the entity one step up the path:
+ * "trades" by transaction id, and "trades.items" by trade id.
+ *
+ * @param <T> The type of entity the query returns
+ */
+public class Aggregate<T extends HasRelations> {
+
+    /**
+     * The entities the query returned.
+     */
+    private final List<T> roots;
+
+    /**
+     * The related entities of each include path.
+     * "Include Path": {parent key: [related entities]}
+     */
+    private final Map<String, Map<Integer, List<HasRelations>>> related = new LinkedHashMap<>();
+
+    /**
+     * Initializes this class.
+     *
+     * @param roots The entities the query returned
+     */
+    Aggregate(List<T> roots) {
+        this.roots = roots;
+    }
+
+
+    /**
+     * Returns the entities the query returned.
+     *
+     * @return A list of entities
+     */
+    public List<T> getRoots() {
+        return this.roots;
+    }
+
+    /**
+     * Returns the related entities of an include path, by the key of the entity one step up the path.
+     *
+     * @param path The include path, for example "trades.items"
+     * @param type The type of the related entities
+     * @param <R>  The type of the related entities
+     * @return A map with the parent key as key and its related entities as value
+     */
+    public <R extends HasRelations> Map<Integer, List<R>> getRelated(String path, Class<R> type) {
+        Map<Integer, List<R>> result = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<HasRelations>> entry : this.relatedOf(path).entrySet()) {
+            List<R> entities = new ArrayList<>();
+            for (HasRelations entity : entry.getValue()) {
+                entities.add(type.cast(entity));
+            }
+            result.put(entry.getKey(), entities);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the related entity of an include path that has at most one per parent, such as "trades.borrower".
+     *
+     * @param path The include path
+     * @param type The type of the related entity
+     * @param <R>  The type of the related entity
+     * @return A map with the parent key as key and its related entity, or null, as value
+     */
+    public <R extends HasRelations> Map<Integer, R> getSingle(String path, Class<R> type) {
+        Map<Integer, R> result = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<HasRelations>> entry : this.relatedOf(path).entrySet()) {
+            result.put(entry.getKey(), entry.getValue().isEmpty() ? null : type.cast(entry.getValue().get(0)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns every related entity of an include path once, in the order they were found.
+     *
+     * @param path The include path
+     * @param type The type of the related entities
+     * @param <R>  The type of the related entities
+     * @return A list of related entities
+     */
+    public <R extends HasRelations> List<R> getAll(String path, Class<R> type) {
+        List<R> result = new ArrayList<>();
+        for (HasRelations entity : this.flatten(path)) {
+            result.add(type.cast(entity));
+        }
+        return result;
+    }
+
+
+/********************************************************************************************************
+ *
+ * Helper Methods
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Sets the related entities of an include path.
+     */
+    void put(String path, Map<Integer, List<HasRelations>> related) {
+        this.related.put(path, related);
+    }
+
+    /**
+     * Returns the entities one step up an include path, once each: the roots for "trades", the trades for "trades.items".
+     */
+    List<HasRelations> parentsOf(String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot < 0) return new ArrayList<>(this.roots);
+        return this.flatten(path.substring(0, dot));
+    }
+
+    private List<HasRelations> flatten(String path) {
+        Map<Integer, HasRelations> entities = new LinkedHashMap<>();
+        for (List<HasRelations> related : this.relatedOf(path).values()) {
+            for (HasRelations entity : related) {
+                if (entity != null) entities.putIfAbsent(entity.getKey(), entity);
+            }
+        }
+        return new ArrayList<>(entities.values());
+    }
+
+    private Map<Integer, List<HasRelations>> relatedOf(String path) {
+        Map<Integer, List<HasRelations>> related = this.related.get(path);
+        if (related == null) throw new IllegalArgumentException(path + " was not included in the query");
+        return related;
+    }
+
+}
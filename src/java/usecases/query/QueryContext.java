@@ -0,0 +1,52 @@
+package usecases.query;
+
+import persistence.relations.HasRelations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Holds everything one query reads and works out while it is fetched: the entities it is filtered from,
+ * which become its results, and whatever its filters read once for all of them.
+ * Each query builder gets its own, so fetchers keep no state of their own and one fetcher can run any number
+ * of queries at once. Fetchers whose filters read more extend this class with fields of their own.
+ *
+ * @param <T> The type of entity that is fetched
+ */
+public class QueryContext<T extends HasRelations> {
+
+    /**
+     * The entities the query is filtered from, and once it is filtered, its results.
+     */
+    private final List<T> results;
+
+    /**
+     * Initializes this class.
+     *
+     * @param source The entities the query is filtered from
+     */
+    public QueryContext(List<T> source) {
+        this.results = new ArrayList<>(source);
+    }
+
+
+    /**
+     * Returns the entities the query is filtered from, or once it has been fetched, its results.
+     *
+     * @return A list of entities
+     */
+    public List<T> getResults() {
+        return this.results;
+    }
+
+    /**
+     * Keeps only the entities that pass the filters of the query, in one pass.
+     *
+     * @param pipeline The filters of the query, compiled into one predicate
+     */
+    void retain(Predicate<T> pipeline) {
+        this.results.removeIf(pipeline.negate());
+    }
+
+}
@@ -2,6 +2,7 @@ package usecases.tags;
 
 import entities.Item;
 import entities.Tag;
+import persistence.Cursor;
 import persistence.PersistenceInterface;
 import persistence.relations.MapsRelations;
 
@@ -69,11 +70,12 @@ public class TagManager {
      * @throws IOException An IOException
      */
     public Map<Integer, List<Tag>> getItemTagMap() throws IOException {
-        List<Item> items = gateway.all(Item.class);
         Map<Integer, List<Tag>> result = new HashMap<>();
-        for (Item item : items) {
-            List<Tag> tags = item.relation(this.relationalMapper, "tags", Tag.class);
-            result.put(item.getKey(), tags);
+        try (Cursor<Item> items = gateway.stream(Item.class)) {
+            for (Item item : items) {
+                List<Tag> tags = item.relation(this.relationalMapper, "tags", Tag.class);
+                result.put(item.getKey(), tags);
+            }
         }
         return result;
     }
@@ -2,6 +2,7 @@ package usecases.trade;
 
 import entities.Trade;
 import persistence.PersistenceInterface;
+import persistence.UnitOfWork;
 import persistence.exceptions.PersistenceException;
 import usecases.trade.exceptions.TooManyItemListsException;
 
@@ -62,15 +63,17 @@ public class TradeFactory {
 
 
     /**
-     * To get the ids of the instantiated trades, then the TradeFactory resets.
+     * To get the ids of the instantiated trades, which are added to a unit of work instead of saved right away,
+     * then the TradeFactory resets.
      *
+     * @param unit the unit of work to add the trades to
      * @return a list of ids of created trades
      * @throws IOException          if there is an IO error
      * @throws PersistenceException if there is an exception thrown during persisting to database.
      */
-    public List<Integer> getTradeId() throws IOException, PersistenceException {
+    public List<Integer> getTradeId(UnitOfWork unit) throws IOException, PersistenceException {
         List<Integer> ids = new ArrayList<>();
-        for (Trade trade : init()) {
+        for (Trade trade : unit.create(build(), Trade.class)) {
             ids.add(trade.getTradeId());
         }
         reset();
@@ -190,6 +193,16 @@ public class TradeFactory {
      * @throws IOException An IOException
      */
     private List<Trade> init() throws IOException {
+        return gateway.create(build(), Trade.class);
+    }
+
+    /**
+     * A private method used as helper function, which builds trades according to the attributes stored in the trade
+     * factory, without saving them.
+     *
+     * @return list of trades
+     */
+    private List<Trade> build() {
         List<Trade> arr = new ArrayList<>();
         Trade firstTrade = new Trade(lenderId, borrowerId, items.get(0));
         firstTrade.setSell(this.sell);
@@ -198,7 +211,7 @@ public class TradeFactory {
             Trade secondTrade = new Trade(borrowerId, lenderId, items.get(1));
             arr.add(secondTrade);
         }
-        return gateway.create(arr, Trade.class);
+        return arr;
     }
 
 }
@@ -2,24 +2,28 @@ package usecases.trade;
 
 import entities.*;
 import persistence.PersistenceInterface;
+import persistence.relations.HasRelations;
 import persistence.relations.MapsRelations;
 import usecases.query.AbstractFetcher;
+import usecases.query.AbstractQueryBuilder;
+import usecases.query.Aggregate;
 
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Predicate;
 
-public class TransactionFetcher extends AbstractFetcher {
+public class TransactionFetcher extends AbstractFetcher<Transaction, TransactionQueryContext> {
 
     /**
      * Class dependencies
      */
-    PersistenceInterface gateway;
+    private final PersistenceInterface gateway;
 
     /**
      * A concrete instance of relation mapper.
      */
-    MapsRelations relationMapper;
+    private final MapsRelations relationMapper;
 
     /**
      * Initializes this class.
@@ -71,8 +75,19 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Transaction> getTransactions(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        return this.currentList;
+        return this.fetch(query).getResults();
+    }
+
+    /**
+     * Returns the transactions together with the related entities of the include paths of the query.
+     * The paths are "trades", "meetings", "trades.items", "trades.borrower" and "trades.lender".
+     *
+     * @param query TransactionQueryBuilder
+     * @return An aggregate of the transactions and their related entities
+     * @throws IOException IOException
+     */
+    public Aggregate<Transaction> getAggregate(TransactionQueryBuilder query) throws IOException {
+        return this.resolve(this.fetch(query).getResults(), query);
     }
 
     /**
@@ -83,12 +98,8 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Meeting>> getMeetings(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Meeting>> meetings = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            meetings.put(transaction.getKey(), transaction.relation(relationMapper, "meetings", Meeting.class));
-        }
-        return meetings;
+        List<Transaction> transactions = this.fetch(query).getResults();
+        return new HashMap<>(relationMapper.getAll("meetings", transactions, Meeting.class));
     }
 
     /**
@@ -99,10 +110,10 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Meeting> getMeetingsList(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
+        List<Transaction> transactions = this.fetch(query).getResults();
         List<Meeting> meetings = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            meetings.addAll(transaction.relation(relationMapper, "meetings", Meeting.class));
+        for (List<Meeting> transactionMeetings : relationMapper.getAll("meetings", transactions, Meeting.class).values()) {
+            meetings.addAll(transactionMeetings);
         }
         return meetings;
     }
@@ -115,12 +126,8 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Trade>> getTrades(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Trade>> trades = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            trades.put(transaction.getKey(), transaction.relation(relationMapper, "trades", Trade.class));
-        }
-        return trades;
+        List<Transaction> transactions = this.fetch(query).getResults();
+        return new HashMap<>(relationMapper.getAll("trades", transactions, Trade.class));
     }
 
     /**
@@ -131,12 +138,8 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public List<Trade> getTradesList(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        List<Trade> trades = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            trades.addAll(transaction.relation(relationMapper, "trades", Trade.class));
-        }
-        return trades;
+        List<Transaction> transactions = this.fetch(query).getResults();
+        return this.tradesOf(transactions);
     }
 
     /**
@@ -147,14 +150,16 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, User> getBorrowers(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
+        List<Transaction> transactions = this.fetch(query).getResults();
+        List<Trade> trades = this.tradesOf(transactions);
+        List<Integer> borrowerIds = new ArrayList<>();
+        for (Trade trade : trades) {
+            borrowerIds.add(trade.getBorrowerId());
+        }
+        Map<Integer, User> borrowers = this.usersByKey(borrowerIds);
         Map<Integer, User> users = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                User user = gateway.get(trade.getBorrowerId(), User.class);
-                users.put(trade.getKey(), user);
-            }
+        for (Trade trade : trades) {
+            users.put(trade.getKey(), borrowers.get(trade.getBorrowerId()));
         }
         return users;
     }
@@ -183,14 +188,16 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, User> getLenders(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
+        List<Transaction> transactions = this.fetch(query).getResults();
+        List<Trade> trades = this.tradesOf(transactions);
+        List<Integer> lenderIds = new ArrayList<>();
+        for (Trade trade : trades) {
+            lenderIds.add(trade.getLenderId());
+        }
+        Map<Integer, User> lenders = this.usersByKey(lenderIds);
         Map<Integer, User> users = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                User user = gateway.get(trade.getLenderId(), User.class);
-                users.put(trade.getKey(), user);
-            }
+        for (Trade trade : trades) {
+            users.put(trade.getKey(), lenders.get(trade.getLenderId()));
         }
         return users;
     }
@@ -219,15 +226,52 @@ public class TransactionFetcher extends AbstractFetcher {
      * @throws IOException IOException
      */
     public Map<Integer, List<Item>> getItems(TransactionQueryBuilder query) throws IOException {
-        this.fetch(query);
-        Map<Integer, List<Item>> items = new HashMap<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            for (Trade trade : trades) {
-                items.put(trade.getKey(), trade.relation(relationMapper, "items", Item.class));
-            }
+        List<Transaction> transactions = this.fetch(query).getResults();
+        return new HashMap<>(relationMapper.getAll("items", this.tradesOf(transactions), Item.class));
+    }
+
+
+/********************************************************************************************************
+ *
+ * The filters, compiled into one pipeline
+ *
+ *********************************************************************************************************/
+
+    /**
+     * Returns the predicate of a filter of the query, for AbstractQueryBuilder.compile.
+     *
+     * @param name    The name of the filter
+     * @param value   The value of the filter, or true for a boolean filter
+     * @param context The context of the query
+     * @return The predicate, or null if there is no such filter
+     * @throws IOException IOException
+     */
+    @Override
+    protected Predicate<Transaction> filter(String name, Object value, TransactionQueryContext context) throws IOException {
+        switch (name) {
+            case "findById":
+                return this.findById((Integer) value);
+            case "involvesUser":
+                return this.involvesUser((Integer) value, context);
+            case "involvesItem":
+                return this.involvesItem((Integer) value, context);
+            case "involvesUserAsBorrower":
+                return this.involvesUserAsBorrower((Integer) value, context);
+            case "involvesUserAsLender":
+                return this.involvesUserAsLender((Integer) value, context);
+            case "onGoing":
+                return this.onGoing(context);
+            case "isComplete":
+                return this.isComplete(context);
+            case "isIncomplete":
+                return this.isIncomplete(context);
+            case "isExpected":
+                return this.isExpected(context);
+            case "after":
+                return this.after((LocalDate) value, context);
+            default:
+                return null;
         }
-        return items;
     }
 
 
@@ -242,82 +286,61 @@ public class TransactionFetcher extends AbstractFetcher {
      *
      * @param transactionId unique id of transactions
      */
-    public void findById(Integer transactionId) {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            if (transaction.getKey() == transactionId) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> findById(Integer transactionId) {
+        return transaction -> transaction.getKey() == transactionId;
     }
 
     /**
      * Filter transactions by userId
      *
-     * @param userId id of user
+     * @param userId  id of user
+     * @param context The context of the query
      * @throws IOException IOException
      */
-    public void involvesUser(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUser(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> involvesUser(Integer userId, TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        return transaction -> this.tradesInvolvesUser(trades.get(transaction.getKey()), userId);
     }
 
     /**
      * Filter transactions by what items it involves
      *
-     * @param itemId id of item
+     * @param itemId  id of item
+     * @param context The context of the query
      * @throws IOException IOException.
      */
-    public void involvesItem(Integer itemId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            boolean involves = false;
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            for (Trade trade: trades) {
-                List<Item> items = trade.relation(this.relationMapper, "items", Item.class);
-                for (Item item : items) {
-                    if (item.getKey() == itemId) {
-                        involves = true;
-                        break;
-                    }
-                }
+    private Predicate<Transaction> involvesItem(Integer itemId, TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        return transaction -> {
+            for (Trade trade : trades.get(transaction.getKey())) {
+                if (trade.getDefinedRelations().get("items").contains(itemId)) return true;
             }
-            if(involves) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+            return false;
+        };
     }
 
     /**
      * Filters based on whether the user is a borrower.
      *
-     * @param userId id of user
+     * @param userId  id of user
+     * @param context The context of the query
      * @throws IOException IOException
      */
-    public void involvesUserAsBorrower(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUserAsBorrower(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> involvesUserAsBorrower(Integer userId, TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        return transaction -> this.tradesInvolvesUserAsBorrower(trades.get(transaction.getKey()), userId);
     }
 
     /**
      * Filters based on whether the user is a lender.
      *
-     * @param userId id of user
+     * @param userId  id of user
+     * @param context The context of the query
      * @throws IOException IOException
      */
-    public void involvesUserAsLender(Integer userId) throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(this.relationMapper, "trades", Trade.class);
-            if (this.tradesInvolvesUserAsLender(trades, userId)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> involvesUserAsLender(Integer userId, TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        return transaction -> this.tradesInvolvesUserAsLender(trades.get(transaction.getKey()), userId);
     }
 
 
@@ -330,64 +353,52 @@ public class TransactionFetcher extends AbstractFetcher {
     /**
      * Filters only ongoing transactions
      *
+     * @param context The context of the query
      * @throws IOException IOException
      */
-    public void onGoing() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Meeting> meetings = transaction.relation(this.relationMapper, "meetings", Meeting.class);
-            Meeting lastMeeting = this.getLastMeeting(meetings);
-            if (!lastMeeting.hasPassed()) {
-                filtered.add(transaction);
-            }
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> onGoing(TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Meeting>> meetings = this.getMeetingsOfAll(context);
+        return transaction -> this.onGoing(meetings.get(transaction.getKey()));
     }
 
     /**
      * Filters only completed transactions
      *
+     * @param context The context of the query
      * @throws IOException IOException
      */
-    public void isComplete() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if (this.tradesComplete(trades) && this.meetingsComplete(meetings)) filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> isComplete(TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        Map<Integer, List<Meeting>> meetings = this.getMeetingsOfAll(context);
+        return transaction -> this.tradesComplete(trades.get(transaction.getKey()))
+                && this.meetingsComplete(meetings.get(transaction.getKey()));
     }
 
     /**
      * Filters transactions that are not completed
      *
+     * @param context The context of the query
      * @throws IOException
      */
-    public void isIncomplete() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Trade> trades = transaction.relation(relationMapper, "trades", Trade.class);
-            List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if ((!this.tradesComplete(trades) | !this.meetingsComplete(meetings)) && !onGoing(transaction))
-                filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> isIncomplete(TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Trade>> trades = this.getTradesOfAll(context);
+        Map<Integer, List<Meeting>> meetings = this.getMeetingsOfAll(context);
+        return transaction -> {
+            List<Meeting> transactionMeetings = meetings.get(transaction.getKey());
+            return (!this.tradesComplete(trades.get(transaction.getKey())) | !this.meetingsComplete(transactionMeetings))
+                    && !this.onGoing(transactionMeetings);
+        };
     }
 
     /**
      * Filters transactions that are expected to take place, but not yet so
      *
+     * @param context The context of the query
      * @throws IOException
      */
-    public void isExpected() throws IOException {
-        List<Transaction> filtered = new ArrayList<>();
-        for (Transaction transaction : this.currentList) {
-            List<Meeting> meetings = transaction.relation(relationMapper, "meetings", Meeting.class);
-            if ((this.meetingAgree(meetings)))
-                filtered.add(transaction);
-        }
-        this.currentList = filtered;
+    private Predicate<Transaction> isExpected(TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Meeting>> meetings = this.getMeetingsOfAll(context);
+        return transaction -> this.meetingAgree(meetings.get(transaction.getKey()));
     }
 
 
@@ -399,22 +410,13 @@ public class TransactionFetcher extends AbstractFetcher {
 
     /**
      * Filters the transactions which is expected to take place after the given date
-     * @param date a date to compare to the date of the first meeting in a transaction
+     * @param date    a date to compare to the date of the first meeting in a transaction
+     * @param context The context of the query
+     * @throws IOException IOException
      */
-    public void after(LocalDate date) {
-        List<Transaction> filtered = new ArrayList<>();
-
-        try {
-            for (Transaction transaction : this.currentList) {
-                List<Meeting> meetings = gateway.get(transaction.getMeetingList(), Meeting.class);
-                if (getFirstMeeting(meetings).getTime().isAfter(date)) filtered.add(transaction);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-
-        this.currentList = filtered;
+    private Predicate<Transaction> after(LocalDate date, TransactionQueryContext context) throws IOException {
+        Map<Integer, List<Meeting>> meetings = this.getMeetingsOfAll(context);
+        return transaction -> this.getFirstMeeting(meetings.get(transaction.getKey())).getTime().isAfter(date);
     }
 
 
@@ -424,6 +426,86 @@ public class TransactionFetcher extends AbstractFetcher {
      *
      *********************************************************************************************************/
 
+    /**
+     * Reads the related entities of one include path for all of their parents at once
+     *
+     * @param path    The include path
+     * @param parents The transactions, or the trades for the paths that start with "trades."
+     * @return A map with the key of each parent as key and its related entities as value
+     * @throws IOException An IOException
+     */
+    @Override
+    protected Map<Integer, List<HasRelations>> include(String path, List<HasRelations> parents) throws IOException {
+        switch (path) {
+            case "trades":
+                return this.widen(relationMapper.getAll("trades", parents, Trade.class));
+            case "meetings":
+                return this.widen(relationMapper.getAll("meetings", parents, Meeting.class));
+            case "trades.items":
+                return this.widen(relationMapper.getAll("items", parents, Item.class));
+            case "trades.borrower":
+                return this.includeUsers(parents, true);
+            case "trades.lender":
+                return this.includeUsers(parents, false);
+            default:
+                throw new IllegalArgumentException("Transactions cannot include " + path);
+        }
+    }
+
+    /**
+     * Get the borrower or the lender of each trade, reading them in one call
+     *
+     * @param trades    list of trades
+     * @param borrowers true for the borrowers, false for the lenders
+     * @return a map with the trade id as key and a list holding its user as value
+     * @throws IOException An IOException
+     */
+    private Map<Integer, List<HasRelations>> includeUsers(List<HasRelations> trades, boolean borrowers) throws IOException {
+        List<Integer> userIds = new ArrayList<>();
+        for (HasRelations trade : trades) {
+            userIds.add(borrowers ? ((Trade) trade).getBorrowerId() : ((Trade) trade).getLenderId());
+        }
+        Map<Integer, User> users = this.usersByKey(userIds);
+        Map<Integer, List<HasRelations>> related = new LinkedHashMap<>();
+        for (int i = 0; i < trades.size(); i++) {
+            List<HasRelations> user = new ArrayList<>();
+            if (users.containsKey(userIds.get(i))) user.add(users.get(userIds.get(i)));
+            related.put(trades.get(i).getKey(), user);
+        }
+        return related;
+    }
+
+    /**
+     * Get the trades of all the transactions, reading them in one call
+     *
+     * @param transactions list of transactions
+     * @return the trades of every transaction, in order
+     * @throws IOException An IOException
+     */
+    private List<Trade> tradesOf(List<Transaction> transactions) throws IOException {
+        List<Trade> trades = new ArrayList<>();
+        for (List<Trade> transactionTrades : relationMapper.getAll("trades", transactions, Trade.class).values()) {
+            trades.addAll(transactionTrades);
+        }
+        return trades;
+    }
+
+    /**
+     * Get the users with the given ids, reading them in one call
+     *
+     * @param userIds ids of users, which may repeat
+     * @return a map with the user id as key and the user as value
+     * @throws IOException An IOException
+     */
+    private Map<Integer, User> usersByKey(List<Integer> userIds) throws IOException {
+        Map<Integer, User> users = new HashMap<>();
+        if (userIds.isEmpty()) return users;
+        for (User user : gateway.get(new ArrayList<>(new LinkedHashSet<>(userIds)), User.class)) {
+            users.put(user.getKey(), user);
+        }
+        return users;
+    }
+
     /**
      * Get whether the trades involve user with userId
      *
@@ -536,40 +618,46 @@ public class TransactionFetcher extends AbstractFetcher {
 
 
     /**
-     * Get whether this transaction if ongoing or not
+     * Get whether a transaction is ongoing or not
      *
-     * @param transaction transaction Object
-     * @throws IOException An IOException
+     * @param meetings the meetings of the transaction
      */
-    private boolean onGoing(Transaction transaction) throws IOException {
-        List<Meeting> meetings = transaction.relation(this.relationMapper, "meetings", Meeting.class);
+    private boolean onGoing(List<Meeting> meetings) {
         Meeting lastMeeting = this.getLastMeeting(meetings);
         return !lastMeeting.hasPassed();
     }
 
-
     /**
-     * Stores the result of the current fetch.
+     * Get the trades of every transaction the query is filtered from, reading them all in one call the first time
+     *
+     * @param context the context of the query, which keeps the trades for the other filters
+     * @return a map with the transaction id as key and its trades as value
+     * @throws IOException An IOException
      */
-    private List<Transaction> allTransactions = new ArrayList<>();
-    private List<Transaction> currentList = new ArrayList<>();
-
+    private Map<Integer, List<Trade>> getTradesOfAll(TransactionQueryContext context) throws IOException {
+        if (context.trades == null) context.trades = relationMapper.getAll("trades", context.getResults(), Trade.class);
+        return context.trades;
+    }
 
     /**
-     * Reset the all lists this class saved
+     * Get the meetings of every transaction the query is filtered from, reading them all in one call the first time
+     *
+     * @param context the context of the query, which keeps the meetings for the other filters
+     * @return a map with the transaction id as key and its meetings as value
+     * @throws IOException An IOException
      */
-    protected void reset() {
-        this.allTransactions = new ArrayList<>();
-        this.currentList = new ArrayList<>();
+    private Map<Integer, List<Meeting>> getMeetingsOfAll(TransactionQueryContext context) throws IOException {
+        if (context.meetings == null) context.meetings = relationMapper.getAll("meetings", context.getResults(), Meeting.class);
+        return context.meetings;
     }
 
 
     /**
-     * Get all Item Objects and save them into the lists this class had
+     * Get all the transactions the query will be filtered from, in a new context for the query.
      */
-    protected void all() throws IOException {
-        this.allTransactions = gateway.all(Transaction.class);
-        this.currentList.addAll(this.allTransactions);
+    @Override
+    protected TransactionQueryContext all(AbstractQueryBuilder query) throws IOException {
+        return new TransactionQueryContext(gateway.all(Transaction.class));
     }
 
 
@@ -5,6 +5,7 @@ import entities.Meeting;
 import entities.Trade;
 import entities.Transaction;
 import persistence.PersistenceInterface;
+import persistence.UnitOfWork;
 import persistence.relations.MapsRelations;
 import usecases.meeting.MeetingFactory;
 import usecases.meeting.exceptions.TooManyLocationsException;
@@ -120,10 +121,38 @@ public class TransactionManager {
                                 String meetingLocation1, String meetingLocation2)
             throws TooManyItemListsException, IOException, TooManyLocationsException, TooManyTimesException {
 
-        this.setupTrades(borrowerId, lenderId, borrowedItemId, lendItemId, tradeType);
+        UnitOfWork unit = gateway.beginUnitOfWork();
+        int transactionId = this.buildTransaction(unit, borrowerId, lenderId, borrowedItemId, lendItemId, tradeType,
+                tradeDuration, meetingDate, meetingLocation1, meetingLocation2);
+        unit.commit();
+        return transactionId;
+    }
+
+
+    /**
+     * Build a transaction with input information as part of a unit of work.
+     * Nothing is saved until the unit is committed.
+     *
+     * @param unit             the unit of work to add the transaction to
+     * @param borrowerId       id of borrower
+     * @param lenderId         id of lender
+     * @param borrowedItemId   id of borrower's item
+     * @param lendItemId       id of lender's item
+     * @param tradeType        type of trade
+     * @param tradeDuration    the duration of trade
+     * @param meetingDate      the date of first meeting
+     * @param meetingLocation1 first location of meeting
+     * @param meetingLocation2 second location of meeting
+     */
+    public int buildTransaction(UnitOfWork unit, int borrowerId, int lenderId, int borrowedItemId, int lendItemId,
+                                String tradeType, String tradeDuration, LocalDate meetingDate,
+                                String meetingLocation1, String meetingLocation2)
+            throws TooManyItemListsException, IOException, TooManyLocationsException, TooManyTimesException {
+
+        this.setupTrades(unit, borrowerId, lenderId, borrowedItemId, lendItemId, tradeType);
         this.setupMeetings(tradeDuration, meetingDate, meetingLocation1, meetingLocation2, borrowerId);
 
-        return initiateTransaction(tradeFactory.getTradeId(), meetingFactory.getMeetingId());
+        return initiateTransaction(unit, tradeFactory.getTradeId(unit), meetingFactory.getMeetingId(unit));
     }
 
 
@@ -163,16 +192,31 @@ public class TransactionManager {
      * @throws IOException if the data cannot be read from file
      */
     public void deleteTransaction(int transactionId) throws IOException {
+        UnitOfWork unit = gateway.beginUnitOfWork();
+        this.deleteTransaction(unit, transactionId);
+        unit.commit();
+    }
+
+
+    /**
+     * Delete a transaction with transactionId as part of a unit of work.
+     * Nothing is saved until the unit is committed.
+     *
+     * @param unit          the unit of work to add the deletes to
+     * @param transactionId The ID of a transaction
+     * @throws IOException if the data cannot be read from file
+     */
+    public void deleteTransaction(UnitOfWork unit, int transactionId) throws IOException {
         Transaction transaction = gateway.get(transactionId, Transaction.class);
         //Make items unreserved
         Trade trade = gateway.get(transaction.getTradeList().get(0), Trade.class);
         List<Item> items = gateway.get(trade.getItemList(), Item.class);
         for (Item item : items) item.setReserved(false);
-        gateway.update(items, Item.class);
+        unit.update(items, Item.class);
 
-        gateway.delete(transaction.getTradeList(), Trade.class);
-        gateway.delete(transaction.getMeetingList(), Meeting.class);
-        gateway.delete(Collections.singletonList(transactionId), Transaction.class);
+        unit.delete(transaction.getTradeList(), Trade.class);
+        unit.delete(transaction.getMeetingList(), Meeting.class);
+        unit.delete(Collections.singletonList(transactionId), Transaction.class);
 
     }
 
@@ -231,13 +275,14 @@ public class TransactionManager {
     /**
      * Set up the trades for a transaction
      *
+     * @param unit           the unit of work to reserve the items in
      * @param borrowerId     id of borrower
      * @param lenderId       id of lender
      * @param borrowedItemId id of borrower's item
      * @param lendItemId     id of lender's item
      * @param tradeType      type of trade
      */
-    private void setupTrades(int borrowerId, int lenderId, int borrowedItemId, int lendItemId, String tradeType)
+    private void setupTrades(UnitOfWork unit, int borrowerId, int lenderId, int borrowedItemId, int lendItemId, String tradeType)
             throws TooManyItemListsException {
 
         tradeFactory.reset().fillLenderId(lenderId).fillBorrowId(borrowerId);
@@ -259,7 +304,7 @@ public class TransactionManager {
         try {
             List<Item> items = gateway.get(itemIds, Item.class);
             for (Item item : items) item.setReserved(true);
-            gateway.update(items, Item.class);
+            unit.update(items, Item.class);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -293,18 +338,19 @@ public class TransactionManager {
     /**
      * To instantiate a transaction
      *
+     * @param unit       the unit of work to add the transaction to
      * @param tradeIds   of the trade involved in the transaction (can get from TradeFactory)
      * @param meetingIds of the meetings involved in the transaction (can get from meetingFactory)
      * @return the id of the created transaction
      * @throws IOException if there is an IO error
      */
-    private int initiateTransaction(List<Integer> tradeIds, List<Integer> meetingIds)
+    private int initiateTransaction(UnitOfWork unit, List<Integer> tradeIds, List<Integer> meetingIds)
             throws IOException {
 
         Transaction transaction = new Transaction(tradeIds, meetingIds);
         List<Transaction> transactions = new ArrayList<>();
         transactions.add(transaction);
-        List<Transaction> obtainedTransactions = gateway.create(transactions, Transaction.class);
+        List<Transaction> obtainedTransactions = unit.create(transactions, Transaction.class);
         return obtainedTransactions.get(0).getKey();
 
     }
@@ -2,9 +2,11 @@ package usecases.trade;
 
 import entities.*;
 import usecases.query.AbstractQueryBuilder;
+import usecases.query.Aggregate;
 
 import java.io.IOException;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -160,6 +162,25 @@ public class TransactionQueryBuilder extends AbstractQueryBuilder {
     }
 
 
+/********************************************************************************************************
+ *
+ * Include paths
+ *
+ ********************************************************************************************************/
+
+    /**
+     * Reads the related entities of each path along with the transactions, all in one pass, for getAggregate.
+     * The paths are "trades", "meetings", "trades.items", "trades.borrower" and "trades.lender".
+     *
+     * @param paths include paths
+     * @return TransactionQueryBuilder
+     */
+    public TransactionQueryBuilder with(String... paths) {
+        this.includes.addAll(Arrays.asList(paths));
+        return this;
+    }
+
+
 /********************************************************************************************************
  *
  * Gets relations
@@ -186,6 +207,16 @@ public class TransactionQueryBuilder extends AbstractQueryBuilder {
         return this.fetcher.getTransactions(this);
     }
 
+    /**
+     * Get the transactions together with the related entities of the include paths
+     *
+     * @return an aggregate of the transactions and their related entities
+     * @throws IOException An IOException
+     */
+    public Aggregate<Transaction> getAggregate() throws IOException {
+        return this.fetcher.getAggregate(this);
+    }
+
     /**
      * Get a map with transaction ids and a list of its meetings
      *
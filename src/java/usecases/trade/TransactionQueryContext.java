@@ -0,0 +1,32 @@
+package usecases.trade;
+
+import entities.Meeting;
+import entities.Trade;
+import entities.Transaction;
+import usecases.query.QueryContext;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The context of one transaction query, which also holds what its filters read for all of the transactions.
+ */
+class TransactionQueryContext extends QueryContext<Transaction> {
+
+    /**
+     * The trades and meetings of the transactions the query is filtered from, read the first time a filter needs them.
+     * {transaction id: [trades]} and {transaction id: [meetings]}
+     */
+    Map<Integer, List<Trade>> trades = null;
+    Map<Integer, List<Meeting>> meetings = null;
+
+    /**
+     * Initializes this class.
+     *
+     * @param source The transactions the query is filtered from
+     */
+    TransactionQueryContext(List<Transaction> source) {
+        super(source);
+    }
+
+}
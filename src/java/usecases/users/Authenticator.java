@@ -60,11 +60,8 @@ public class Authenticator {
      */
     public int register(String username, String password, String homeCity, boolean isAdmin, boolean isDemo)
             throws IOException, DuplicatedUserNameException {
-        List<User> users = gateway.all(User.class);
-        for (User user : users) {
-            if (user.getName().equals(username)) {
-                throw new DuplicatedUserNameException();
-            }
+        if (this.emailDuplicate(username)) {
+            throw new DuplicatedUserNameException();
         }
         String status = "normal";
         if (isAdmin) status = "admin";
@@ -102,13 +99,7 @@ public class Authenticator {
      * @return True if the input email has a duplicate, false if not
      */
     public boolean emailDuplicate(String username) throws IOException {
-        List<User> users = gateway.all(User.class);
-        for (User user : users) {
-            if (user.getName().equals(username)) {
-                return true;
-            }
-        }
-        return false;
+        return !gateway.findBy("name", username, User.class).isEmpty();
     }
 
 
@@ -138,9 +129,9 @@ public class Authenticator {
 
     // Private method used as helper method, which returns true iff the credentials is valid
     private int checkCredentials(String username, String password) throws IOException {
-        List<User> users = gateway.all(User.class);
+        List<User> users = gateway.findBy("name", username, User.class);
         for (User user : users) {
-            if (user.getName().equals(username) && user.getPassword().equals(password)) {
+            if (user.getPassword().equals(password)) {
                 return user.getKey();
             }
         }
@@ -0,0 +1,52 @@
+package persistence;
+
+import org.junit.jupiter.api.io.TempDir;
+import persistence.codec.JavaSerializationCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Gives every test a directory of its own for the files of its gateways, deleted after the test,
+ * so that tests never touch the files of the application, or the files of another test.
+ */
+abstract class AbstractGatewayTest {
+
+    @TempDir
+    Path directory;
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Opens the journals in the directory of the test with a new gateway, the way the next start of the application would.
+     */
+    protected JournalPersistenceGateway openJournals() {
+        return new JournalPersistenceGateway(new JavaSerializationCodec(), Collections.emptySet(), this.directory.toFile());
+    }
+
+    /**
+     * Returns a file in the directory of the test.
+     */
+    protected File file(String name) {
+        return this.directory.resolve(name).toFile();
+    }
+
+    protected static List<String> names(PersistenceInterface gateway) throws IOException {
+        List<String> names = new ArrayList<>();
+        for (TestRecord record : gateway.all(TestRecord.class)) {
+            names.add(record.getName());
+        }
+        return names;
+    }
+
+}
@@ -0,0 +1,127 @@
+package persistence;
+
+import entities.History;
+import entities.Item;
+import persistence.codec.BinaryCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Measures what compressing the files of a type costs and saves, to decide which types to list in
+ * persistence.journal.compressed-types. Run it with the main method from an empty directory, since it writes
+ * and deletes the .ser files of Item and History there.
+ * <p>
+ * For each type, the same records are written and read back many times with and without compression.
+ * The files are then the size of the saved bytes apart, and the timings the CPU time of Deflater apart,
+ * because the operating system keeps such small files in memory. Compression pays off on any disk that
+ * reads and writes slower than the break-even rate printed for the type, which is the saved bytes divided
+ * by the extra time.
+ */
+public class CompressionBenchmark {
+
+    private static final int RECORDS = 5000;
+    private static final int ROUNDS = 20;
+
+    private static final String[] WORDS = {"vintage", "bicycle", "good", "condition", "barely", "used", "with",
+            "original", "box", "and", "manual", "scratch", "on", "the", "side", "pick", "up", "downtown", "only"};
+
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(207);
+
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            items.add(new Item("item " + i, sentence(random, 40), random.nextInt(500) + 1, random.nextInt(200), random.nextBoolean()));
+        }
+        run(items, Item.class);
+
+        List<History> histories = new ArrayList<>();
+        for (int i = 0; i < RECORDS; i++) {
+            History history = new History();
+            int borrowerId = random.nextInt(500) + 1;
+            int lenderId = random.nextInt(500) + 1;
+            history.addData("borrowerId", borrowerId);
+            history.addData("lenderId", lenderId);
+            history.addData("meetingLocation", sentence(random, 4));
+            history.setActionName("usecases.command.action.InitiateTransaction");
+            history.setDisplayString("Borrower with id " + borrowerId + " initiates a transaction with lender with id " + lenderId);
+            histories.add(history);
+        }
+        run(histories, History.class);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private static <T extends Persistable> void run(List<T> records, Class<T> type) throws IOException {
+
+        long[] plain = measure(records, type, new SerPersistenceGateway(false, new BinaryCodec()));
+        long[] compressed = measure(records, type, new SerPersistenceGateway(false, new BinaryCodec(),
+                Collections.singleton(type.getName())));
+
+        long savedBytes = plain[0] - compressed[0];
+        long extraNanos = (compressed[1] + compressed[2]) - (plain[1] + plain[2]);
+        System.out.println(type.getName() + ", " + records.size() + " records");
+        System.out.printf("  plain:      %9d bytes, write %7.2f ms, read %7.2f ms%n", plain[0], plain[1] / 1e6, plain[2] / 1e6);
+        System.out.printf("  compressed: %9d bytes, write %7.2f ms, read %7.2f ms (%.0f%% of the size)%n",
+                compressed[0], compressed[1] / 1e6, compressed[2] / 1e6, 100.0 * compressed[0] / plain[0]);
+        if (extraNanos <= 0) {
+            System.out.println("  compression is faster even without disk I/O");
+        } else {
+            System.out.printf("  break-even: compression pays off on disks slower than %.1f MB/s%n",
+                    savedBytes / (extraNanos / 1e9) / 1e6);
+        }
+
+    }
+
+
+    /**
+     * Writes and reads back the records ROUNDS times, after a warm-up round.
+     *
+     * @return {file size, average nanoseconds per write, average nanoseconds per read}
+     */
+    private static <T extends Persistable> long[] measure(List<T> records, Class<T> type, SerPersistenceGateway gateway) throws IOException {
+
+        long writeNanos = 0;
+        long readNanos = 0;
+        long size = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            gateway.remove(type);
+            long start = System.nanoTime();
+            gateway.create(records, type);
+            long written = System.nanoTime();
+            if (gateway.all(type).size() != records.size()) throw new IllegalStateException("Records were lost.");
+            long read = System.nanoTime();
+
+            size = new File("serfile" + type.getName() + ".ser").length();
+            if (round == 0) continue;
+            writeNanos += written - start;
+            readNanos += read - written;
+        }
+        gateway.remove(type);
+        return new long[]{size, writeNanos / ROUNDS, readNanos / ROUNDS};
+
+    }
+
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i != 0) sentence.append(' ');
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.toString();
+    }
+
+
+}
@@ -0,0 +1,123 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that the versions a table publishes keep the records and indexes they had when they were taken,
+ * however many writes follow, and that a pinned snapshot does not see later writes.
+ */
+class EntityTableTest extends AbstractGatewayTest {
+
+    @Test
+    void versionKeepsItsRecordsAfterLaterWrites() {
+        EntityTable table = new EntityTable(TestRecord.class);
+        table.put(record(1, "a"));
+        table.put(record(2, "b"));
+
+        EntityTable.Version version = table.version();
+        table.put(record(2, "changed"));
+        table.put(record(3, "c"));
+        table.remove(1);
+
+        EntityTable taken = version.table();
+        assertEquals(2, taken.size());
+        assertEquals("a", ((TestRecord) taken.get(1)).getName());
+        assertEquals("b", ((TestRecord) taken.get(2)).getName());
+        assertNull(taken.get(3));
+        assertEquals(1, taken.findBy("name", "b").size());
+        assertTrue(taken.findBy("name", "changed").isEmpty());
+
+        assertEquals(2, table.size());
+        assertEquals(1, table.findBy("name", "changed").size());
+    }
+
+
+    @Test
+    void versionWithoutWritesIsShared() {
+        EntityTable table = new EntityTable(TestRecord.class);
+        table.put(record(1, "a"));
+        assertSame(table.version(), table.version());
+        assertSame(table.version().table(), table.version().table());
+    }
+
+
+    @Test
+    void versionsMatchTheTableAcrossManyWrites() {
+        EntityTable table = new EntityTable(TestRecord.class);
+        Random random = new Random(207);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(500) + 1;
+            if (random.nextInt(4) == 0) table.remove(key);
+            else table.put(record(key, "name " + random.nextInt(20)));
+
+            if (i % 97 == 0) {
+                EntityTable taken = table.version().table();
+                assertEquals(keys(table), keys(taken));
+                for (int name = 0; name < 20; name++) {
+                    assertEquals(table.findBy("name", "name " + name), taken.findBy("name", "name " + name));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    void pinnedSnapshotDoesNotSeeLaterWrites() throws IOException {
+        JournalPersistenceGateway gateway = this.openJournals();
+        TestRecord record = gateway.create(new TestRecord("before"), TestRecord.class);
+        try (Snapshot snapshot = gateway.snapshot(TestRecord.class)) {
+            TestRecord changed = new TestRecord("after");
+            changed.setKey(record.getKey());
+            changed.setVersion(record.getVersion());
+            Thread writer = new Thread(() -> {
+                try {
+                    gateway.update(changed, TestRecord.class);
+                    gateway.create(new TestRecord("new"), TestRecord.class);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            writer.join();
+
+            assertEquals("before", gateway.get(record.getKey(), TestRecord.class).getName());
+            assertEquals(1, gateway.all(TestRecord.class).size());
+        } catch (InterruptedException e) {
+            fail("interrupted");
+        }
+        assertEquals("after", gateway.get(record.getKey(), TestRecord.class).getName());
+        assertEquals(2, gateway.all(TestRecord.class).size());
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private static TestRecord record(int key, String name) {
+        TestRecord record = new TestRecord(name);
+        record.setKey(key);
+        return record;
+    }
+
+    private static List<Integer> keys(EntityTable table) {
+        List<Integer> keys = new ArrayList<>();
+        for (Persistable record : table.all()) {
+            keys.add(record.getKey());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+}
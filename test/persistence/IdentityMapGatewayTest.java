@@ -0,0 +1,177 @@
+package persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that a scope hands out one instance per record, that scopes do not leak between threads or requests,
+ * and that records are dropped from the map whenever what is stored may differ from the mapped instance.
+ */
+class IdentityMapGatewayTest extends AbstractGatewayTest {
+
+    private JournalPersistenceGateway stored;
+
+    private IdentityMapGateway gateway;
+
+
+    @BeforeEach
+    void setUp() {
+        this.stored = this.openJournals();
+        this.gateway = new IdentityMapGateway(this.stored);
+        this.gateway.beginScope();
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        this.gateway.endScope();
+    }
+
+
+    @Test
+    void everyReadInAScopeReturnsTheSameInstance() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+        assertSame(record, this.gateway.get(key, TestRecord.class));
+        assertSame(record, this.gateway.get(Collections.singletonList(key), TestRecord.class).get(0));
+        assertSame(record, this.gateway.all(TestRecord.class).get(0));
+        assertSame(record, this.gateway.findBy("name", "record", TestRecord.class).get(0));
+    }
+
+
+    @Test
+    void readsOutsideAScopeAreNotMapped() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        this.gateway.endScope();
+        assertNotSame(this.gateway.get(key, TestRecord.class), this.gateway.get(key, TestRecord.class));
+    }
+
+
+    @Test
+    void endingAScopeDropsItsMap() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+
+        this.gateway.endScope();
+        this.gateway.beginScope();
+        assertNotSame(record, this.gateway.get(key, TestRecord.class));
+    }
+
+
+    @Test
+    void eachThreadHasItsOwnScope() throws Exception {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            TestRecord other = thread.submit(() -> {
+                this.gateway.beginScope();
+                try {
+                    return this.gateway.get(key, TestRecord.class);
+                } finally {
+                    this.gateway.endScope();
+                }
+            }).get();
+            assertNotSame(record, other);
+        } finally {
+            thread.shutdown();
+        }
+    }
+
+
+    @Test
+    void failedUpdateIsReadAgain() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+
+        //Someone else updates the record, so the mapped instance is out of date
+        TestRecord elsewhere = this.stored.get(key, TestRecord.class);
+        elsewhere.setName("elsewhere");
+        this.stored.update(elsewhere, TestRecord.class);
+
+        record.setName("mine");
+        assertThrows(VersionConflictException.class, () -> this.gateway.update(record, TestRecord.class));
+        TestRecord reread = this.gateway.get(key, TestRecord.class);
+        assertNotSame(record, reread);
+        assertEquals("elsewhere", reread.getName());
+    }
+
+
+    @Test
+    void savedRecordReplacesTheMappedInstance() throws IOException {
+        TestRecord created = this.gateway.create(new TestRecord("record"), TestRecord.class);
+        assertSame(created, this.gateway.get(created.getKey(), TestRecord.class));
+
+        TestRecord copy = this.stored.get(created.getKey(), TestRecord.class);
+        copy.setName("changed");
+        this.gateway.update(copy, TestRecord.class);
+        assertSame(copy, this.gateway.get(created.getKey(), TestRecord.class));
+    }
+
+
+    @Test
+    void deletedRecordIsForgotten() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        this.gateway.get(key, TestRecord.class);
+
+        this.gateway.delete(Collections.singletonList(key), TestRecord.class);
+        assertNull(this.gateway.get(key, TestRecord.class));
+    }
+
+
+    @Test
+    void typesTouchedByAUnitOfWorkAreReadAgain() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        TestRecord changed = this.stored.get(key, TestRecord.class);
+        changed.setName("changed");
+        unit.update(changed, TestRecord.class);
+        unit.commit();
+
+        TestRecord reread = this.gateway.get(key, TestRecord.class);
+        assertNotSame(record, reread);
+        assertEquals("changed", reread.getName());
+    }
+
+
+    @Test
+    void readsInASnapshotBypassTheMap() throws IOException {
+        int key = this.stored.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord record = this.gateway.get(key, TestRecord.class);
+        record.setName("not saved");
+
+        try (Snapshot snapshot = this.gateway.snapshot(TestRecord.class)) {
+            assertEquals("record", this.gateway.get(key, TestRecord.class).getName());
+        }
+        assertSame(record, this.gateway.get(key, TestRecord.class));
+    }
+
+
+    @Test
+    void batchReadOnlyReadsWhatIsNotMapped() throws IOException {
+        List<TestRecord> created = this.stored.create(Arrays.asList(new TestRecord("a"), new TestRecord("b")), TestRecord.class);
+        TestRecord first = this.gateway.get(created.get(0).getKey(), TestRecord.class);
+
+        List<TestRecord> both = this.gateway.get(Arrays.asList(created.get(0).getKey(), created.get(1).getKey()), TestRecord.class);
+        assertEquals(2, both.size());
+        assertSame(first, both.get(0));
+        assertSame(both.get(1), this.gateway.get(created.get(1).getKey(), TestRecord.class));
+    }
+
+}
@@ -0,0 +1,170 @@
+package persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that a journal only ever holds the writes its callers were told succeeded, after failed writes,
+ * torn records and failed units of work, by replaying it with a new gateway the way the next start would.
+ */
+class JournalPersistenceGatewayTest extends AbstractGatewayTest {
+
+    private File journal;
+    private File otherJournal;
+    private File unitLog;
+
+    private JournalPersistenceGateway gateway;
+
+
+    @BeforeEach
+    void setUp() {
+        this.journal = this.file("journal" + TestRecord.class.getName() + ".log");
+        this.otherJournal = this.file("journal" + TestRecord.Other.class.getName() + ".log");
+        this.unitLog = this.file("unitofwork.log");
+        this.gateway = this.openJournals();
+    }
+
+
+    @Test
+    void failedCreateIsNotWrittenByTheNextCreate() throws IOException {
+        this.gateway.create(new TestRecord("saved"), TestRecord.class);
+
+        this.breakJournal(this.journal);
+        assertThrows(IOException.class, () -> this.gateway.create(new TestRecord("failed"), TestRecord.class));
+        this.restore(this.journal);
+
+        this.gateway.create(new TestRecord("after"), TestRecord.class);
+        assertEquals(Arrays.asList("saved", "after"), names(this.gateway));
+        assertEquals(Arrays.asList("saved", "after"), names(this.openJournals()));
+    }
+
+
+    @Test
+    void failedDeleteIsNotWrittenByTheNextUpdate() throws IOException {
+        TestRecord kept = this.gateway.create(new TestRecord("kept"), TestRecord.class);
+        TestRecord changed = this.gateway.create(new TestRecord("changed"), TestRecord.class);
+
+        this.breakJournal(this.journal);
+        assertThrows(IOException.class, () -> this.gateway.delete(Collections.singletonList(kept.getKey()), TestRecord.class));
+        this.restore(this.journal);
+
+        changed.setName("updated");
+        this.gateway.update(changed, TestRecord.class);
+        assertEquals(Arrays.asList("kept", "updated"), names(this.openJournals()));
+    }
+
+
+    @Test
+    void tornRecordIsCutBeforeTheNextAppend() throws IOException {
+        this.gateway.create(new TestRecord("before"), TestRecord.class);
+
+        //The start of a record whose write stopped part of the way
+        try (FileOutputStream journal = new FileOutputStream(this.journal, true)) {
+            journal.write(new byte[]{1, 0, 0, 0, 9, 0, 0});
+        }
+
+        this.gateway.create(new TestRecord("after"), TestRecord.class);
+        assertEquals(Arrays.asList("before", "after"), names(this.openJournals()));
+    }
+
+
+    @Test
+    void failedUnitOfWorkIsUndoneAndNotRecovered() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+        TestRecord.Other other = this.gateway.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        long journalLength = this.journal.length();
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        record.setName("record changed");
+        other.setName("other changed");
+        unit.update(record, TestRecord.class);
+        unit.update(other, TestRecord.Other.class);
+
+        //The first type is appended, the second fails
+        this.breakJournal(this.otherJournal);
+        assertThrows(IOException.class, unit::commit);
+        this.restore(this.otherJournal);
+
+        assertFalse(this.unitLog.exists(), "the log of a failed unit must not be recovered on the next start");
+        assertEquals(journalLength, this.journal.length());
+        assertEquals("record", this.gateway.get(record.getKey(), TestRecord.class).getName());
+
+        JournalPersistenceGateway restarted = this.openJournals();
+        assertEquals("record", restarted.get(record.getKey(), TestRecord.class).getName());
+        assertEquals("other", restarted.get(other.getKey(), TestRecord.Other.class).getName());
+    }
+
+
+    @Test
+    void committedUnitOfWorkIsReplayed() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        record.setName("record changed");
+        unit.update(record, TestRecord.class);
+        unit.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        unit.commit();
+
+        assertFalse(this.unitLog.exists());
+        JournalPersistenceGateway restarted = this.openJournals();
+        assertEquals(Collections.singletonList("record changed"), names(restarted));
+        assertEquals(1, restarted.all(TestRecord.Other.class).size());
+    }
+
+
+    @Test
+    void writeBehindKeepsRecordsQueuedUntilAFlushSucceeds() throws IOException, InterruptedException {
+        this.gateway.create(new TestRecord("written"), TestRecord.class);
+        this.gateway.setWriteBehind(true);
+        this.gateway.create(new TestRecord("queued"), TestRecord.class);
+        CompletableFuture<Void> durable = this.gateway.whenDurable();
+
+        this.breakJournal(this.journal);
+        assertThrows(IOException.class, this.gateway::flush);
+        ExecutionException failure = assertThrows(ExecutionException.class, durable::get);
+        assertTrue(failure.getCause() instanceof IOException);
+        this.restore(this.journal);
+
+        this.gateway.flush();
+        assertEquals(Arrays.asList("written", "queued"), names(this.openJournals()));
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Moves a journal aside and puts a directory in its place, so that appending to it fails.
+     */
+    private void breakJournal(File journal) throws IOException {
+        Files.move(journal.toPath(), backupOf(journal).toPath());
+        assertTrue(journal.mkdir());
+    }
+
+    private void restore(File journal) {
+        File backup = backupOf(journal);
+        if (!backup.exists()) return;
+        journal.delete();
+        assertTrue(backup.renameTo(journal));
+    }
+
+    private static File backupOf(File journal) {
+        return new File(journal.getPath() + ".backup");
+    }
+
+}
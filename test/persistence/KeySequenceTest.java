@@ -0,0 +1,132 @@
+package persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that primary keys are handed out once, across threads and restarts, and that a high-water mark
+ * a crash left empty or cut short does not stop the type from being created.
+ */
+class KeySequenceTest extends AbstractGatewayTest {
+
+    private JournalPersistenceGateway gateway;
+
+
+    @BeforeEach
+    void setUp() {
+        this.gateway = this.openJournals();
+    }
+
+
+    @Test
+    void markIsOnlyWrittenOncePerBlock() throws IOException {
+        List<Integer> saved = new ArrayList<>();
+        KeySequence sequence = new KeySequence(1, saved::add);
+
+        //The first key moves the mark a block past it
+        assertEquals(1, sequence.allocate(1));
+        assertEquals(2, sequence.allocate(KeySequence.BLOCK_SIZE));
+        assertEquals(1, saved.size());
+        assertEquals(KeySequence.BLOCK_SIZE + 2, sequence.allocate(1));
+        assertEquals(2, saved.size());
+        assertTrue(saved.get(1) > KeySequence.BLOCK_SIZE + 2);
+    }
+
+
+    @Test
+    void keyIsNotHandedOutUntilTheMarkIsSaved() {
+        KeySequence sequence = new KeySequence(1, limit -> {
+            throw new IOException("disk full");
+        });
+        assertThrows(IOException.class, () -> sequence.allocate(1));
+    }
+
+
+    @Test
+    void skippedKeyIsNeverHandedOut() throws IOException {
+        KeySequence sequence = new KeySequence(1, limit -> { });
+        sequence.skipPast(50);
+        assertEquals(51, sequence.allocate(1));
+    }
+
+
+    @Test
+    void concurrentCreatesGetDistinctKeys() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> keys = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                TestRecord record = new TestRecord("record " + i);
+                keys.add(threads.submit(() -> this.gateway.create(record, TestRecord.class).getKey()));
+            }
+            Set<Integer> distinct = new HashSet<>();
+            for (Future<Integer> key : keys) {
+                assertTrue(distinct.add(key.get()), "key " + key.get() + " was handed out twice");
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(400, this.gateway.all(TestRecord.class).size());
+    }
+
+
+    @Test
+    void deletedHighestKeyIsNotReusedAfterARestart() throws IOException {
+        this.gateway.create(new TestRecord("first"), TestRecord.class);
+        TestRecord last = this.gateway.create(new TestRecord("last"), TestRecord.class);
+        this.gateway.delete(Collections.singletonList(last.getKey()), TestRecord.class);
+
+        JournalPersistenceGateway restarted = this.openJournals();
+        TestRecord created = restarted.create(new TestRecord("new"), TestRecord.class);
+        assertTrue(created.getKey() > last.getKey());
+    }
+
+
+    @Test
+    void emptyMarkFallsBackToTheStoredKeys() throws IOException {
+        this.truncatedMarkFallsBackToTheStoredKeys(0);
+    }
+
+
+    @Test
+    void shortMarkFallsBackToTheStoredKeys() throws IOException {
+        this.truncatedMarkFallsBackToTheStoredKeys(2);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    private void truncatedMarkFallsBackToTheStoredKeys(int length) throws IOException {
+        this.gateway.create(new TestRecord("first"), TestRecord.class);
+        TestRecord last = this.gateway.create(new TestRecord("last"), TestRecord.class);
+
+        //What a crash can leave behind of a mark that was being replaced
+        try (FileOutputStream mark = new FileOutputStream(this.file("journal" + TestRecord.class.getName() + ".seq"))) {
+            mark.write(new byte[length]);
+        }
+
+        JournalPersistenceGateway restarted = this.openJournals();
+        TestRecord created = restarted.create(new TestRecord("new"), TestRecord.class);
+        assertTrue(created.getKey() > last.getKey());
+        assertEquals(3, restarted.all(TestRecord.class).size());
+    }
+
+}
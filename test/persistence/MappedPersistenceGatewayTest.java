@@ -0,0 +1,197 @@
+package persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import persistence.codec.EntityCodec;
+import persistence.codec.JavaSerializationCodec;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that a segment only ever holds the writes its callers were told succeeded, after failed creates
+ * and failed units of work, by opening it again with a new gateway the way the next start would.
+ */
+class MappedPersistenceGatewayTest extends AbstractGatewayTest {
+
+    /**
+     * The name of a record that the codec of these tests refuses to encode.
+     */
+    private static final String UNENCODABLE = "unencodable";
+
+    private File segment;
+    private File otherSegment;
+    private File unitLog;
+
+    private MappedPersistenceGateway gateway;
+
+
+    @BeforeEach
+    void setUp() {
+        this.segment = this.file("segment" + TestRecord.class.getName() + ".dat");
+        this.otherSegment = this.file("segment" + TestRecord.Other.class.getName() + ".dat");
+        this.unitLog = this.file("segmentunitofwork.log");
+        this.gateway = this.restart();
+    }
+
+
+    @Test
+    void failedCreateLeavesNothingBehind() throws IOException {
+        this.gateway.create(new TestRecord("saved"), TestRecord.class);
+
+        List<TestRecord> batch = Arrays.asList(new TestRecord("first"), new TestRecord(UNENCODABLE));
+        assertThrows(IOException.class, () -> this.gateway.create(batch, TestRecord.class));
+        assertEquals(Collections.singletonList("saved"), names(this.gateway));
+        assertTrue(this.gateway.findBy("name", "first", TestRecord.class).isEmpty());
+
+        this.gateway.create(new TestRecord("after"), TestRecord.class);
+        assertEquals(Arrays.asList("saved", "after"), names(this.gateway));
+        assertEquals(Arrays.asList("saved", "after"), names(this.restart()));
+    }
+
+
+    @Test
+    void failedUnitOfWorkIsUndoneAndNotRecovered() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+        long segmentLength = this.segment.length();
+
+        //The second type has no segment yet, and a directory where it would be created
+        this.gateway.warmUp(TestRecord.Other.class);
+        assertTrue(this.otherSegment.mkdir());
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        record.setName("record changed");
+        unit.update(record, TestRecord.class);
+        unit.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        assertThrows(IOException.class, unit::commit);
+        assertTrue(this.otherSegment.delete());
+
+        assertFalse(this.unitLog.exists(), "the log of a failed unit must not be recovered on the next start");
+        assertEquals("record", this.gateway.get(record.getKey(), TestRecord.class).getName());
+        assertEquals(segmentLength, this.segment.length());
+
+        MappedPersistenceGateway restarted = this.restart();
+        assertEquals(Collections.singletonList("record"), names(restarted));
+        assertTrue(restarted.all(TestRecord.Other.class).isEmpty());
+    }
+
+
+    @Test
+    void shorterWriteAfterAFailedUnitDoesNotBringItBack() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+        this.gateway.warmUp(TestRecord.Other.class);
+        assertTrue(this.otherSegment.mkdir());
+
+        //Two records are staged in the first segment before the second one fails
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        record.setName("aaaa");
+        unit.update(record, TestRecord.class);
+        unit.create(new TestRecord("bbbb"), TestRecord.class);
+        unit.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        assertThrows(IOException.class, unit::commit);
+        assertTrue(this.otherSegment.delete());
+
+        //As long as the first staged record, so it ends where the second one starts
+        this.gateway.create(new TestRecord("cccc"), TestRecord.class);
+        assertEquals(Arrays.asList("record", "cccc"), names(this.restart()));
+    }
+
+
+    @Test
+    void committedUnitOfWorkIsKept() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        record.setName("record changed");
+        unit.update(record, TestRecord.class);
+        unit.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        unit.commit();
+
+        assertFalse(this.unitLog.exists());
+        MappedPersistenceGateway restarted = this.restart();
+        assertEquals(Collections.singletonList("record changed"), names(restarted));
+        assertEquals(1, restarted.all(TestRecord.Other.class).size());
+    }
+
+
+    @Test
+    void savedUnitIsFinishedOnTheNextStart() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+
+        //What a unit of work leaves behind if the application stops after its log was flushed
+        TestRecord changed = new TestRecord("record changed");
+        changed.setKey(record.getKey());
+        TestRecord.Other other = new TestRecord.Other("other");
+        other.setKey(1);
+        try (DataOutputStream log = new DataOutputStream(new FileOutputStream(this.unitLog))) {
+            log.writeInt(2);
+            writeLogRecord(log, TestRecord.class, changed);
+            writeLogRecord(log, TestRecord.Other.class, other);
+        }
+
+        MappedPersistenceGateway restarted = this.restart();
+        assertEquals(Collections.singletonList("record changed"), names(restarted));
+        assertEquals("other", restarted.get(1, TestRecord.Other.class).getName());
+        assertFalse(this.unitLog.exists());
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Opens the segments with a new gateway, the way the next start of the application would.
+     */
+    private MappedPersistenceGateway restart() {
+        return new MappedPersistenceGateway(new RefusingCodec(), this.directory.toFile());
+    }
+
+    private static void writeLogRecord(DataOutputStream log, Class<?> type, Persistable record) throws IOException {
+        byte[] bytes = new JavaSerializationCodec().encode(record);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        log.writeUTF(type.getName());
+        log.writeByte(1);
+        log.writeInt(record.getKey());
+        log.writeInt(bytes.length);
+        log.writeLong(crc.getValue());
+        log.write(bytes);
+    }
+
+
+    /**
+     * Serializes records with Java serialization, but fails on the ones named UNENCODABLE,
+     * so that a write can fail part of the way through its records.
+     */
+    private static class RefusingCodec implements EntityCodec {
+
+        private final EntityCodec codec = new JavaSerializationCodec();
+
+        @Override
+        public byte[] encode(Persistable record) throws IOException {
+            if (record instanceof TestRecord && UNENCODABLE.equals(((TestRecord) record).getName())) {
+                throw new IOException("Could not encode " + record);
+            }
+            return this.codec.encode(record);
+        }
+
+        @Override
+        public Persistable decode(byte[] bytes) throws IOException {
+            return this.codec.decode(bytes);
+        }
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package persistence;
+
+import java.util.Objects;
+
+
+/**
+ * A record that only the tests store, so that they never touch the files of the application's entities.
+ */
+public class TestRecord implements Persistable {
+
+    private int id;
+
+    private int version;
+
+    @Indexed
+    private String name;
+
+
+    public TestRecord(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public int getKey() {
+        return this.id;
+    }
+
+    @Override
+    public void setKey(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public int getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || this.getClass() != o.getClass()) return false;
+        TestRecord other = (TestRecord) o;
+        return this.id == other.id && Objects.equals(this.name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.id, this.name);
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "{id=" + this.id + ", version=" + this.version + ", name='" + this.name + "'}";
+    }
+
+
+    /**
+     * A second type, for the tests that need more than one.
+     */
+    public static class Other extends TestRecord {
+
+        public Other(String name) {
+            super(name);
+        }
+
+    }
+
+}
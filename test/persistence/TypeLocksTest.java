@@ -0,0 +1,135 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that the locks of several types are always taken in the same order, so that writers that need
+ * the same types in a different order never wait on each other, and that a type's writes wait for its reads.
+ */
+class TypeLocksTest extends AbstractGatewayTest {
+
+    private static final String FIRST = TestRecord.class.getName();
+    private static final String SECOND = TestRecord.Other.class.getName();
+
+
+    @Test
+    void writeAllTakesLocksInNameOrder() {
+        TypeLocks locks = new TypeLocks();
+        List<Lock> taken = locks.writeAll(Arrays.asList(SECOND, FIRST));
+        try {
+            assertSame(locks.write(FIRST), taken.get(0));
+            assertSame(locks.write(SECOND), taken.get(1));
+        } finally {
+            locks.unlock(taken);
+        }
+        assertTrue(locks.write(FIRST).tryLock());
+        locks.write(FIRST).unlock();
+    }
+
+
+    @Test
+    void writeWaitsForReadsOfItsTypeOnly() throws Exception {
+        TypeLocks locks = new TypeLocks();
+        List<Lock> reading = locks.readAll(Arrays.asList(FIRST));
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            assertFalse(thread.submit(() -> tryAndRelease(locks.write(FIRST))).get());
+            assertTrue(thread.submit(() -> tryAndRelease(locks.read(FIRST))).get());
+            assertTrue(thread.submit(() -> tryAndRelease(locks.write(SECOND))).get());
+        } finally {
+            locks.unlock(reading);
+            thread.shutdown();
+        }
+    }
+
+
+    @Test
+    void writersInOppositeOrdersDoNotDeadlock() throws Exception {
+        TypeLocks locks = new TypeLocks();
+        ExecutorService threads = daemonThreads(2);
+        try {
+            Future<?> forward = threads.submit(() -> lockRepeatedly(locks, Arrays.asList(FIRST, SECOND)));
+            Future<?> backward = threads.submit(() -> lockRepeatedly(locks, Arrays.asList(SECOND, FIRST)));
+            forward.get(30, TimeUnit.SECONDS);
+            backward.get(30, TimeUnit.SECONDS);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+
+    @Test
+    void unitsOfWorkOverTheSameTypesInOppositeOrdersAllCommit() throws Exception {
+        JournalPersistenceGateway units = this.openJournals();
+        ExecutorService threads = daemonThreads(8);
+        try {
+            List<Future<?>> commits = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                boolean forward = i % 2 == 0;
+                String name = "unit " + i;
+                commits.add(threads.submit(() -> {
+                    UnitOfWork unit = units.beginUnitOfWork();
+                    if (forward) {
+                        unit.create(new TestRecord(name), TestRecord.class);
+                        unit.create(new TestRecord.Other(name), TestRecord.Other.class);
+                    } else {
+                        unit.create(new TestRecord.Other(name), TestRecord.Other.class);
+                        unit.create(new TestRecord(name), TestRecord.class);
+                    }
+                    unit.commit();
+                    return null;
+                }));
+            }
+            for (Future<?> commit : commits) {
+                commit.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(200, units.all(TestRecord.class).size());
+        assertEquals(200, units.all(TestRecord.Other.class).size());
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Threads that deadlock cannot be stopped, so they must not keep the tests from exiting.
+     */
+    private static ExecutorService daemonThreads(int count) {
+        return Executors.newFixedThreadPool(count, task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static boolean tryAndRelease(Lock lock) {
+        if (!lock.tryLock()) return false;
+        lock.unlock();
+        return true;
+    }
+
+    private static void lockRepeatedly(TypeLocks locks, List<String> typeNames) {
+        for (int i = 0; i < 10000; i++) {
+            locks.unlock(locks.writeAll(typeNames));
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import persistence.exceptions.VersionConflictException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that an update made from a record that someone else has updated since it was read is rejected,
+ * on its own and in a unit of work, and that retrying from a fresh read never loses an update.
+ */
+class VersionConflictTest extends AbstractGatewayTest {
+
+    private JournalPersistenceGateway gateway;
+
+
+    @BeforeEach
+    void setUp() {
+        this.gateway = this.openJournals();
+    }
+
+
+    @Test
+    void updateIncreasesTheVersion() throws IOException {
+        TestRecord record = this.gateway.create(new TestRecord("record"), TestRecord.class);
+        int created = record.getVersion();
+
+        record.setName("changed");
+        this.gateway.update(record, TestRecord.class);
+        assertEquals(created + 1, record.getVersion());
+        assertEquals(created + 1, this.gateway.get(record.getKey(), TestRecord.class).getVersion());
+    }
+
+
+    @Test
+    void staleUpdateIsRejected() throws IOException {
+        int key = this.gateway.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord first = this.gateway.get(key, TestRecord.class);
+        TestRecord second = this.gateway.get(key, TestRecord.class);
+
+        first.setName("first");
+        this.gateway.update(first, TestRecord.class);
+        second.setName("second");
+        assertThrows(VersionConflictException.class, () -> this.gateway.update(second, TestRecord.class));
+        assertEquals("first", this.gateway.get(key, TestRecord.class).getName());
+
+        TestRecord reread = this.gateway.get(key, TestRecord.class);
+        reread.setName("second");
+        this.gateway.update(reread, TestRecord.class);
+        assertEquals("second", this.gateway.get(key, TestRecord.class).getName());
+    }
+
+
+    @Test
+    void staleUpdateInAUnitOfWorkSavesNothing() throws IOException {
+        int key = this.gateway.create(new TestRecord("record"), TestRecord.class).getKey();
+        TestRecord stale = this.gateway.get(key, TestRecord.class);
+        TestRecord current = this.gateway.get(key, TestRecord.class);
+        current.setName("current");
+        this.gateway.update(current, TestRecord.class);
+
+        UnitOfWork unit = this.gateway.beginUnitOfWork();
+        unit.create(new TestRecord.Other("other"), TestRecord.Other.class);
+        stale.setName("stale");
+        unit.update(stale, TestRecord.class);
+        assertThrows(VersionConflictException.class, unit::commit);
+
+        assertEquals("current", this.gateway.get(key, TestRecord.class).getName());
+        assertTrue(this.gateway.all(TestRecord.Other.class).isEmpty());
+    }
+
+
+    @Test
+    void concurrentRetriedUpdatesAreNeverLost() throws Exception {
+        int key = this.gateway.create(new TestRecord("0"), TestRecord.class).getKey();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> increments = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                increments.add(threads.submit(() -> {
+                    this.increment(key);
+                    return null;
+                }));
+            }
+            for (Future<?> increment : increments) {
+                increment.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals("200", this.gateway.get(key, TestRecord.class).getName());
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * Adds one to the number a record is named after, reading it again whenever someone else updated it first.
+     */
+    private void increment(int key) throws IOException {
+        while (true) {
+            TestRecord record = this.gateway.get(key, TestRecord.class);
+            record.setName(String.valueOf(Integer.parseInt(record.getName()) + 1));
+            try {
+                this.gateway.update(record, TestRecord.class);
+                return;
+            } catch (VersionConflictException e) {
+                //Someone else updated it since we read it
+            }
+        }
+    }
+
+}
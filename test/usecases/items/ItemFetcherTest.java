@@ -0,0 +1,200 @@
+package usecases.items;
+
+import entities.Item;
+import entities.User;
+import entities.WishList;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import persistence.Persistable;
+import persistence.PersistenceInterface;
+import usecases.query.AbstractFetcher;
+import usecases.trade.TransactionFetcher;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Checks that one fetcher can run any number of queries at once: every query keeps what it reads in its own context,
+ * so queries that run together get the same results as when they run one at a time.
+ */
+class ItemFetcherTest {
+
+    private static final int USERS = 20;
+
+    private ItemFetcher fetcher;
+
+
+    @BeforeEach
+    void setUp() {
+        List<User> users = new ArrayList<>();
+        List<Item> items = new ArrayList<>();
+        List<WishList> wishLists = new ArrayList<>();
+        Random random = new Random(25);
+        for (int userId = 1; userId <= USERS; userId++) {
+            User user = new User("user " + userId, "password", "city " + userId % 3,
+                    userId % 5 == 0 ? "frozen" : userId % 7 == 0 ? "vacation" : "active");
+            user.setKey(userId);
+            users.add(user);
+            for (int i = 0; i < 10; i++) {
+                Item item = new Item("item " + items.size(), "", userId, 10, random.nextBoolean());
+                item.setKey(items.size() + 1);
+                item.setVisibility(random.nextInt(4) != 0);
+                item.setSoftDelete(random.nextInt(8) == 0);
+                item.setReserved(random.nextInt(8) == 0);
+                items.add(item);
+            }
+        }
+        for (int userId = 1; userId <= USERS; userId++) {
+            WishList wishList = new WishList(userId);
+            wishList.setKey(userId);
+            for (int i = 0; i < 30; i++) {
+                wishList.addWishList(random.nextInt(items.size()) + 1);
+            }
+            wishLists.add(wishList);
+        }
+        this.fetcher = new ItemFetcher(gatewayOf(items, users, wishLists), null);
+    }
+
+
+    @Test
+    void concurrentQueriesGetTheSameResultsAsSerialOnes() throws Exception {
+        List<Function<ItemFetcher, ItemQueryBuilder>> queries = queries();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Function<ItemFetcher, ItemQueryBuilder> query : queries) {
+            expected.add(query.apply(this.fetcher).getIds());
+        }
+        //Most queries must find something, or comparing their results checks little
+        assertTrue(expected.stream().filter(ids -> !ids.isEmpty()).count() > queries.size() / 2);
+
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<List<Integer>>> results = new ArrayList<>();
+            for (Function<ItemFetcher, ItemQueryBuilder> query : queries) {
+                results.add(threads.submit(() -> query.apply(this.fetcher).getIds()));
+            }
+            for (int i = 0; i < queries.size(); i++) {
+                assertEquals(expected.get(i), results.get(i).get(30, TimeUnit.SECONDS), "query " + i);
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+
+    @Test
+    void queryRunFromManyThreadsIsFetchedOnce() throws Exception {
+        ItemQueryBuilder query = this.fetcher.browsableItems();
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Item>>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                results.add(threads.submit(query::getObjects));
+            }
+            List<Item> first = results.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<List<Item>> result : results) {
+                assertSame(first, result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+
+    @Test
+    void fetchersHoldNoStateOfTheirOwn() {
+        assertOnlyFinalFields(AbstractFetcher.class);
+        assertOnlyFinalFields(ItemFetcher.class);
+        assertOnlyFinalFields(TransactionFetcher.class);
+    }
+
+
+    /********************************************************************************************************
+     *
+     * Helper methods.
+     *
+     *********************************************************************************************************/
+
+    /**
+     * 400 queries over every filter the item fetcher runs, for many users.
+     */
+    private static List<Function<ItemFetcher, ItemQueryBuilder>> queries() {
+        List<Function<ItemFetcher, ItemQueryBuilder>> queries = new ArrayList<>();
+        for (int round = 0; queries.size() < 400; round++) {
+            int user = round % USERS + 1;
+            int other = (round * 7) % USERS + 1;
+            queries.add(fetcher -> fetcher.recommendedItems(user, other));
+            queries.add(fetcher -> fetcher.notRecommendedItems(user, other));
+            queries.add(fetcher -> fetcher.viewMyWishlist(user));
+            queries.add(fetcher -> fetcher.allMyItems(user));
+            queries.add(fetcher -> fetcher.browsableItems().findByHomeCity(user));
+            queries.add(fetcher -> fetcher.query().sellBy(user));
+            queries.add(fetcher -> fetcher.query().onlyHeldBy(user).exceptApproved());
+            queries.add(fetcher -> fetcher.query().onlyDeleted().exceptOwnedBy(user));
+        }
+        return queries;
+    }
+
+    private static void assertOnlyFinalFields(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if (field.isSynthetic() || Modifier.isStatic(field.getModifiers())) continue;
+            assertTrue(Modifier.isFinal(field.getModifiers()), type.getSimpleName() + "." + field.getName() + " is not final");
+        }
+    }
+
+    private static int valueOf(Persistable record, String field) throws IOException {
+        if (record instanceof Item && field.equals("ownerId")) return ((Item) record).getOwnerId();
+        if (record instanceof Item && field.equals("holderId")) return ((Item) record).getHolderId();
+        if (record instanceof WishList && field.equals("ownerId")) return ((WishList) record).getOwnerId();
+        throw new IOException("The item fetcher tests do not index " + field);
+    }
+
+    /**
+     * Returns a gateway that only answers the reads the item fetcher makes, from lists in memory,
+     * so that the tests never touch the files of the application's entities.
+     */
+    private static PersistenceInterface gatewayOf(List<Item> items, List<User> users, List<WishList> wishLists) {
+        Map<Class<?>, List<? extends Persistable>> stored = new HashMap<>();
+        stored.put(Item.class, items);
+        stored.put(User.class, users);
+        stored.put(WishList.class, wishLists);
+        return (PersistenceInterface) Proxy.newProxyInstance(PersistenceInterface.class.getClassLoader(),
+                new Class<?>[]{PersistenceInterface.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("all")) {
+                        return new ArrayList<>(stored.get(args[0]));
+                    }
+                    if (method.getName().equals("get") && args[0] instanceof List) {
+                        List<Persistable> found = new ArrayList<>();
+                        for (Persistable record : stored.get(args[1])) {
+                            if (((List<?>) args[0]).contains(record.getKey())) found.add(record);
+                        }
+                        return found;
+                    }
+                    if (method.getName().equals("get")) {
+                        for (Persistable record : stored.get(args[1])) {
+                            if (record.getKey() == (int) args[0]) return record;
+                        }
+                        return null;
+                    }
+                    if (method.getName().equals("findBy")) {
+                        List<Persistable> found = new ArrayList<>();
+                        for (Persistable record : stored.get(args[2])) {
+                            if (valueOf(record, (String) args[0]) == (int) args[1]) found.add(record);
+                        }
+                        return found;
+                    }
+                    throw new IOException("The item fetcher tests do not store " + method.getName() + " " + Arrays.toString(args));
+                });
+    }
+
+}